@@ -0,0 +1,74 @@
+-- The latest observation of each box, kept on the Box row by the triggers below so the box list can show every
+-- box's status from Box alone (see DataProvider.BOX_LIST_PROJECTION). The latest observation is the one the
+-- observation routes list first: newest obs_date, then highest _id, archived or not. last_nest_stage is worked out
+-- from its counts, one of the DataProvider.NEST_STAGE_* values: 4 once any young fledged, 3 with nestlings, 2 with
+-- eggs, 1 while the nest is being built and 0 for an empty box.
+ALTER TABLE Box ADD COLUMN last_obs_id integer;
+ALTER TABLE Box ADD COLUMN last_obs_date integer;
+ALTER TABLE Box ADD COLUMN last_nest_stage integer;
+ALTER TABLE Box ADD COLUMN last_problem varchar(50);
+
+-- Each refresh first finds the latest observation among the box's rows in the (box_id, obs_date) indexes, then
+-- copies its columns with lookups by _id. Moving rows into the archive doesn't change which one is the latest, so it
+-- needs no refresh.
+UPDATE Box SET last_obs_id = (SELECT _id FROM ObservationAll WHERE box_id = Box._id ORDER BY obs_date DESC, _id DESC LIMIT 1);
+UPDATE Box SET
+	last_obs_date = (SELECT obs_date FROM ObservationAll WHERE _id = Box.last_obs_id),
+	last_nest_stage = (SELECT CASE WHEN ifnull(fledged, 0) > 0 THEN 4 WHEN ifnull(orig_nestlings, 0) > 0 THEN 3
+		WHEN ifnull(eggs_laid, 0) > 0 THEN 2 WHEN ifnull(nest_perc, '') NOT IN ('', '0', '0%') THEN 1 ELSE 0 END
+		FROM ObservationAll WHERE _id = Box.last_obs_id),
+	last_problem = (SELECT problem FROM ObservationAll WHERE _id = Box.last_obs_id);
+
+CREATE TRIGGER observation_latest_insert AFTER INSERT ON Observation
+WHEN NEW.box_id IS NOT NULL
+BEGIN
+	UPDATE Box SET last_obs_id = (SELECT _id FROM ObservationAll WHERE box_id = NEW.box_id ORDER BY obs_date DESC, _id DESC LIMIT 1)
+	WHERE _id = NEW.box_id;
+	UPDATE Box SET
+		last_obs_date = (SELECT obs_date FROM ObservationAll WHERE _id = Box.last_obs_id),
+		last_nest_stage = (SELECT CASE WHEN ifnull(fledged, 0) > 0 THEN 4 WHEN ifnull(orig_nestlings, 0) > 0 THEN 3
+			WHEN ifnull(eggs_laid, 0) > 0 THEN 2 WHEN ifnull(nest_perc, '') NOT IN ('', '0', '0%') THEN 1 ELSE 0 END
+			FROM ObservationAll WHERE _id = Box.last_obs_id),
+		last_problem = (SELECT problem FROM ObservationAll WHERE _id = Box.last_obs_id)
+	WHERE _id = NEW.box_id;
+END;
+
+-- Refreshes the box the observation was in and the box it's in now, which are usually the same one. The columns it
+-- watches are listed again in DataProvider.LATEST_OBSERVATION_COLUMNS, which must be kept in step.
+CREATE TRIGGER observation_latest_update AFTER UPDATE OF box_id, obs_date, problem, nest_perc, eggs_laid, orig_nestlings,
+		fledged ON Observation
+BEGIN
+	UPDATE Box SET last_obs_id = (SELECT _id FROM ObservationAll WHERE box_id = Box._id ORDER BY obs_date DESC, _id DESC LIMIT 1)
+	WHERE _id IN (OLD.box_id, NEW.box_id);
+	UPDATE Box SET
+		last_obs_date = (SELECT obs_date FROM ObservationAll WHERE _id = Box.last_obs_id),
+		last_nest_stage = (SELECT CASE WHEN ifnull(fledged, 0) > 0 THEN 4 WHEN ifnull(orig_nestlings, 0) > 0 THEN 3
+			WHEN ifnull(eggs_laid, 0) > 0 THEN 2 WHEN ifnull(nest_perc, '') NOT IN ('', '0', '0%') THEN 1 ELSE 0 END
+			FROM ObservationAll WHERE _id = Box.last_obs_id),
+		last_problem = (SELECT problem FROM ObservationAll WHERE _id = Box.last_obs_id)
+	WHERE _id IN (OLD.box_id, NEW.box_id);
+END;
+
+CREATE TRIGGER observation_latest_delete AFTER DELETE ON Observation
+WHEN OLD._id NOT IN (SELECT observation_id FROM ArchiveMove) AND OLD.box_id IS NOT NULL
+BEGIN
+	UPDATE Box SET last_obs_id = (SELECT _id FROM ObservationAll WHERE box_id = OLD.box_id ORDER BY obs_date DESC, _id DESC LIMIT 1)
+	WHERE _id = OLD.box_id;
+	UPDATE Box SET
+		last_obs_date = (SELECT obs_date FROM ObservationAll WHERE _id = Box.last_obs_id),
+		last_nest_stage = (SELECT CASE WHEN ifnull(fledged, 0) > 0 THEN 4 WHEN ifnull(orig_nestlings, 0) > 0 THEN 3
+			WHEN ifnull(eggs_laid, 0) > 0 THEN 2 WHEN ifnull(nest_perc, '') NOT IN ('', '0', '0%') THEN 1 ELSE 0 END
+			FROM ObservationAll WHERE _id = Box.last_obs_id),
+		last_problem = (SELECT problem FROM ObservationAll WHERE _id = Box.last_obs_id)
+	WHERE _id = OLD.box_id;
+END;
+
+-- The latest observation columns are derived from Observation rows the change log already has, so writing them
+-- isn't a change of the box to sync. Only a write to the box's own columns is.
+DROP TRIGGER box_change_update;
+CREATE TRIGGER box_change_update AFTER UPDATE OF _id, box_number, box_type, gps_coord, condition, loc_desc ON Box
+BEGIN
+	DELETE FROM ChangeLog WHERE table_name = 'Box' AND row_id IN (OLD._id, NEW._id);
+	INSERT INTO ChangeLog(table_name, row_id) SELECT 'Box', OLD._id WHERE OLD._id != NEW._id;
+	INSERT INTO ChangeLog(table_name, row_id) VALUES('Box', NEW._id);
+END;
@@ -0,0 +1,11 @@
+-- Indexes for the filters and sorts of the box and observation URIs (see DataURI.withFilter() and withSort()).
+-- A box index on just the filter column keeps equal keys in _id order, so a trail, type or condition in the
+-- default _id order is a range scan with no sort; other sorts only sort the boxes that matched.
+CREATE INDEX idx_box_trail ON Box(loc_desc);
+CREATE INDEX idx_box_type ON Box(box_type);
+CREATE INDEX idx_box_condition ON Box(condition);
+
+-- Species filtered observations, newest first. Each arm of ObservationAll seeks its own index, and a date range
+-- narrows the seek on obs_date
+CREATE INDEX idx_observation_species_date ON Observation(species, obs_date);
+CREATE INDEX idx_observation_archive_species_date ON ObservationArchive(species, obs_date);
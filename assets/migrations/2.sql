@@ -0,0 +1 @@
+CREATE INDEX IF NOT EXISTS idx_observation_box_id ON Observation(box_id);
@@ -0,0 +1,26 @@
+-- Numeric coordinates for Box, parsed from the "lat,lon" text in gps_coord. rtrim() strips the longitude
+-- (and any spaces) off the end of gps_coord, which leaves the latitude and tells us where the longitude starts.
+ALTER TABLE Box ADD COLUMN latitude real;
+ALTER TABLE Box ADD COLUMN longitude real;
+
+UPDATE Box SET
+	latitude = CASE WHEN gps_coord LIKE '%_,_%' THEN CAST(rtrim(rtrim(gps_coord, ' -+.0123456789'), ', ') AS real) END,
+	longitude = CASE WHEN gps_coord LIKE '%_,_%' THEN CAST(substr(gps_coord, length(rtrim(gps_coord, ' -+.0123456789')) + 1) AS real) END;
+
+CREATE INDEX idx_box_lat_lon ON Box(latitude, longitude);
+
+CREATE TRIGGER box_coord_insert AFTER INSERT ON Box
+BEGIN
+	UPDATE Box SET
+		latitude = CASE WHEN NEW.gps_coord LIKE '%_,_%' THEN CAST(rtrim(rtrim(NEW.gps_coord, ' -+.0123456789'), ', ') AS real) END,
+		longitude = CASE WHEN NEW.gps_coord LIKE '%_,_%' THEN CAST(substr(NEW.gps_coord, length(rtrim(NEW.gps_coord, ' -+.0123456789')) + 1) AS real) END
+	WHERE _id = NEW._id;
+END;
+
+CREATE TRIGGER box_coord_update AFTER UPDATE OF gps_coord ON Box
+BEGIN
+	UPDATE Box SET
+		latitude = CASE WHEN NEW.gps_coord LIKE '%_,_%' THEN CAST(rtrim(rtrim(NEW.gps_coord, ' -+.0123456789'), ', ') AS real) END,
+		longitude = CASE WHEN NEW.gps_coord LIKE '%_,_%' THEN CAST(substr(NEW.gps_coord, length(rtrim(NEW.gps_coord, ' -+.0123456789')) + 1) AS real) END
+	WHERE _id = NEW._id;
+END;
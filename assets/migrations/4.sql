@@ -0,0 +1,6 @@
+-- Indexes for keyset pagination of observations, newest first. Every index ends with the rowid (_id), so
+-- (obs_date) serves ORDER BY obs_date DESC, _id DESC and the obs_date <= ? seek, and (box_id, obs_date) does the
+-- same for one box. The latter also covers box_id lookups, so the plain box_id index is no longer needed.
+DROP INDEX IF EXISTS idx_observation_box_id;
+CREATE INDEX idx_observation_box_date ON Observation(box_id, obs_date);
+CREATE INDEX idx_observation_date ON Observation(obs_date);
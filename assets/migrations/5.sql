@@ -0,0 +1,91 @@
+-- Per box, per season (calendar year of obs_date) totals of the Observation counts, kept up to date by the
+-- triggers below so the box list and trail reports don't have to sum Observation rows every time.
+CREATE TABLE BoxSeasonSummary(
+	box_id integer not null,
+	season integer not null,
+	observation_count integer not null default 0,
+	eggs_laid integer not null default 0,
+	eggs_missing integer not null default 0,
+	eggs_destroyed integer not null default 0,
+	eggs_non_viable integer not null default 0,
+	orig_nestlings integer not null default 0,
+	nestlings_lost integer not null default 0,
+	fledged integer not null default 0,
+	PRIMARY KEY(box_id, season)
+);
+
+CREATE INDEX idx_box_season_summary_season ON BoxSeasonSummary(season);
+
+INSERT INTO BoxSeasonSummary(box_id, season, observation_count, eggs_laid, eggs_missing, eggs_destroyed,
+		eggs_non_viable, orig_nestlings, nestlings_lost, fledged)
+	SELECT box_id, CAST(strftime('%Y', obs_date) AS integer), COUNT(*), TOTAL(eggs_laid), TOTAL(eggs_missing),
+		TOTAL(eggs_destroyed), TOTAL(eggs_non_viable), TOTAL(orig_nestlings),
+		TOTAL(ifnull(nstlng_miss, 0) + ifnull(nstlng_dead, 0) + ifnull(nstlng_killed, 0)), TOTAL(fledged)
+	FROM Observation
+	WHERE box_id IS NOT NULL AND strftime('%Y', obs_date) IS NOT NULL
+	GROUP BY box_id, CAST(strftime('%Y', obs_date) AS integer);
+
+CREATE TRIGGER observation_summary_insert AFTER INSERT ON Observation
+WHEN NEW.box_id IS NOT NULL AND strftime('%Y', NEW.obs_date) IS NOT NULL
+BEGIN
+	INSERT OR IGNORE INTO BoxSeasonSummary(box_id, season) VALUES(NEW.box_id, CAST(strftime('%Y', NEW.obs_date) AS integer));
+	UPDATE BoxSeasonSummary SET
+		observation_count = observation_count + 1,
+		eggs_laid = eggs_laid + ifnull(NEW.eggs_laid, 0),
+		eggs_missing = eggs_missing + ifnull(NEW.eggs_missing, 0),
+		eggs_destroyed = eggs_destroyed + ifnull(NEW.eggs_destroyed, 0),
+		eggs_non_viable = eggs_non_viable + ifnull(NEW.eggs_non_viable, 0),
+		orig_nestlings = orig_nestlings + ifnull(NEW.orig_nestlings, 0),
+		nestlings_lost = nestlings_lost + ifnull(NEW.nstlng_miss, 0) + ifnull(NEW.nstlng_dead, 0) + ifnull(NEW.nstlng_killed, 0),
+		fledged = fledged + ifnull(NEW.fledged, 0)
+	WHERE box_id = NEW.box_id AND season = CAST(strftime('%Y', NEW.obs_date) AS integer);
+END;
+
+CREATE TRIGGER observation_summary_delete AFTER DELETE ON Observation
+WHEN OLD.box_id IS NOT NULL AND strftime('%Y', OLD.obs_date) IS NOT NULL
+BEGIN
+	UPDATE BoxSeasonSummary SET
+		observation_count = observation_count - 1,
+		eggs_laid = eggs_laid - ifnull(OLD.eggs_laid, 0),
+		eggs_missing = eggs_missing - ifnull(OLD.eggs_missing, 0),
+		eggs_destroyed = eggs_destroyed - ifnull(OLD.eggs_destroyed, 0),
+		eggs_non_viable = eggs_non_viable - ifnull(OLD.eggs_non_viable, 0),
+		orig_nestlings = orig_nestlings - ifnull(OLD.orig_nestlings, 0),
+		nestlings_lost = nestlings_lost - ifnull(OLD.nstlng_miss, 0) - ifnull(OLD.nstlng_dead, 0) - ifnull(OLD.nstlng_killed, 0),
+		fledged = fledged - ifnull(OLD.fledged, 0)
+	WHERE box_id = OLD.box_id AND season = CAST(strftime('%Y', OLD.obs_date) AS integer);
+	DELETE FROM BoxSeasonSummary
+	WHERE box_id = OLD.box_id AND season = CAST(strftime('%Y', OLD.obs_date) AS integer) AND observation_count <= 0;
+END;
+
+-- An update is the old row's delete followed by the new row's insert. Only fires when a column the summary
+-- depends on changed, so editing comments and the like doesn't touch the summary.
+CREATE TRIGGER observation_summary_update AFTER UPDATE OF box_id, obs_date, eggs_laid, eggs_missing, eggs_destroyed,
+		eggs_non_viable, orig_nestlings, nstlng_miss, nstlng_dead, nstlng_killed, fledged ON Observation
+BEGIN
+	UPDATE BoxSeasonSummary SET
+		observation_count = observation_count - 1,
+		eggs_laid = eggs_laid - ifnull(OLD.eggs_laid, 0),
+		eggs_missing = eggs_missing - ifnull(OLD.eggs_missing, 0),
+		eggs_destroyed = eggs_destroyed - ifnull(OLD.eggs_destroyed, 0),
+		eggs_non_viable = eggs_non_viable - ifnull(OLD.eggs_non_viable, 0),
+		orig_nestlings = orig_nestlings - ifnull(OLD.orig_nestlings, 0),
+		nestlings_lost = nestlings_lost - ifnull(OLD.nstlng_miss, 0) - ifnull(OLD.nstlng_dead, 0) - ifnull(OLD.nstlng_killed, 0),
+		fledged = fledged - ifnull(OLD.fledged, 0)
+	WHERE box_id = OLD.box_id AND season = CAST(strftime('%Y', OLD.obs_date) AS integer);
+	DELETE FROM BoxSeasonSummary
+	WHERE box_id = OLD.box_id AND season = CAST(strftime('%Y', OLD.obs_date) AS integer) AND observation_count <= 0;
+	INSERT OR IGNORE INTO BoxSeasonSummary(box_id, season)
+		SELECT NEW.box_id, CAST(strftime('%Y', NEW.obs_date) AS integer)
+		WHERE NEW.box_id IS NOT NULL AND strftime('%Y', NEW.obs_date) IS NOT NULL;
+	UPDATE BoxSeasonSummary SET
+		observation_count = observation_count + 1,
+		eggs_laid = eggs_laid + ifnull(NEW.eggs_laid, 0),
+		eggs_missing = eggs_missing + ifnull(NEW.eggs_missing, 0),
+		eggs_destroyed = eggs_destroyed + ifnull(NEW.eggs_destroyed, 0),
+		eggs_non_viable = eggs_non_viable + ifnull(NEW.eggs_non_viable, 0),
+		orig_nestlings = orig_nestlings + ifnull(NEW.orig_nestlings, 0),
+		nestlings_lost = nestlings_lost + ifnull(NEW.nstlng_miss, 0) + ifnull(NEW.nstlng_dead, 0) + ifnull(NEW.nstlng_killed, 0),
+		fledged = fledged + ifnull(NEW.fledged, 0)
+	WHERE box_id = NEW.box_id AND season = CAST(strftime('%Y', NEW.obs_date) AS integer);
+END;
@@ -0,0 +1,48 @@
+-- Full-text index over observations and boxes. Observation N is indexed as docid 2N along with the box_number
+-- and loc_desc of its box, so a search like "fire ants Trail B" finds the observation; Box N is indexed as
+-- docid 2N + 1. FTS3 rather than FTS4 so it works with the SQLite in every Android version we support.
+CREATE VIRTUAL TABLE SearchIndex USING fts3(box_number, loc_desc, species, problem, prob_act, comments, tokenize=porter);
+
+INSERT INTO SearchIndex(docid, box_number, loc_desc, species, problem, prob_act, comments)
+	SELECT o._id * 2, b.box_number, b.loc_desc, o.species, o.problem, o.prob_act, o.comments
+	FROM Observation o LEFT JOIN Box b ON b._id = o.box_id;
+
+INSERT INTO SearchIndex(docid, box_number, loc_desc)
+	SELECT _id * 2 + 1, box_number, loc_desc FROM Box;
+
+CREATE TRIGGER observation_search_insert AFTER INSERT ON Observation
+BEGIN
+	INSERT INTO SearchIndex(docid, box_number, loc_desc, species, problem, prob_act, comments)
+	VALUES(NEW._id * 2, (SELECT box_number FROM Box WHERE _id = NEW.box_id), (SELECT loc_desc FROM Box WHERE _id = NEW.box_id),
+		NEW.species, NEW.problem, NEW.prob_act, NEW.comments);
+END;
+
+CREATE TRIGGER observation_search_update AFTER UPDATE OF box_id, species, problem, prob_act, comments ON Observation
+BEGIN
+	DELETE FROM SearchIndex WHERE docid = OLD._id * 2;
+	INSERT INTO SearchIndex(docid, box_number, loc_desc, species, problem, prob_act, comments)
+	VALUES(NEW._id * 2, (SELECT box_number FROM Box WHERE _id = NEW.box_id), (SELECT loc_desc FROM Box WHERE _id = NEW.box_id),
+		NEW.species, NEW.problem, NEW.prob_act, NEW.comments);
+END;
+
+CREATE TRIGGER observation_search_delete AFTER DELETE ON Observation
+BEGIN
+	DELETE FROM SearchIndex WHERE docid = OLD._id * 2;
+END;
+
+CREATE TRIGGER box_search_insert AFTER INSERT ON Box
+BEGIN
+	INSERT INTO SearchIndex(docid, box_number, loc_desc) VALUES(NEW._id * 2 + 1, NEW.box_number, NEW.loc_desc);
+END;
+
+CREATE TRIGGER box_search_update AFTER UPDATE OF box_number, loc_desc ON Box
+BEGIN
+	UPDATE SearchIndex SET box_number = NEW.box_number, loc_desc = NEW.loc_desc WHERE docid = NEW._id * 2 + 1;
+	UPDATE SearchIndex SET box_number = NEW.box_number, loc_desc = NEW.loc_desc
+	WHERE docid IN (SELECT _id * 2 FROM Observation WHERE box_id = NEW._id);
+END;
+
+CREATE TRIGGER box_search_delete AFTER DELETE ON Box
+BEGIN
+	DELETE FROM SearchIndex WHERE docid = OLD._id * 2 + 1;
+END;
@@ -0,0 +1,54 @@
+-- Change log for delta sync. Each Box or Observation row written since the last acknowledged sync has one entry,
+-- with a seq that grows with every write, so the sync engine can send the rows in the order they last changed.
+-- The entry doesn't say what happened to the row: if the row still exists it's sent as it is now, otherwise it's
+-- sent as deleted. Entries are deleted once the server acknowledges them.
+CREATE TABLE ChangeLog(
+	seq integer primary key autoincrement,
+	table_name text not null,
+	row_id integer not null
+);
+CREATE UNIQUE INDEX idx_change_log_row ON ChangeLog(table_name, row_id);
+
+-- Nothing has been synced yet, so the first sync sends everything
+INSERT INTO ChangeLog(table_name, row_id) SELECT 'Box', _id FROM Box;
+INSERT INTO ChangeLog(table_name, row_id) SELECT 'Observation', _id FROM Observation;
+
+-- A row written again before it's synced moves to the end of the log rather than being logged twice. The old
+-- entry is deleted explicitly instead of using INSERT OR REPLACE, which an outer INSERT OR IGNORE would override.
+CREATE TRIGGER box_change_insert AFTER INSERT ON Box
+BEGIN
+	DELETE FROM ChangeLog WHERE table_name = 'Box' AND row_id = NEW._id;
+	INSERT INTO ChangeLog(table_name, row_id) VALUES('Box', NEW._id);
+END;
+
+CREATE TRIGGER box_change_update AFTER UPDATE ON Box
+BEGIN
+	DELETE FROM ChangeLog WHERE table_name = 'Box' AND row_id IN (OLD._id, NEW._id);
+	INSERT INTO ChangeLog(table_name, row_id) SELECT 'Box', OLD._id WHERE OLD._id != NEW._id;
+	INSERT INTO ChangeLog(table_name, row_id) VALUES('Box', NEW._id);
+END;
+
+CREATE TRIGGER box_change_delete AFTER DELETE ON Box
+BEGIN
+	DELETE FROM ChangeLog WHERE table_name = 'Box' AND row_id = OLD._id;
+	INSERT INTO ChangeLog(table_name, row_id) VALUES('Box', OLD._id);
+END;
+
+CREATE TRIGGER observation_change_insert AFTER INSERT ON Observation
+BEGIN
+	DELETE FROM ChangeLog WHERE table_name = 'Observation' AND row_id = NEW._id;
+	INSERT INTO ChangeLog(table_name, row_id) VALUES('Observation', NEW._id);
+END;
+
+CREATE TRIGGER observation_change_update AFTER UPDATE ON Observation
+BEGIN
+	DELETE FROM ChangeLog WHERE table_name = 'Observation' AND row_id IN (OLD._id, NEW._id);
+	INSERT INTO ChangeLog(table_name, row_id) SELECT 'Observation', OLD._id WHERE OLD._id != NEW._id;
+	INSERT INTO ChangeLog(table_name, row_id) VALUES('Observation', NEW._id);
+END;
+
+CREATE TRIGGER observation_change_delete AFTER DELETE ON Observation
+BEGIN
+	DELETE FROM ChangeLog WHERE table_name = 'Observation' AND row_id = OLD._id;
+	INSERT INTO ChangeLog(table_name, row_id) VALUES('Observation', OLD._id);
+END;
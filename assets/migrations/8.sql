@@ -0,0 +1,187 @@
+-- Observation dates as epoch days (days since 1970-01-01, see EpochDays) in integer columns, in place of the
+-- YYYY-MM-DD text they were stored as. Integers compare as numbers in every query, so date ranges are plain index
+-- seeks on (obs_date) and (box_id, obs_date), and obs_date now defaults to today's date where the device is.
+-- Dates SQLite can't read (anything other than YYYY-MM-DD, optionally with a time) can't be converted and become
+-- null.
+--
+-- SQLite can't change a column's type, so the table is rebuilt. It's copied aside rather than renamed, as
+-- renaming a table rewrites the triggers on Box that refer to Observation. Dropping Observation drops its indexes
+-- and triggers, which are created again below; the triggers from 5.sql now read the season from the epoch day.
+-- The rows keep their _id, and the AUTOINCREMENT counter is carried over so the _ids of deleted observations,
+-- which may still be in the change log, are never reused.
+CREATE TABLE ObservationCopy AS SELECT * FROM Observation;
+CREATE TABLE ObservationSequenceCopy AS SELECT seq FROM sqlite_sequence WHERE name = 'Observation';
+DROP TABLE Observation;
+
+CREATE TABLE Observation(
+	_id integer primary key autoincrement, 
+	obs_date integer default (CAST(julianday('now', 'localtime') - 2440587.5 AS integer)), 
+	problem varchar(50), 
+	prob_act varchar(50), 
+	species varchar(20), 
+	nest_perc varchar(5), 
+	eggs_laid integer, 
+	eggs_missing integer, 
+	eggs_destroyed integer, 
+	eggs_non_viable integer, 
+	orig_nestlings integer, 
+	nstlng_miss integer, 
+	nstlng_dead integer, 
+	nstlng_killed integer, 
+	nstlng_age integer, 
+	comments varchar(100), 
+	temp integer, 
+	first_egg_dt integer, 
+	last_egg_dt integer, 
+	do_not_mon_dt integer, 
+	est_hatch_dt integer, 
+	est_fledge_dt integer, 
+	act_hatch_date integer, 
+	act_fledge_date integer, 
+	fledged integer, 
+	session_desc varchar(20) default 'In Progress',
+	box_id integer, FOREIGN KEY(box_id) REFERENCES Box(_id)
+);
+
+INSERT INTO Observation(_id, obs_date, problem, prob_act, species, nest_perc, eggs_laid, eggs_missing, eggs_destroyed, eggs_non_viable, orig_nestlings, nstlng_miss, nstlng_dead, nstlng_killed, nstlng_age, comments, temp, first_egg_dt, last_egg_dt, do_not_mon_dt, est_hatch_dt, est_fledge_dt, act_hatch_date, act_fledge_date, fledged, session_desc, box_id)
+SELECT
+	_id,
+	CASE WHEN typeof(obs_date) = 'text' AND date(obs_date) IS NOT NULL THEN CAST(julianday(date(obs_date)) - 2440587.5 AS integer) END,
+	problem,
+	prob_act,
+	species,
+	nest_perc,
+	eggs_laid,
+	eggs_missing,
+	eggs_destroyed,
+	eggs_non_viable,
+	orig_nestlings,
+	nstlng_miss,
+	nstlng_dead,
+	nstlng_killed,
+	nstlng_age,
+	comments,
+	temp,
+	CASE WHEN typeof(first_egg_dt) = 'text' AND date(first_egg_dt) IS NOT NULL THEN CAST(julianday(date(first_egg_dt)) - 2440587.5 AS integer) END,
+	CASE WHEN typeof(last_egg_dt) = 'text' AND date(last_egg_dt) IS NOT NULL THEN CAST(julianday(date(last_egg_dt)) - 2440587.5 AS integer) END,
+	CASE WHEN typeof(do_not_mon_dt) = 'text' AND date(do_not_mon_dt) IS NOT NULL THEN CAST(julianday(date(do_not_mon_dt)) - 2440587.5 AS integer) END,
+	CASE WHEN typeof(est_hatch_dt) = 'text' AND date(est_hatch_dt) IS NOT NULL THEN CAST(julianday(date(est_hatch_dt)) - 2440587.5 AS integer) END,
+	CASE WHEN typeof(est_fledge_dt) = 'text' AND date(est_fledge_dt) IS NOT NULL THEN CAST(julianday(date(est_fledge_dt)) - 2440587.5 AS integer) END,
+	CASE WHEN typeof(act_hatch_date) = 'text' AND date(act_hatch_date) IS NOT NULL THEN CAST(julianday(date(act_hatch_date)) - 2440587.5 AS integer) END,
+	CASE WHEN typeof(act_fledge_date) = 'text' AND date(act_fledge_date) IS NOT NULL THEN CAST(julianday(date(act_fledge_date)) - 2440587.5 AS integer) END,
+	fledged,
+	session_desc,
+	box_id
+FROM ObservationCopy;
+
+DELETE FROM sqlite_sequence WHERE name = 'Observation';
+INSERT INTO sqlite_sequence(name, seq)
+	SELECT 'Observation', MAX(seq) FROM (SELECT seq FROM ObservationSequenceCopy UNION ALL SELECT MAX(_id) FROM Observation)
+	HAVING MAX(seq) IS NOT NULL;
+DROP TABLE ObservationCopy;
+DROP TABLE ObservationSequenceCopy;
+
+CREATE INDEX idx_observation_box_date ON Observation(box_id, obs_date);
+CREATE INDEX idx_observation_date ON Observation(obs_date);
+
+CREATE TRIGGER observation_summary_insert AFTER INSERT ON Observation
+WHEN NEW.box_id IS NOT NULL AND strftime('%Y', NEW.obs_date * 86400, 'unixepoch') IS NOT NULL
+BEGIN
+	INSERT OR IGNORE INTO BoxSeasonSummary(box_id, season) VALUES(NEW.box_id, CAST(strftime('%Y', NEW.obs_date * 86400, 'unixepoch') AS integer));
+	UPDATE BoxSeasonSummary SET
+		observation_count = observation_count + 1,
+		eggs_laid = eggs_laid + ifnull(NEW.eggs_laid, 0),
+		eggs_missing = eggs_missing + ifnull(NEW.eggs_missing, 0),
+		eggs_destroyed = eggs_destroyed + ifnull(NEW.eggs_destroyed, 0),
+		eggs_non_viable = eggs_non_viable + ifnull(NEW.eggs_non_viable, 0),
+		orig_nestlings = orig_nestlings + ifnull(NEW.orig_nestlings, 0),
+		nestlings_lost = nestlings_lost + ifnull(NEW.nstlng_miss, 0) + ifnull(NEW.nstlng_dead, 0) + ifnull(NEW.nstlng_killed, 0),
+		fledged = fledged + ifnull(NEW.fledged, 0)
+	WHERE box_id = NEW.box_id AND season = CAST(strftime('%Y', NEW.obs_date * 86400, 'unixepoch') AS integer);
+END;
+
+CREATE TRIGGER observation_summary_delete AFTER DELETE ON Observation
+WHEN OLD.box_id IS NOT NULL AND strftime('%Y', OLD.obs_date * 86400, 'unixepoch') IS NOT NULL
+BEGIN
+	UPDATE BoxSeasonSummary SET
+		observation_count = observation_count - 1,
+		eggs_laid = eggs_laid - ifnull(OLD.eggs_laid, 0),
+		eggs_missing = eggs_missing - ifnull(OLD.eggs_missing, 0),
+		eggs_destroyed = eggs_destroyed - ifnull(OLD.eggs_destroyed, 0),
+		eggs_non_viable = eggs_non_viable - ifnull(OLD.eggs_non_viable, 0),
+		orig_nestlings = orig_nestlings - ifnull(OLD.orig_nestlings, 0),
+		nestlings_lost = nestlings_lost - ifnull(OLD.nstlng_miss, 0) - ifnull(OLD.nstlng_dead, 0) - ifnull(OLD.nstlng_killed, 0),
+		fledged = fledged - ifnull(OLD.fledged, 0)
+	WHERE box_id = OLD.box_id AND season = CAST(strftime('%Y', OLD.obs_date * 86400, 'unixepoch') AS integer);
+	DELETE FROM BoxSeasonSummary
+	WHERE box_id = OLD.box_id AND season = CAST(strftime('%Y', OLD.obs_date * 86400, 'unixepoch') AS integer) AND observation_count <= 0;
+END;
+
+CREATE TRIGGER observation_summary_update AFTER UPDATE OF box_id, obs_date, eggs_laid, eggs_missing, eggs_destroyed,
+		eggs_non_viable, orig_nestlings, nstlng_miss, nstlng_dead, nstlng_killed, fledged ON Observation
+BEGIN
+	UPDATE BoxSeasonSummary SET
+		observation_count = observation_count - 1,
+		eggs_laid = eggs_laid - ifnull(OLD.eggs_laid, 0),
+		eggs_missing = eggs_missing - ifnull(OLD.eggs_missing, 0),
+		eggs_destroyed = eggs_destroyed - ifnull(OLD.eggs_destroyed, 0),
+		eggs_non_viable = eggs_non_viable - ifnull(OLD.eggs_non_viable, 0),
+		orig_nestlings = orig_nestlings - ifnull(OLD.orig_nestlings, 0),
+		nestlings_lost = nestlings_lost - ifnull(OLD.nstlng_miss, 0) - ifnull(OLD.nstlng_dead, 0) - ifnull(OLD.nstlng_killed, 0),
+		fledged = fledged - ifnull(OLD.fledged, 0)
+	WHERE box_id = OLD.box_id AND season = CAST(strftime('%Y', OLD.obs_date * 86400, 'unixepoch') AS integer);
+	DELETE FROM BoxSeasonSummary
+	WHERE box_id = OLD.box_id AND season = CAST(strftime('%Y', OLD.obs_date * 86400, 'unixepoch') AS integer) AND observation_count <= 0;
+	INSERT OR IGNORE INTO BoxSeasonSummary(box_id, season)
+		SELECT NEW.box_id, CAST(strftime('%Y', NEW.obs_date * 86400, 'unixepoch') AS integer)
+		WHERE NEW.box_id IS NOT NULL AND strftime('%Y', NEW.obs_date * 86400, 'unixepoch') IS NOT NULL;
+	UPDATE BoxSeasonSummary SET
+		observation_count = observation_count + 1,
+		eggs_laid = eggs_laid + ifnull(NEW.eggs_laid, 0),
+		eggs_missing = eggs_missing + ifnull(NEW.eggs_missing, 0),
+		eggs_destroyed = eggs_destroyed + ifnull(NEW.eggs_destroyed, 0),
+		eggs_non_viable = eggs_non_viable + ifnull(NEW.eggs_non_viable, 0),
+		orig_nestlings = orig_nestlings + ifnull(NEW.orig_nestlings, 0),
+		nestlings_lost = nestlings_lost + ifnull(NEW.nstlng_miss, 0) + ifnull(NEW.nstlng_dead, 0) + ifnull(NEW.nstlng_killed, 0),
+		fledged = fledged + ifnull(NEW.fledged, 0)
+	WHERE box_id = NEW.box_id AND season = CAST(strftime('%Y', NEW.obs_date * 86400, 'unixepoch') AS integer);
+END;
+
+CREATE TRIGGER observation_search_insert AFTER INSERT ON Observation
+BEGIN
+	INSERT INTO SearchIndex(docid, box_number, loc_desc, species, problem, prob_act, comments)
+	VALUES(NEW._id * 2, (SELECT box_number FROM Box WHERE _id = NEW.box_id), (SELECT loc_desc FROM Box WHERE _id = NEW.box_id),
+		NEW.species, NEW.problem, NEW.prob_act, NEW.comments);
+END;
+
+CREATE TRIGGER observation_search_update AFTER UPDATE OF box_id, species, problem, prob_act, comments ON Observation
+BEGIN
+	DELETE FROM SearchIndex WHERE docid = OLD._id * 2;
+	INSERT INTO SearchIndex(docid, box_number, loc_desc, species, problem, prob_act, comments)
+	VALUES(NEW._id * 2, (SELECT box_number FROM Box WHERE _id = NEW.box_id), (SELECT loc_desc FROM Box WHERE _id = NEW.box_id),
+		NEW.species, NEW.problem, NEW.prob_act, NEW.comments);
+END;
+
+CREATE TRIGGER observation_search_delete AFTER DELETE ON Observation
+BEGIN
+	DELETE FROM SearchIndex WHERE docid = OLD._id * 2;
+END;
+
+CREATE TRIGGER observation_change_insert AFTER INSERT ON Observation
+BEGIN
+	DELETE FROM ChangeLog WHERE table_name = 'Observation' AND row_id = NEW._id;
+	INSERT INTO ChangeLog(table_name, row_id) VALUES('Observation', NEW._id);
+END;
+
+CREATE TRIGGER observation_change_update AFTER UPDATE ON Observation
+BEGIN
+	DELETE FROM ChangeLog WHERE table_name = 'Observation' AND row_id IN (OLD._id, NEW._id);
+	INSERT INTO ChangeLog(table_name, row_id) SELECT 'Observation', OLD._id WHERE OLD._id != NEW._id;
+	INSERT INTO ChangeLog(table_name, row_id) VALUES('Observation', NEW._id);
+END;
+
+CREATE TRIGGER observation_change_delete AFTER DELETE ON Observation
+BEGIN
+	DELETE FROM ChangeLog WHERE table_name = 'Observation' AND row_id = OLD._id;
+	INSERT INTO ChangeLog(table_name, row_id) VALUES('Observation', OLD._id);
+END;
@@ -0,0 +1,98 @@
+-- Observations of closed monitoring sessions can be moved out of Observation into ObservationArchive, so the
+-- current season's screens only read the rows still in progress (see DataProvider.METHOD_ARCHIVE_OBSERVATIONS).
+-- ObservationAll is both together, for the routes that read history. Archived rows keep their _id and are read
+-- only: the season summaries and the search index already count them, and the provider's writes only reach
+-- Observation.
+CREATE TABLE ObservationArchive(
+	_id integer primary key, 
+	obs_date integer, 
+	problem varchar(50), 
+	prob_act varchar(50), 
+	species varchar(20), 
+	nest_perc varchar(5), 
+	eggs_laid integer, 
+	eggs_missing integer, 
+	eggs_destroyed integer, 
+	eggs_non_viable integer, 
+	orig_nestlings integer, 
+	nstlng_miss integer, 
+	nstlng_dead integer, 
+	nstlng_killed integer, 
+	nstlng_age integer, 
+	comments varchar(100), 
+	temp integer, 
+	first_egg_dt integer, 
+	last_egg_dt integer, 
+	do_not_mon_dt integer, 
+	est_hatch_dt integer, 
+	est_fledge_dt integer, 
+	act_hatch_date integer, 
+	act_fledge_date integer, 
+	fledged integer, 
+	session_desc varchar(20),
+	box_id integer, FOREIGN KEY(box_id) REFERENCES Box(_id)
+);
+CREATE INDEX idx_observation_archive_box_date ON ObservationArchive(box_id, obs_date);
+CREATE INDEX idx_observation_archive_date ON ObservationArchive(obs_date);
+
+CREATE VIEW ObservationAll AS
+	SELECT _id, obs_date, problem, prob_act, species, nest_perc, eggs_laid, eggs_missing, eggs_destroyed,
+		eggs_non_viable, orig_nestlings, nstlng_miss, nstlng_dead, nstlng_killed, nstlng_age, comments,
+		temp, first_egg_dt, last_egg_dt, do_not_mon_dt, est_hatch_dt, est_fledge_dt, act_hatch_date,
+		act_fledge_date, fledged, session_desc, box_id FROM Observation
+	UNION ALL
+	SELECT _id, obs_date, problem, prob_act, species, nest_perc, eggs_laid, eggs_missing, eggs_destroyed,
+		eggs_non_viable, orig_nestlings, nstlng_miss, nstlng_dead, nstlng_killed, nstlng_age, comments,
+		temp, first_egg_dt, last_egg_dt, do_not_mon_dt, est_hatch_dt, est_fledge_dt, act_hatch_date,
+		act_fledge_date, fledged, session_desc, box_id FROM ObservationArchive;
+
+-- The _ids of the observations being moved to the archive, only filled while the move runs. Moving a row out of
+-- Observation isn't a delete as far as the summaries, the search index and the change log are concerned, so their
+-- delete triggers skip these rows.
+CREATE TABLE ArchiveMove(
+	observation_id integer primary key
+);
+
+DROP TRIGGER observation_summary_delete;
+DROP TRIGGER observation_search_delete;
+DROP TRIGGER observation_change_delete;
+DROP TRIGGER box_search_update;
+
+CREATE TRIGGER observation_summary_delete AFTER DELETE ON Observation
+WHEN OLD._id NOT IN (SELECT observation_id FROM ArchiveMove) AND OLD.box_id IS NOT NULL AND strftime('%Y', OLD.obs_date * 86400, 'unixepoch') IS NOT NULL
+BEGIN
+	UPDATE BoxSeasonSummary SET
+		observation_count = observation_count - 1,
+		eggs_laid = eggs_laid - ifnull(OLD.eggs_laid, 0),
+		eggs_missing = eggs_missing - ifnull(OLD.eggs_missing, 0),
+		eggs_destroyed = eggs_destroyed - ifnull(OLD.eggs_destroyed, 0),
+		eggs_non_viable = eggs_non_viable - ifnull(OLD.eggs_non_viable, 0),
+		orig_nestlings = orig_nestlings - ifnull(OLD.orig_nestlings, 0),
+		nestlings_lost = nestlings_lost - ifnull(OLD.nstlng_miss, 0) - ifnull(OLD.nstlng_dead, 0) - ifnull(OLD.nstlng_killed, 0),
+		fledged = fledged - ifnull(OLD.fledged, 0)
+	WHERE box_id = OLD.box_id AND season = CAST(strftime('%Y', OLD.obs_date * 86400, 'unixepoch') AS integer);
+	DELETE FROM BoxSeasonSummary
+	WHERE box_id = OLD.box_id AND season = CAST(strftime('%Y', OLD.obs_date * 86400, 'unixepoch') AS integer) AND observation_count <= 0;
+END;
+
+CREATE TRIGGER observation_search_delete AFTER DELETE ON Observation
+WHEN OLD._id NOT IN (SELECT observation_id FROM ArchiveMove)
+BEGIN
+	DELETE FROM SearchIndex WHERE docid = OLD._id * 2;
+END;
+
+CREATE TRIGGER observation_change_delete AFTER DELETE ON Observation
+WHEN OLD._id NOT IN (SELECT observation_id FROM ArchiveMove)
+BEGIN
+	DELETE FROM ChangeLog WHERE table_name = 'Observation' AND row_id = OLD._id;
+	INSERT INTO ChangeLog(table_name, row_id) VALUES('Observation', OLD._id);
+END;
+
+-- Renaming a box renames it in the search entries of its archived observations too
+CREATE TRIGGER box_search_update AFTER UPDATE OF box_number, loc_desc ON Box
+BEGIN
+	UPDATE SearchIndex SET box_number = NEW.box_number, loc_desc = NEW.loc_desc WHERE docid = NEW._id * 2 + 1;
+	UPDATE SearchIndex SET box_number = NEW.box_number, loc_desc = NEW.loc_desc
+	WHERE docid IN (SELECT _id * 2 FROM Observation WHERE box_id = NEW._id
+		UNION ALL SELECT _id * 2 FROM ObservationArchive WHERE box_id = NEW._id);
+END;
@@ -0,0 +1,36 @@
+package bluebird.tracking.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+ * Runs the data layer benchmarks. Takes the usual JMH options, but writes the results as JSON to
+ * target/jmh-results.json unless -rf or -rff say otherwise, so each build leaves a file that can be compared with
+ * the last one's. From the benchmarks directory:
+ *
+ * 		java -jar target/benchmarks.jar								everything, trails of 100 and 1000 boxes
+ * 		java -jar target/benchmarks.jar QueryBenchmarks -p boxes=5000	the queries on a bigger trail
+ * 		java -jar target/benchmarks.jar -p observationsPerBox=50
+ *
+ * Run from somewhere else, pass -jvmArgsAppend -Dbluebird.assets=<path to the app's assets directory>.
+ */
+public final class BenchmarkMain {
+	private static final String DEFAULT_RESULT_FILE = "target/jmh-results.json";
+
+	private BenchmarkMain() {}
+
+	public static void main(String[] args) throws CommandLineOptionException, RunnerException{
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+		if(!commandLine.getResultFormat().hasValue())
+			options.resultFormat(ResultFormatType.JSON);
+		if(!commandLine.getResult().hasValue())
+			options.result(DEFAULT_RESULT_FILE);
+		new Runner(options.build()).run();
+	}
+}
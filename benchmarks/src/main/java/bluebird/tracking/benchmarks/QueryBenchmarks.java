@@ -0,0 +1,105 @@
+package bluebird.tracking.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * Read paths of DataProvider, with the SQL its routes run: the box list as BoxCursorAdapter queries it, a single
+ * box (BOX_ID) and the observations of a box joined with the box (OBSERVATIONS_BOX_ID). Every row returned is read,
+ * as an adapter binding the whole list would.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBenchmarks {
+	static final String BOX_LIST_SQL = "SELECT _id, box_number, condition, last_obs_date, last_nest_stage, last_problem " +
+			"FROM Box ORDER BY _id ASC";
+	static final String BOX_SQL = "SELECT * FROM Box WHERE _id = ?";
+	static final String BOX_OBSERVATIONS_SQL = "SELECT o._id AS _id, obs_date, species " +
+			"FROM Box b JOIN Observation o ON b._id = o.box_id WHERE o.box_id = ? ORDER BY obs_date DESC";
+
+	/* Number of boxes on the trail */
+	@Param({"100", "1000"})
+	public int boxes;
+
+	/* Number of observations of each box */
+	@Param({"20"})
+	public int observationsPerBox;
+
+	private File dbFile;
+	private Connection connection;
+	private PreparedStatement boxList;
+	private PreparedStatement box;
+	private PreparedStatement boxObservations;
+	private final Random random = new Random(17);
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, SQLException{
+		dbFile = File.createTempFile("bluebird-query", ".db");
+		connection = TrailDatabase.create(dbFile);
+		TrailDatabase.fill(connection, boxes, observationsPerBox, 42);
+		boxList = connection.prepareStatement(BOX_LIST_SQL);
+		box = connection.prepareStatement(BOX_SQL);
+		boxObservations = connection.prepareStatement(BOX_OBSERVATIONS_SQL);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws SQLException{
+		connection.close();
+		new File(dbFile.getPath() + "-wal").delete();
+		new File(dbFile.getPath() + "-shm").delete();
+		dbFile.delete();
+	}
+
+	@Benchmark
+	public void boxList(Blackhole bh) throws SQLException{
+		consume(boxList.executeQuery(), 6, bh);
+	}
+
+	@Benchmark
+	public void singleBox(Blackhole bh) throws SQLException{
+		box.setLong(1, 1 + random.nextInt(boxes));
+		consume(box.executeQuery(), 1, bh);
+	}
+
+	@Benchmark
+	public void boxObservations(Blackhole bh) throws SQLException{
+		boxObservations.setLong(1, 1 + random.nextInt(boxes));
+		consume(boxObservations.executeQuery(), 3, bh);
+	}
+
+	private static void consume(ResultSet rows, int columns, Blackhole bh) throws SQLException{
+		try{
+			while(rows.next()){
+				for(int i = 1; i <= columns; i++)
+					bh.consume(rows.getString(i));
+			}
+		} finally{
+			rows.close();
+		}
+	}
+}
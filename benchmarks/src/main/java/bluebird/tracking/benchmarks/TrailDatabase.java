@@ -0,0 +1,127 @@
+package bluebird.tracking.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Random;
+
+import bluebird.tracking.data.EpochDays;
+import bluebird.tracking.data.Scripts;
+
+/*
+ * A database with the app's schema, filled with a synthetic trail, for the benchmarks to run against. The schema
+ * is built from assets/bluebird.sql and every script in assets/migrations, in order, and the connection is set up
+ * the way DatabaseHelper.onOpen() sets up the app's: write-ahead logging with synchronous = NORMAL.
+ *
+ * The assets directory is found through the bluebird.assets system property, "../assets" by default, which is
+ * right when running from the benchmarks directory.
+ */
+final class TrailDatabase {
+	static final String[] SPECIES = {"EABL", "CAWR", "TRES", "HOSP", "CACH", "BHNU"};
+	static final String[] CONDITIONS = {"Good", "Ok", "Needs repair", "Missing"};
+
+	private TrailDatabase() {}
+
+	/*
+	 * Creates a new database file with the app's schema
+	 *
+	 * @return	An open connection to it, the caller deletes the file once done
+	 */
+	static Connection create(File dbFile) throws IOException, SQLException{
+		File assets = new File(System.getProperty("bluebird.assets", "../assets"));
+		if(!new File(assets, "bluebird.sql").isFile())
+			throw new IOException("Can't find bluebird.sql in " + assets.getAbsolutePath() + ", set -Dbluebird.assets");
+
+		dbFile.delete();
+		Connection connection = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath());
+		pragma(connection, "PRAGMA journal_mode = WAL");
+		pragma(connection, "PRAGMA synchronous = NORMAL");
+
+		connection.setAutoCommit(false);
+		Scripts.run(connection, new File(assets, "bluebird.sql"));
+		File[] migrations = new File(assets, "migrations").listFiles();
+		if(migrations != null){
+			Arrays.sort(migrations, new Comparator<File>(){
+				@Override
+				public int compare(File a, File b){
+					return Integer.valueOf(version(a)).compareTo(version(b));
+				}
+			});
+			for(File migration : migrations)
+				Scripts.run(connection, migration);
+		}
+		connection.commit();
+		connection.setAutoCommit(true);
+		return connection;
+	}
+
+	/*
+	 * Fills the database with a trail of boxes, each with the same number of observations spread over the
+	 * seasons before 2014. The same seed always gives the same trail
+	 */
+	static void fill(Connection connection, int boxes, int observationsPerBox, long seed) throws SQLException{
+		Random random = new Random(seed);
+		connection.setAutoCommit(false);
+		PreparedStatement box = connection.prepareStatement(
+				"INSERT INTO Box(box_number, box_type, gps_coord, condition, loc_desc) VALUES(?, ?, ?, ?, ?)");
+		PreparedStatement observation = connection.prepareStatement(
+				"INSERT INTO Observation(box_id, obs_date, species, problem, eggs_laid, fledged, comments) VALUES(?, ?, ?, ?, ?, ?, ?)");
+		try{
+			for(int b = 1; b <= boxes; b++){
+				box.setString(1, String.format(Locale.US, "Box %04d", b));
+				box.setString(2, "Blue Bird");
+				box.setString(3, String.format(Locale.US, "%.6f,%.6f", 33.4 + random.nextDouble() / 10, -81.9 + random.nextDouble() / 10));
+				box.setString(4, CONDITIONS[random.nextInt(CONDITIONS.length)]);
+				box.setString(5, "Trail " + (char)('A' + b % 5));
+				box.executeUpdate();
+			}
+			for(int b = 1; b <= boxes; b++){
+				for(int o = 0; o < observationsPerBox; o++)
+					bindObservation(observation, random, b);
+				observation.executeBatch();
+			}
+		} finally{
+			box.close();
+			observation.close();
+		}
+		connection.commit();
+		connection.setAutoCommit(true);
+		pragma(connection, "PRAGMA wal_checkpoint(TRUNCATE)");
+		pragma(connection, "ANALYZE");
+	}
+
+	/*
+	 * Binds a random observation of the given box and adds it to the statement's batch
+	 */
+	static void bindObservation(PreparedStatement observation, Random random, long boxId) throws SQLException{
+		observation.setLong(1, boxId);
+		observation.setLong(2, EpochDays.fromDate(2005 + random.nextInt(9), 3 + random.nextInt(5), 1 + random.nextInt(28)));
+		observation.setString(3, SPECIES[random.nextInt(SPECIES.length)]);
+		observation.setString(4, random.nextInt(10) == 0 ? "Fire ants" : null);
+		observation.setInt(5, random.nextInt(6));
+		observation.setInt(6, random.nextInt(5));
+		observation.setString(7, "Checked nest, " + random.nextInt(100) + "% complete");
+		observation.addBatch();
+	}
+
+	static void pragma(Connection connection, String sql) throws SQLException{
+		Statement stmt = connection.createStatement();
+		try{
+			stmt.execute(sql);
+		} finally{
+			stmt.close();
+		}
+	}
+
+	private static int version(File migration){
+		String name = migration.getName();
+		return Integer.parseInt(name.substring(0, name.indexOf('.')));
+	}
+}
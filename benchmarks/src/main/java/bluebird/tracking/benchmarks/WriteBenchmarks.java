@@ -0,0 +1,172 @@
+package bluebird.tracking.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Write paths of DataProvider, each run the way the provider runs it: a single insert in its own transaction, a
+ * bulk insert of BULK_SIZE rows through one compiled statement in one transaction, and updates and deletes by _id
+ * that read the affected rows first (for change notifications) inside the write's transaction. Every write also
+ * fires the triggers the migrations install, which is most of the cost.
+ *
+ * Inserts make the trail grow as the benchmark runs; the trail is rebuilt for each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteBenchmarks {
+	static final int BULK_SIZE = 500;
+
+	static final String INSERT_SQL = "INSERT INTO Observation(box_id, obs_date, species, problem, eggs_laid, fledged, comments) " +
+			"VALUES(?, ?, ?, ?, ?, ?, ?)";
+	static final String AFFECTED_ROWS_SQL = "SELECT _id, box_id FROM Observation WHERE _id = ?";
+	static final String UPDATE_SQL = "UPDATE Observation SET species = ?, eggs_laid = ? WHERE _id = ?";
+	static final String DELETE_SQL = "DELETE FROM Observation WHERE _id = ?";
+
+	/* Number of boxes on the trail */
+	@Param({"100", "1000"})
+	public int boxes;
+
+	/* Number of observations of each box */
+	@Param({"20"})
+	public int observationsPerBox;
+
+	private File dbFile;
+	private Connection connection;
+	private PreparedStatement insert;
+	private PreparedStatement affectedRows;
+	private PreparedStatement update;
+	private PreparedStatement delete;
+	private final Random random = new Random(17);
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, SQLException{
+		dbFile = File.createTempFile("bluebird-write", ".db");
+		connection = TrailDatabase.create(dbFile);
+		TrailDatabase.fill(connection, boxes, observationsPerBox, 42);
+		insert = connection.prepareStatement(INSERT_SQL);
+		affectedRows = connection.prepareStatement(AFFECTED_ROWS_SQL);
+		update = connection.prepareStatement(UPDATE_SQL);
+		delete = connection.prepareStatement(DELETE_SQL);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws SQLException{
+		connection.close();
+		new File(dbFile.getPath() + "-wal").delete();
+		new File(dbFile.getPath() + "-shm").delete();
+		dbFile.delete();
+	}
+
+	/*
+	 * The observation a deleteObservation() call deletes, inserted before each call. Per-call setup adds some
+	 * timing overhead of its own, so compare deleteObservation with its own earlier results rather than with the
+	 * other benchmarks
+	 */
+	@State(Scope.Benchmark)
+	public static class PendingDelete {
+		long id;
+
+		@Setup(Level.Invocation)
+		public void insert(WriteBenchmarks bench) throws SQLException{
+			id = bench.insertOne();
+		}
+	}
+
+	long insertOne() throws SQLException{
+		TrailDatabase.bindObservation(insert, random, 1 + random.nextInt(boxes));
+		insert.executeBatch();
+		Statement stmt = connection.createStatement();
+		try{
+			ResultSet rows = stmt.executeQuery("SELECT last_insert_rowid()");
+			rows.next();
+			return rows.getLong(1);
+		} finally{
+			stmt.close();
+		}
+	}
+
+	@Benchmark
+	public void insertObservation() throws SQLException{
+		TrailDatabase.bindObservation(insert, random, 1 + random.nextInt(boxes));
+		insert.executeBatch();
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void bulkInsertObservations() throws SQLException{
+		connection.setAutoCommit(false);
+		try{
+			for(int i = 0; i < BULK_SIZE; i++)
+				TrailDatabase.bindObservation(insert, random, 1 + random.nextInt(boxes));
+			insert.executeBatch();
+			connection.commit();
+		} finally{
+			connection.setAutoCommit(true);
+		}
+	}
+
+	@Benchmark
+	public void updateObservation() throws SQLException{
+		long id = 1 + random.nextInt(boxes * observationsPerBox);
+		connection.setAutoCommit(false);
+		try{
+			readAffectedRows(id);
+			update.setString(1, TrailDatabase.SPECIES[random.nextInt(TrailDatabase.SPECIES.length)]);
+			update.setInt(2, random.nextInt(6));
+			update.setLong(3, id);
+			update.executeUpdate();
+			connection.commit();
+		} finally{
+			connection.setAutoCommit(true);
+		}
+	}
+
+	@Benchmark
+	public void deleteObservation(PendingDelete pending) throws SQLException{
+		connection.setAutoCommit(false);
+		try{
+			readAffectedRows(pending.id);
+			delete.setLong(1, pending.id);
+			delete.executeUpdate();
+			connection.commit();
+		} finally{
+			connection.setAutoCommit(true);
+		}
+	}
+
+	private void readAffectedRows(long id) throws SQLException{
+		affectedRows.setLong(1, id);
+		ResultSet rows = affectedRows.executeQuery();
+		try{
+			while(rows.next())
+				rows.getLong(2);
+		} finally{
+			rows.close();
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package bluebird.tracking.data;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/*
+ * Runs the app's SQL scripts over JDBC for the benchmarks, reading them with the same SqlScriptReader
+ * DatabaseHelper uses so the benchmarks get exactly the app's schema.
+ */
+public final class Scripts {
+	private Scripts() {}
+
+	/*
+	 * Executes every statement of a script
+	 *
+	 * @param connection	Connection to run the script on
+	 * @param script		The script, UTF-8
+	 */
+	public static void run(Connection connection, File script) throws IOException, SQLException{
+		SqlScriptReader reader = new SqlScriptReader(new BufferedReader(new InputStreamReader(new FileInputStream(script), "UTF-8")));
+		Statement stmt = connection.createStatement();
+		try{
+			String sql;
+			while((sql = reader.nextStatement()) != null)
+				stmt.executeUpdate(sql);
+		} finally{
+			stmt.close();
+			reader.close();
+		}
+	}
+}
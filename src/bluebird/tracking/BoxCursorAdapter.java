@@ -0,0 +1,162 @@
+package bluebird.tracking;
+
+import android.content.Context;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.support.v4.widget.CursorAdapter;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+import bluebird.tracking.data.DataProvider;
+import bluebird.tracking.data.EpochDays;
+
+/**
+ * Binds the rows of a Box cursor to the box list. Each row shows the box
+ * number, with the box's condition and the nest stage, date and problem of its
+ * latest observation below it. These are all columns of Box (see
+ * {@link DataProvider#BOX_LIST_PROJECTION}), so the list is one scan of Box.
+ * <p>
+ * Column indexes are looked up once per cursor rather than once per row, row
+ * views are recycled through a {@link ViewHolder}, and text is copied out of
+ * the cursor into buffers owned by the holder, so binding a row doesn't
+ * allocate once the buffers have grown to fit. Row IDs are the Box _id and are
+ * stable, so the list's checked item follows the box across reloads.
+ * <p>
+ * The cursor must contain the columns in {@link #PROJECTION}.
+ */
+public class BoxCursorAdapter extends CursorAdapter {
+
+    /**
+     * The columns the box list needs, to be passed as the projection of the
+     * box list query.
+     */
+    public static final String[] PROJECTION = DataProvider.BOX_LIST_PROJECTION;
+
+    private static final char[] SEPARATOR = " \u00b7 ".toCharArray();
+
+    private final LayoutInflater mInflater;
+    private final char[] mNeverChecked;
+
+    /**
+     * The text of each nest stage, indexed by DataProvider.NEST_STAGE_*.
+     */
+    private final char[][] mNestStages;
+
+    private int mBoxNumberIndex = -1;
+    private int mConditionIndex = -1;
+    private int mLastDateIndex = -1;
+    private int mLastStageIndex = -1;
+    private int mLastProblemIndex = -1;
+
+    /**
+     * Holds on to the views of a row and the buffers used to fill them.
+     */
+    private static class ViewHolder {
+        TextView boxNumber;
+        TextView status;
+        final CharArrayBuffer boxNumberBuffer = new CharArrayBuffer(16);
+        final CharArrayBuffer conditionBuffer = new CharArrayBuffer(32);
+        final CharArrayBuffer problemBuffer = new CharArrayBuffer(32);
+        char[] statusText = new char[96];
+    }
+
+    public BoxCursorAdapter(Context context) {
+        super(context, null, 0);
+        mInflater = LayoutInflater.from(context);
+        mNeverChecked = context.getString(R.string.box_never_checked).toCharArray();
+        String[] stages = context.getResources().getStringArray(R.array.nest_stages);
+        mNestStages = new char[stages.length][];
+        for (int i = 0; i < stages.length; i++) {
+            mNestStages[i] = stages[i].toCharArray();
+        }
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public Cursor swapCursor(Cursor newCursor) {
+        if (newCursor != null) {
+            mBoxNumberIndex = newCursor.getColumnIndexOrThrow("box_number");
+            mConditionIndex = newCursor.getColumnIndexOrThrow("condition");
+            mLastDateIndex = newCursor.getColumnIndexOrThrow("last_obs_date");
+            mLastStageIndex = newCursor.getColumnIndexOrThrow("last_nest_stage");
+            mLastProblemIndex = newCursor.getColumnIndexOrThrow("last_problem");
+        }
+        return super.swapCursor(newCursor);
+    }
+
+    @Override
+    public View newView(Context context, Cursor cursor, ViewGroup parent) {
+        View view = mInflater.inflate(android.R.layout.simple_list_item_activated_2, parent, false);
+        ViewHolder holder = new ViewHolder();
+        holder.boxNumber = (TextView) view.findViewById(android.R.id.text1);
+        holder.status = (TextView) view.findViewById(android.R.id.text2);
+        view.setTag(holder);
+        return view;
+    }
+
+    @Override
+    public void bindView(View view, Context context, Cursor cursor) {
+        ViewHolder holder = (ViewHolder) view.getTag();
+
+        cursor.copyStringToBuffer(mBoxNumberIndex, holder.boxNumberBuffer);
+        holder.boxNumber.setText(holder.boxNumberBuffer.data, 0, holder.boxNumberBuffer.sizeCopied);
+
+        // the condition, then the nest stage, date and problem of the latest
+        // observation, each after a separator
+        cursor.copyStringToBuffer(mConditionIndex, holder.conditionBuffer);
+        cursor.copyStringToBuffer(mLastProblemIndex, holder.problemBuffer);
+        boolean checked = !cursor.isNull(mLastDateIndex);
+        char[] stage = null;
+        if (!cursor.isNull(mLastStageIndex)) {
+            int index = cursor.getInt(mLastStageIndex);
+            stage = (index >= 0 && index < mNestStages.length) ? mNestStages[index] : null;
+        }
+
+        int conditionLength = holder.conditionBuffer.sizeCopied;
+        int problemLength = holder.problemBuffer.sizeCopied;
+        int length = conditionLength + 3 * SEPARATOR.length + mNeverChecked.length
+                + ((stage == null) ? 0 : stage.length) + EpochDays.FORMATTED_LENGTH + problemLength;
+        if (holder.statusText.length < length) {
+            holder.statusText = new char[length];
+        }
+        char[] status = holder.statusText;
+        int pos = append(status, 0, holder.conditionBuffer.data, conditionLength);
+        if (!checked) {
+            pos = append(status, pos, mNeverChecked, mNeverChecked.length);
+        } else {
+            if (stage != null) {
+                pos = append(status, pos, stage, stage.length);
+            }
+            pos = append(status, pos, null, EpochDays.FORMATTED_LENGTH);
+            EpochDays.format(cursor.getLong(mLastDateIndex), status, pos - EpochDays.FORMATTED_LENGTH);
+            pos = append(status, pos, holder.problemBuffer.data, problemLength);
+        }
+        holder.status.setText(status, 0, pos);
+    }
+
+    /**
+     * Adds text to the end of the status, after a separator unless it's the
+     * first thing in it. Empty text is skipped.
+     *
+     * @param text the text to copy, or null to only make room for length chars
+     * @return the new length of the status
+     */
+    private static int append(char[] status, int pos, char[] text, int length) {
+        if (length == 0) {
+            return pos;
+        }
+        if (pos > 0) {
+            System.arraycopy(SEPARATOR, 0, status, pos, SEPARATOR.length);
+            pos += SEPARATOR.length;
+        }
+        if (text != null) {
+            System.arraycopy(text, 0, status, pos, length);
+        }
+        return pos + length;
+    }
+}
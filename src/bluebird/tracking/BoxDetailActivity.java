@@ -5,6 +5,7 @@ import android.os.Bundle;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.NavUtils;
 import android.view.MenuItem;
+import bluebird.tracking.data.ObservationEditQueue;
 
 /**
  * An activity representing a single Box detail screen. This
@@ -48,6 +49,13 @@ public class BoxDetailActivity extends FragmentActivity {
         }
     }
 
+    @Override
+    protected void onStop() {
+        super.onStop();
+        // write any observation edits still queued before the app goes to the background
+        ObservationEditQueue.get(this).flush();
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
@@ -0,0 +1,163 @@
+package bluebird.tracking;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.os.AsyncTask;
+import android.support.v4.util.LruCache;
+import bluebird.tracking.data.DataURI;
+
+/**
+ * A small in-memory cache of what {@link BoxDetailFragment} shows for a box:
+ * the box's row and its newest observations, using the fragment's projections. In
+ * two-pane mode the boxes on either side of the selected one are prefetched
+ * into it in the background, so stepping along a trail can show a box's
+ * details straight away while the fragment's loaders fetch fresh data.
+ */
+final class BoxDetailCache {
+
+    /**
+     * Number of boxes kept, enough for the selected box, its neighbours and a
+     * few recently viewed ones.
+     */
+    private static final int MAX_BOXES = 8;
+
+    /**
+     * Number of observations kept for each box, about a screenful. Only these
+     * are shown before the fragment's first page loads, so copying more would
+     * just be work on the UI thread each time the page reloads.
+     */
+    private static final int MAX_OBSERVATIONS = 20;
+
+    private static final LruCache<Long, Entry> sCache = new LruCache<Long, Entry>(MAX_BOXES);
+
+    /**
+     * A cached box. The observation rows are stored as plain values so each
+     * caller gets its own cursor over them.
+     */
+    static final class Entry {
+        final ContentValues box;
+        final Object[][] observations;
+
+        Entry(ContentValues box, Object[][] observations) {
+            this.box = box;
+            this.observations = observations;
+        }
+
+        /**
+         * Creates a new cursor over the cached observations, with
+         * {@link BoxDetailFragment#OBSERVATION_PROJECTION} as its columns.
+         */
+        Cursor newObservationCursor() {
+            MatrixCursor cursor = new MatrixCursor(BoxDetailFragment.OBSERVATION_PROJECTION, observations.length);
+            for (Object[] row : observations) {
+                cursor.addRow(row);
+            }
+            return cursor;
+        }
+    }
+
+    private BoxDetailCache() {}
+
+    static Entry get(long boxId) {
+        return sCache.get(boxId);
+    }
+
+    /**
+     * Caches a box's row, keeping any observations already cached for it.
+     */
+    static void putBox(long boxId, ContentValues box) {
+        Entry old = sCache.get(boxId);
+        sCache.put(boxId, new Entry(box, (old == null) ? new Object[0][] : old.observations));
+    }
+
+    /**
+     * Caches the first {@link #MAX_OBSERVATIONS} of a box's observations, if
+     * its row is already cached. Leaves the cursor's position unchanged.
+     */
+    static void putObservations(long boxId, Cursor observations) {
+        Entry old = sCache.get(boxId);
+        if (old != null) {
+            sCache.put(boxId, new Entry(old.box, copyRows(observations)));
+        }
+    }
+
+    /**
+     * Loads the given boxes into the cache on a background thread, skipping
+     * any that are already cached.
+     */
+    static void prefetch(final ContentResolver resolver, long... boxIds) {
+        new AsyncTask<Long, Void, Void>() {
+            @Override
+            protected Void doInBackground(Long... ids) {
+                for (Long id : ids) {
+                    if (id != null && sCache.get(id) == null) {
+                        Entry entry = load(resolver, id);
+                        if (entry != null) {
+                            sCache.put(id, entry);
+                        }
+                    }
+                }
+                return null;
+            }
+        }.execute(box(boxIds));
+    }
+
+    /*
+     * Queries a box and its newest observations with the detail fragment's
+     * projections. Returns null if the box doesn't exist.
+     */
+    private static Entry load(ContentResolver resolver, long boxId) {
+        Cursor box = resolver.query(DataURI.getBoxURIById((int) boxId),
+                BoxDetailFragment.BOX_PROJECTION, null, null, null);
+        if (box == null) {
+            return null;
+        }
+        ContentValues values = new ContentValues();
+        try {
+            if (!box.moveToFirst()) {
+                return null;
+            }
+            DatabaseUtils.cursorRowToContentValues(box, values);
+        } finally {
+            box.close();
+        }
+
+        Cursor observations = resolver.query(DataURI.getBoxObservationsPageURI((int) boxId, MAX_OBSERVATIONS),
+                BoxDetailFragment.OBSERVATION_PROJECTION, null, null, null);
+        if (observations == null) {
+            return new Entry(values, new Object[0][]);
+        }
+        try {
+            return new Entry(values, copyRows(observations));
+        } finally {
+            observations.close();
+        }
+    }
+
+    private static Object[][] copyRows(Cursor cursor) {
+        int position = cursor.getPosition();
+        int columns = cursor.getColumnCount();
+        Object[][] rows = new Object[Math.min(cursor.getCount(), MAX_OBSERVATIONS)][];
+        cursor.moveToPosition(-1);
+        for (int i = 0; i < rows.length && cursor.moveToNext(); i++) {
+            Object[] row = new Object[columns];
+            for (int col = 0; col < columns; col++) {
+                row[col] = cursor.getString(col);
+            }
+            rows[i] = row;
+        }
+        cursor.moveToPosition(position);
+        return rows;
+    }
+
+    private static Long[] box(long[] values) {
+        Long[] boxed = new Long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            boxed[i] = values[i];
+        }
+        return boxed;
+    }
+}
@@ -1,33 +1,79 @@
 package bluebird.tracking;
 
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
+import android.support.v4.app.LoaderManager;
+import android.support.v4.content.CursorLoader;
+import android.support.v4.content.Loader;
+import android.support.v4.widget.SimpleCursorAdapter;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.ListView;
 import android.widget.TextView;
-import bluebird.tracking.dummy.DummyContent;
+import bluebird.tracking.constants.Constants;
+import bluebird.tracking.data.DataURI;
+import bluebird.tracking.data.EpochDays;
 
 /**
  * A fragment representing a single Box detail screen.
  * This fragment is either contained in a {@link BoxListActivity}
  * in two-pane mode (on tablets) or a {@link BoxDetailActivity}
  * on handsets.
+ * <p>
+ * The box is loaded with a loader and its observations a page at a time by an
+ * {@link ObservationPager}. If the box is in the {@link BoxDetailCache} it is
+ * shown straight away, and the loaders then replace it with fresh data.
  */
-public class BoxDetailFragment extends Fragment{
-
-    
-	
-	/**
+public class BoxDetailFragment extends Fragment implements
+    LoaderManager.LoaderCallbacks<Cursor>
+{
+    /**
      * The fragment argument representing the item ID that this fragment
-     * represents.
+     * represents. This is the Box _id, as a String.
      */
     public static final String ARG_ITEM_ID = "item_id";
 
     /**
-     * The dummy content this fragment is presenting.
+     * The Box columns the detail pane shows.
+     */
+    static final String[] BOX_PROJECTION = new String[] {
+        "_id",
+        "box_number",
+        "box_type",
+        "condition",
+        "loc_desc",
+        "gps_coord"
+    };
+
+    /**
+     * The Observation columns the detail pane shows, as passed to the box
+     * observation page queries.
+     */
+    static final String[] OBSERVATION_PROJECTION = new String[] {
+        "_id",
+        "obs_date",
+        "species"
+    };
+
+    /**
+     * The Box _id this fragment is presenting, or -1 if there isn't one.
+     */
+    private long mBoxId = -1;
+
+    private TextView mBoxView;
+    private ListView mObservationList;
+    private SimpleCursorAdapter mObservationAdapter;
+    private ObservationPager mObservationPager;
+
+    /**
+     * The cursor over cached observations shown until the first page loads.
+     * Unlike the loader's cursors, this one is ours to close.
      */
-    private DummyContent.DummyItem mItem;
+    private Cursor mCachedObservations;
 
     /**
      * Mandatory empty constructor for the fragment manager to instantiate the
@@ -40,10 +86,11 @@ public class BoxDetailFragment extends Fragment{
         super.onCreate(savedInstanceState);
 
         if (getArguments().containsKey(ARG_ITEM_ID)) {
-            // Load the dummy content specified by the fragment
-            // arguments. In a real-world scenario, use a Loader
-            // to load content from a content provider.
-            mItem = DummyContent.ITEM_MAP.get(getArguments().getString(ARG_ITEM_ID));
+            try {
+                mBoxId = Long.parseLong(getArguments().getString(ARG_ITEM_ID));
+            } catch (NumberFormatException e) {
+                mBoxId = -1;
+            }
         }
     }
 
@@ -52,11 +99,108 @@ public class BoxDetailFragment extends Fragment{
             Bundle savedInstanceState) {
         View rootView = inflater.inflate(R.layout.fragment_box_detail, container, false);
 
-        // Show the dummy content as text in a TextView.
-        if (mItem != null) {
-            ((TextView) rootView.findViewById(R.id.box_detail)).setText(mItem.content);
+        mBoxView = (TextView) rootView.findViewById(R.id.box_detail);
+        mObservationAdapter = new SimpleCursorAdapter(getActivity(),
+                android.R.layout.simple_list_item_2, null,
+                new String[] { "obs_date", "species" },
+                new int[] { android.R.id.text1, android.R.id.text2 }, 0);
+        mObservationAdapter.setViewBinder(new SimpleCursorAdapter.ViewBinder() {
+            @Override
+            public boolean setViewValue(View view, Cursor cursor, int columnIndex) {
+                // obs_date is stored as an epoch day
+                if (cursor.isNull(columnIndex) || !"obs_date".equals(cursor.getColumnName(columnIndex))) {
+                    return false;
+                }
+                ((TextView) view).setText(EpochDays.format(cursor.getLong(columnIndex)));
+                return true;
+            }
+        });
+        mObservationList = (ListView) rootView.findViewById(R.id.box_observations);
+        mObservationList.setAdapter(mObservationAdapter);
+
+        // Show what's cached until the loaders finish
+        BoxDetailCache.Entry cached = (mBoxId < 0) ? null : BoxDetailCache.get(mBoxId);
+        if (cached != null) {
+            showBox(cached.box);
+            mCachedObservations = cached.newObservationCursor();
+            mObservationAdapter.swapCursor(mCachedObservations);
         }
 
         return rootView;
     }
+
+    @Override
+    public void onActivityCreated(Bundle savedInstanceState) {
+        super.onActivityCreated(savedInstanceState);
+
+        if (mBoxId >= 0) {
+            getLoaderManager().initLoader(Constants.DataLoaderID.BOX_LOADER, null, this);
+
+            mObservationPager = new ObservationPager(getActivity(), getLoaderManager(),
+                    mObservationAdapter, (int) mBoxId, OBSERVATION_PROJECTION);
+            mObservationPager.setOnPageLoadedListener(new ObservationPager.OnPageLoadedListener() {
+                @Override
+                public void onPageLoaded(int page, Cursor cursor) {
+                    if (page == 0) {
+                        closeCachedObservations();
+                        BoxDetailCache.putObservations(mBoxId, cursor);
+                    }
+                }
+            });
+            mObservationList.setOnScrollListener(mObservationPager);
+            mObservationPager.start();
+        }
+    }
+
+    @Override
+    public Loader<Cursor> onCreateLoader(int loaderID, Bundle args) {
+        switch (loaderID) {
+        case Constants.DataLoaderID.BOX_LOADER:
+            return new CursorLoader(getActivity(), DataURI.getBoxURIById((int) mBoxId),
+                    BOX_PROJECTION, null, null, null);
+        default:
+            return null;
+        }
+    }
+
+    @Override
+    public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+        if (loader.getId() == Constants.DataLoaderID.BOX_LOADER && cursor.moveToFirst()) {
+            ContentValues box = new ContentValues();
+            DatabaseUtils.cursorRowToContentValues(cursor, box);
+            BoxDetailCache.putBox(mBoxId, box);
+            showBox(box);
+        }
+    }
+
+    @Override
+    public void onLoaderReset(Loader<Cursor> loader) {
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        closeCachedObservations();
+    }
+
+    private void closeCachedObservations() {
+        if (mCachedObservations != null) {
+            mCachedObservations.close();
+            mCachedObservations = null;
+        }
+    }
+
+    private void showBox(ContentValues box) {
+        mBoxView.setText(getString(R.string.box_detail_format,
+                valueOf(box, "box_number"),
+                valueOf(box, "box_type"),
+                valueOf(box, "condition"),
+                valueOf(box, "loc_desc"),
+                valueOf(box, "gps_coord")));
+    }
+
+    private static String valueOf(ContentValues values, String key) {
+        String value = values.getAsString(key);
+        return (value == null) ? "" : value;
+    }
 }
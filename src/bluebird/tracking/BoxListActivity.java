@@ -7,9 +7,9 @@ import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
-import android.support.v4.widget.SimpleCursorAdapter;
 import bluebird.tracking.constants.Constants;
 import bluebird.tracking.data.DataURI;
+import bluebird.tracking.data.ObservationEditQueue;
 
 
 /**
@@ -40,11 +40,10 @@ public class BoxListActivity extends FragmentActivity implements
     private boolean mTwoPane;
     
     /*
-     * Used to map data in a database (accessed via a Cursor) to our listview. Basically you
-     * tell how to map the data columns to views id's in the constructor (column A maps to 
-     * R.id.TextViewA...) 
+     * Used to map data in a database (accessed via a Cursor) to our listview. The adapter
+     * knows which columns it needs (BoxCursorAdapter.PROJECTION) and which views they go in.
      */
-    SimpleCursorAdapter mAdapter;
+    BoxCursorAdapter mAdapter;
 
 
     @Override
@@ -52,15 +51,8 @@ public class BoxListActivity extends FragmentActivity implements
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_box_list);
         
-        //instantiate the cursor adapter, telling it which data columns map to which view component id's
-        mAdapter = new SimpleCursorAdapter(
-	            this,                							// Current context
-	            android.R.layout.simple_list_item_activated_1,  // Layout for a single row
-	            null,                							// No Cursor yet
-	            new String[]{"box_number"},        				// Cursor columns to use
-	            new int[]{android.R.id.text1},           		// Layout fields to use
-	            0                   							 // No flags
-	    );
+        //instantiate the cursor adapter, it gets its Cursor once the loader below has finished
+        mAdapter = new BoxCursorAdapter(this);
         
         /*
          * get this activities fragment (which is the ListView) and set the ListAdapter to our newly
@@ -97,6 +89,13 @@ public class BoxListActivity extends FragmentActivity implements
         }
     }
 
+    @Override
+    protected void onStop() {
+        super.onStop();
+        // write any observation edits still queued before the app goes to the background
+        ObservationEditQueue.get(this).flush();
+    }
+
     /**
      * Callback method from {@link BoxListFragment.Callbacks}
      * indicating that the item with the given ID was selected.
@@ -115,6 +114,15 @@ public class BoxListActivity extends FragmentActivity implements
                     .replace(R.id.box_detail_container, fragment)
                     .commit();
 
+            // Stepping through the list usually means going to the box just
+            // before or after this one next, so have those ready to show.
+            long[] neighbours = ((BoxListFragment) getSupportFragmentManager()
+                    .findFragmentById(R.id.box_list))
+                    .getNeighbourIds(Long.parseLong(id));
+            if (neighbours.length > 0) {
+                BoxDetailCache.prefetch(getContentResolver(), neighbours);
+            }
+
         } else {
             // In single-pane mode, simply start the detail activity
             // for the selected item ID.
@@ -139,7 +147,7 @@ public class BoxListActivity extends FragmentActivity implements
 	public Loader<Cursor> onCreateLoader(int loaderID, Bundle bundle) {
 		switch(loaderID){
 		case Constants.DataLoaderID.BOX_LIST_LOADER:
-			return new CursorLoader(this, DataURI.getAllBoxesURI(), null, null,null, null);
+			return new CursorLoader(this, DataURI.getAllBoxesURI(), BoxCursorAdapter.PROJECTION, null, null, null);
 		default:
 			return null;
 		}
@@ -155,8 +163,8 @@ public class BoxListActivity extends FragmentActivity implements
 	 */
 	@Override
 	public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
-		mAdapter.changeCursor(cursor); //we have our data now so we give it to our SimpleCursorAdapter 
-		
+		mAdapter.swapCursor(cursor); //we have our data now so we give it to our adapter, the loader owns (and closes) the cursor
+		((BoxListFragment)getSupportFragmentManager().findFragmentById(R.id.box_list)).onDataLoaded();
 	}
 
 	/*
@@ -168,6 +176,6 @@ public class BoxListActivity extends FragmentActivity implements
 	 */
 	@Override
 	public void onLoaderReset(Loader<Cursor> loader) {
-		mAdapter.changeCursor(null); //clear adapter's reference to the cursor (helps with memory leaks)
+		mAdapter.swapCursor(null); //clear adapter's reference to the cursor (helps with memory leaks)
 	}
 }
@@ -4,8 +4,8 @@ import android.app.Activity;
 import android.os.Bundle;
 import android.support.v4.app.ListFragment;
 import android.view.View;
+import android.widget.ListAdapter;
 import android.widget.ListView;
-import bluebird.tracking.dummy.DummyContent;
 
 /**
  * A list fragment representing a list of Boxes. This fragment
@@ -20,9 +20,9 @@ public class BoxListFragment extends ListFragment{
 	
     /**
      * The serialization (saved instance state) Bundle key representing the
-     * activated item position. Only used on tablets.
+     * activated item's Box _id. Only used on tablets.
      */
-    private static final String STATE_ACTIVATED_POSITION = "activated_position";
+    private static final String STATE_ACTIVATED_ID = "activated_id";
 
     /**
      * The fragment's current callback object, which is notified of list item
@@ -31,9 +31,9 @@ public class BoxListFragment extends ListFragment{
     private Callbacks mCallbacks = sDummyCallbacks;
 
     /**
-     * The current activated item position. Only used on tablets.
+     * The Box _id of the current activated item. Only used on tablets.
      */
-    private int mActivatedPosition = ListView.INVALID_POSITION;
+    private long mActivatedId = ListView.INVALID_ROW_ID;
 
     /**
      * A callback interface that all activities containing this fragment must
@@ -73,10 +73,11 @@ public class BoxListFragment extends ListFragment{
     public void onViewCreated(View view, Bundle savedInstanceState) {
         super.onViewCreated(view, savedInstanceState);
 
-        // Restore the previously serialized activated item position.
+        // Restore the previously serialized activated item. The list may not
+        // have its data yet, see onDataLoaded().
         if (savedInstanceState != null
-                && savedInstanceState.containsKey(STATE_ACTIVATED_POSITION)) {
-            setActivatedPosition(savedInstanceState.getInt(STATE_ACTIVATED_POSITION));
+                && savedInstanceState.containsKey(STATE_ACTIVATED_ID)) {
+            setActivatedId(savedInstanceState.getLong(STATE_ACTIVATED_ID));
         }
     }
 
@@ -105,19 +106,29 @@ public class BoxListFragment extends ListFragment{
         super.onListItemClick(listView, view, position, id);
 
         // Notify the active callbacks interface (the activity, if the
-        // fragment is attached to one) that an item has been selected.
-        mCallbacks.onItemSelected(DummyContent.ITEMS.get(position).id);
+        // fragment is attached to one) that an item has been selected. The
+        // adapter's row IDs are Box _ids.
+        mActivatedId = id;
+        mCallbacks.onItemSelected(Long.toString(id));
     }
 
     @Override
     public void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
-        if (mActivatedPosition != ListView.INVALID_POSITION) {
-            // Serialize and persist the activated item position.
-            outState.putInt(STATE_ACTIVATED_POSITION, mActivatedPosition);
+        if (mActivatedId != ListView.INVALID_ROW_ID) {
+            // Serialize and persist the activated item.
+            outState.putLong(STATE_ACTIVATED_ID, mActivatedId);
         }
     }
 
+    /**
+     * Called by the activity when the list's cursor has been loaded or
+     * reloaded, to check the activated box again at its new position.
+     */
+    public void onDataLoaded() {
+        setActivatedId(mActivatedId);
+    }
+
     /**
      * Turns on activate-on-click mode. When this mode is on, list items will be
      * given the 'activated' state when touched.
@@ -130,13 +141,55 @@ public class BoxListFragment extends ListFragment{
                 : ListView.CHOICE_MODE_NONE);
     }
 
-    private void setActivatedPosition(int position) {
+    /**
+     * Returns the Box _ids of the rows just before and after the row with the
+     * given ID, leaving out any that don't exist.
+     */
+    public long[] getNeighbourIds(long id) {
+        int position = findPosition(id);
+        if (position == ListView.INVALID_POSITION) {
+            return new long[0];
+        }
+
+        ListAdapter adapter = getListAdapter();
+        boolean hasPrevious = position > 0;
+        boolean hasNext = position + 1 < adapter.getCount();
+        long[] ids = new long[(hasPrevious ? 1 : 0) + (hasNext ? 1 : 0)];
+        int i = 0;
+        if (hasPrevious) {
+            ids[i++] = adapter.getItemId(position - 1);
+        }
+        if (hasNext) {
+            ids[i++] = adapter.getItemId(position + 1);
+        }
+        return ids;
+    }
+
+    private void setActivatedId(long id) {
+        mActivatedId = id;
+
+        ListView listView = getListView();
+        int position = findPosition(id);
         if (position == ListView.INVALID_POSITION) {
-            getListView().setItemChecked(mActivatedPosition, false);
+            listView.clearChoices();
         } else {
-            getListView().setItemChecked(position, true);
+            listView.setItemChecked(position, true);
         }
+    }
 
-        mActivatedPosition = position;
+    /*
+     * Finds the position of the row with the given ID in the list's adapter.
+     */
+    private int findPosition(long id) {
+        ListAdapter adapter = getListAdapter();
+        if (id == ListView.INVALID_ROW_ID || adapter == null) {
+            return ListView.INVALID_POSITION;
+        }
+        for (int position = 0; position < adapter.getCount(); position++) {
+            if (adapter.getItemId(position) == id) {
+                return position;
+            }
+        }
+        return ListView.INVALID_POSITION;
     }
 }
@@ -0,0 +1,243 @@
+package bluebird.tracking;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MergeCursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.v4.app.LoaderManager;
+import android.support.v4.content.CursorLoader;
+import android.support.v4.content.Loader;
+import android.support.v4.widget.CursorAdapter;
+import android.util.SparseBooleanArray;
+import android.widget.AbsListView;
+import bluebird.tracking.constants.Constants;
+import bluebird.tracking.data.DataURI;
+
+/**
+ * Feeds a list of observations to a {@link CursorAdapter} one page at a time,
+ * using the keyset paginated observation URIs in {@link DataURI}. The first
+ * page is loaded by {@link #start()}, and each following page is loaded once
+ * the list scrolls to within {@link #PREFETCH_DISTANCE} rows of the end of
+ * what has been loaded so far, so it is usually ready before the user gets
+ * there.
+ * <p>
+ * Each page has its own {@link CursorLoader}, with IDs counting up from
+ * {@link Constants.DataLoaderID#OBSERVATION_PAGE_LOADER}, and the adapter is
+ * given a {@link MergeCursor} over all of them. Register the pager as the
+ * list's {@link AbsListView.OnScrollListener}.
+ * <p>
+ * Observations without an obs_date sort after all the dated ones, and pages
+ * continued from a dated row only have dated rows in them, so once one of
+ * those comes back short the pager goes on to the undated rows, paging them
+ * by _id alone.
+ */
+public class ObservationPager implements
+    AbsListView.OnScrollListener,
+    LoaderManager.LoaderCallbacks<Cursor>
+{
+    /**
+     * Number of observations in each page.
+     */
+    public static final int PAGE_SIZE = 50;
+
+    /**
+     * How close to the end of the loaded rows the list has to scroll before
+     * the next page is loaded.
+     */
+    public static final int PREFETCH_DISTANCE = 20;
+
+    private static final String ARG_AFTER_DATE = "after_date";
+    private static final String ARG_AFTER_ID = "after_id";
+
+    /**
+     * Called each time a page finishes loading, after the adapter has been
+     * given the new cursor.
+     */
+    public interface OnPageLoadedListener {
+        /**
+         * @param page the index of the page, 0 for the first
+         * @param cursor the page's cursor, owned by its loader
+         */
+        void onPageLoaded(int page, Cursor cursor);
+    }
+
+    private final Context mContext;
+    private final LoaderManager mLoaderManager;
+    private final CursorAdapter mAdapter;
+    private final int mBoxId;
+    private final String[] mProjection;
+    private OnPageLoadedListener mListener;
+
+    /*
+     * The cursor of each page loaded so far, in order
+     */
+    private final List<Cursor> mPages = new ArrayList<Cursor>();
+
+    /*
+     * The pages continued from a row without an obs_date, by index
+     */
+    private final SparseBooleanArray mUndatedPages = new SparseBooleanArray();
+
+    /*
+     * The continuation token for the page after the last one loaded, or null
+     * if there are no more pages
+     */
+    private Bundle mNextArgs;
+    private boolean mLoading = false;
+
+    /**
+     * Creates a pager over all observations.
+     */
+    public ObservationPager(Context context, LoaderManager loaderManager, CursorAdapter adapter) {
+        this(context, loaderManager, adapter, -1, null);
+    }
+
+    /**
+     * Creates a pager over the observations of one box.
+     *
+     * @param boxId the _id of the box, or -1 for all observations
+     * @param projection the columns to load, or null for the provider's list
+     *        profile
+     */
+    public ObservationPager(Context context, LoaderManager loaderManager, CursorAdapter adapter,
+            int boxId, String[] projection) {
+        mContext = context;
+        mLoaderManager = loaderManager;
+        mAdapter = adapter;
+        mBoxId = boxId;
+        mProjection = projection;
+    }
+
+    public void setOnPageLoadedListener(OnPageLoadedListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Loads the first page.
+     */
+    public void start() {
+        mLoading = true;
+        mLoaderManager.initLoader(Constants.DataLoaderID.OBSERVATION_PAGE_LOADER, null, this);
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        if (!mLoading && mNextArgs != null
+                && firstVisibleItem + visibleItemCount + PREFETCH_DISTANCE >= totalItemCount) {
+            loadNextPage();
+        }
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+    }
+
+    /*
+     * Starts loading the page after the last one loaded. restartLoader rather
+     * than initLoader, a loader left over from before a configuration change
+     * may have been started with an older token.
+     */
+    private void loadNextPage() {
+        int page = mPages.size();
+        mUndatedPages.put(page, !mNextArgs.containsKey(ARG_AFTER_DATE));
+        mLoading = true;
+        mLoaderManager.restartLoader(Constants.DataLoaderID.OBSERVATION_PAGE_LOADER + page, mNextArgs, this);
+    }
+
+    /*
+     * Works out the continuation token for the page after the given one, from
+     * the obs_date and _id of its last row. Returns null if it was the last
+     * page.
+     */
+    private Bundle getNextArgs(int page, Cursor cursor) {
+        Bundle args = new Bundle();
+        if (cursor.getCount() < PAGE_SIZE) {
+            // The first page and the undated pages run to the end of the
+            // observations, a dated page only to the end of the dated ones
+            if (page == 0 || mUndatedPages.get(page)) {
+                return null;
+            }
+            args.putLong(ARG_AFTER_ID, Long.MAX_VALUE);
+            return args;
+        }
+
+        cursor.moveToLast();
+        int date = cursor.getColumnIndexOrThrow("obs_date");
+        if (!cursor.isNull(date)) {
+            args.putLong(ARG_AFTER_DATE, cursor.getLong(date));
+        }
+        args.putLong(ARG_AFTER_ID, cursor.getLong(cursor.getColumnIndexOrThrow("_id")));
+        return args;
+    }
+
+    @Override
+    public Loader<Cursor> onCreateLoader(int loaderID, Bundle args) {
+        Uri uri;
+        if (args == null) {
+            uri = (mBoxId < 0)
+                    ? DataURI.getObservationsPageURI(PAGE_SIZE)
+                    : DataURI.getBoxObservationsPageURI(mBoxId, PAGE_SIZE);
+        } else {
+            Long afterDate = args.containsKey(ARG_AFTER_DATE) ? args.getLong(ARG_AFTER_DATE) : null;
+            long afterId = args.getLong(ARG_AFTER_ID);
+            uri = (mBoxId < 0)
+                    ? DataURI.getObservationsPageURI(PAGE_SIZE, afterDate, afterId)
+                    : DataURI.getBoxObservationsPageURI(mBoxId, PAGE_SIZE, afterDate, afterId);
+        }
+        return new CursorLoader(mContext, uri, mProjection, null, null, null);
+    }
+
+    @Override
+    public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+        int page = loader.getId() - Constants.DataLoaderID.OBSERVATION_PAGE_LOADER;
+
+        if (page == mPages.size()) {
+            mPages.add(cursor);
+        } else if (page < mPages.size()) {
+            // An earlier page was reloaded because the data changed, so the
+            // tokens the pages after it were loaded with may be out of date.
+            // Drop them and let scrolling load them again.
+            mPages.set(page, cursor);
+            while (mPages.size() > page + 1) {
+                mPages.remove(mPages.size() - 1);
+                mUndatedPages.delete(mPages.size());
+            }
+        } else {
+            return;
+        }
+
+        mLoading = false;
+        mNextArgs = getNextArgs(page, cursor);
+        mAdapter.swapCursor(new MergeCursor(mPages.toArray(new Cursor[mPages.size()])));
+        if (mListener != null) {
+            mListener.onPageLoaded(page, cursor);
+        }
+
+        // Only destroy the stale loaders once the adapter has let go of their
+        // cursors, destroying a loader closes its cursor.
+        for (int i = page + 1; mLoaderManager.getLoader(Constants.DataLoaderID.OBSERVATION_PAGE_LOADER + i) != null; i++) {
+            mLoaderManager.destroyLoader(Constants.DataLoaderID.OBSERVATION_PAGE_LOADER + i);
+        }
+    }
+
+    @Override
+    public void onLoaderReset(Loader<Cursor> loader) {
+        // Pages that were already dropped (see onLoadFinished) aren't used
+        // by the adapter any more.
+        if (loader.getId() - Constants.DataLoaderID.OBSERVATION_PAGE_LOADER >= mPages.size()) {
+            return;
+        }
+
+        // One of the page cursors is about to be closed, so stop using all of
+        // them. The pages are loaded again when the loaders restart.
+        mAdapter.swapCursor(null);
+        mPages.clear();
+        mUndatedPages.clear();
+        mNextArgs = null;
+        mLoading = false;
+    }
+}
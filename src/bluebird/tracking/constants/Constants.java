@@ -20,6 +20,8 @@ public final class Constants {
 		public static final int OBSERVATIONS_LIST_BY_BOX_LOADER = 2;
 		public static final int BOX_LOADER = 3;
 		public static final int OBSERVAITON_LOADER = 4;
+		/* first of the IDs used by ObservationPager, one per page, keep this the highest ID */
+		public static final int OBSERVATION_PAGE_LOADER = 100;
 	}
 
 	/*
@@ -28,5 +30,7 @@ public final class Constants {
 	public final class LogTags{
 		public static final String DATABASE = "Database";
 		public static final String CONTENT_PROVIDER = "Content Provider";
+		public static final String SYNC = "Sync";
+		public static final String EDIT_QUEUE = "Edit Queue";
 	}
 }
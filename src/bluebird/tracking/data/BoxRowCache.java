@@ -0,0 +1,167 @@
+package bluebird.tracking.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.support.v4.util.LruCache;
+
+/*
+ * An LRU cache of whole Box rows keyed by _id, used by DataProvider to answer single box lookups without going
+ * to the database. The Box table is small and read far more often than it's written, so nearly every lookup
+ * after the first can be a hit.
+ *
+ * Writers must call invalidate() for every box they change, both while writing and once the write has
+ * committed. A reader that missed may still be holding the row as it was before the write, so rows are only
+ * put back in the cache if nothing was invalidated since the reader started (see generation()).
+ */
+final class BoxRowCache {
+	private final LruCache<Long, Row> rows;
+
+	/* Counts every invalidation, so readers can tell whether a row they read may already be out of date */
+	private long generation;
+
+	private long hits;
+	private long misses;
+
+	/*
+	 * A cached Box row, every column of the table
+	 */
+	static final class Row{
+		final String[] columns;
+		final Object[] values;
+
+		Row(String[] columns, Object[] values){
+			this.columns = columns;
+			this.values = values;
+		}
+
+		/*
+		 * Builds a cursor over this row with the given columns
+		 *
+		 * @param projection	Columns wanted, null for all of them. Every one must be a column of the row
+		 *
+		 * @return				A one row cursor, or null if the projection asks for anything that isn't a plain
+		 * 						column of the row
+		 */
+		Cursor toCursor(String[] projection){
+			if(projection == null){
+				MatrixCursor c = new MatrixCursor(columns, 1);
+				c.addRow(values);
+				return c;
+			}
+
+			Object[] projected = new Object[projection.length];
+			for(int i = 0; i < projection.length; i++){
+				int col = indexOf(projection[i]);
+				if(col < 0)
+					return null;
+				projected[i] = values[col];
+			}
+			MatrixCursor c = new MatrixCursor(projection, 1);
+			c.addRow(projected);
+			return c;
+		}
+
+		private int indexOf(String column){
+			for(int i = 0; i < columns.length; i++){
+				if(columns[i].equalsIgnoreCase(column))
+					return i;
+			}
+			return -1;
+		}
+	}
+
+	/*
+	 * @param maxRows	Number of rows to keep
+	 */
+	BoxRowCache(int maxRows){
+		rows = new LruCache<Long, Row>(maxRows);
+	}
+
+	/*
+	 * Looks up a box. The caller counts whether the lookup was a hit, see countHit()
+	 *
+	 * @param boxId	_id of the box
+	 *
+	 * @return		The cached row, or null if it isn't cached
+	 */
+	synchronized Row get(long boxId){
+		return rows.get(boxId);
+	}
+
+	/*
+	 * Counts a lookup
+	 *
+	 * @param hit	true if the lookup was answered from the cache, false if it went to the database
+	 */
+	synchronized void countHit(boolean hit){
+		if(hit)
+			hits++;
+		else
+			misses++;
+	}
+
+	/*
+	 * Caches a box read from the database, unless a box was invalidated after the read started
+	 *
+	 * @param boxId			_id of the box
+	 * @param row			The row read
+	 * @param generation	What generation() returned before the row was read
+	 */
+	synchronized void put(long boxId, Row row, long generation){
+		if(generation == this.generation)
+			rows.put(boxId, row);
+	}
+
+	synchronized void invalidate(long boxId){
+		generation++;
+		rows.remove(boxId);
+	}
+
+	synchronized long generation(){
+		return generation;
+	}
+
+	synchronized long hits(){
+		return hits;
+	}
+
+	synchronized long misses(){
+		return misses;
+	}
+
+	synchronized int size(){
+		return rows.size();
+	}
+
+	/*
+	 * Reads the current row of a cursor over the Box table
+	 *
+	 * @param c	Cursor positioned on the row, with every column of the table
+	 *
+	 * @return	The row
+	 */
+	static Row readRow(Cursor c){
+		String[] columns = c.getColumnNames();
+		Object[] values = new Object[columns.length];
+		for(int i = 0; i < columns.length; i++){
+			switch(c.getType(i)){
+			case Cursor.FIELD_TYPE_NULL:
+				values[i] = null;
+				break;
+			case Cursor.FIELD_TYPE_INTEGER:
+				values[i] = c.getLong(i);
+				break;
+			case Cursor.FIELD_TYPE_FLOAT:
+				values[i] = c.getDouble(i);
+				break;
+			case Cursor.FIELD_TYPE_BLOB:
+				values[i] = c.getBlob(i);
+				break;
+			default:
+				values[i] = c.getString(i);
+				break;
+			}
+		}
+		return new Row(columns, values);
+	}
+}
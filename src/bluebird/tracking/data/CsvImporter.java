@@ -0,0 +1,281 @@
+package bluebird.tracking.data;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+import bluebird.tracking.constants.Constants;
+
+/*
+ * Imports a box inventory or historical observations from a CSV file. The first record of the file is a header
+ * naming the column each field goes in. The file is parsed as a stream and every row is validated; valid rows
+ * are inserted through DataProvider.bulkInsert() in batches of BATCH_SIZE, each batch in its own transaction, so
+ * memory use stays flat however big the file is.
+ *
+ * Observation files can give the box of each observation by its box_number instead of its box_id, the box
+ * numbers are looked up once before the import starts. The extra columns of an observation export (see
+ * ObservationExporter) are ignored, so an export can be imported again; each row gets a new _id.
+ *
+ * Rows that fail validation are skipped and counted, the import carries on. If a batch fails to insert the
+ * import stops with the batches before it committed; the Result, and the last call to the ProgressListener, say
+ * how many records were consumed by committed batches. Passing that number back as skipRecords resumes the import
+ * of the same file where it stopped.
+ *
+ * Does database I/O, so it must not be run on the UI thread.
+ */
+public class CsvImporter {
+	/* Number of rows inserted in each transaction */
+	public static final int BATCH_SIZE = 500;
+
+	/* Number of rejected rows logged with the reason, the rest are only counted */
+	private static final int MAX_LOGGED_REJECTS = 20;
+
+	private static final Set<String> BOX_COLUMNS = new HashSet<String>(Arrays.asList(
+			"box_number", "box_type", "gps_coord", "condition", "loc_desc"));
+
+	private static final Set<String> OBSERVATION_COLUMNS = new HashSet<String>(Arrays.asList(
+			"obs_date", "problem", "prob_act", "species", "nest_perc", "eggs_laid", "eggs_missing", "eggs_destroyed",
+			"eggs_non_viable", "orig_nestlings", "nstlng_miss", "nstlng_dead", "nstlng_killed", "nstlng_age",
+			"comments", "temp", "first_egg_dt", "last_egg_dt", "do_not_mon_dt", "est_hatch_dt", "est_fledge_dt",
+			"act_hatch_date", "act_fledge_date", "fledged", "session_desc", "box_id", "box_number"));
+
+	/* Columns written by ObservationExporter that aren't imported, the observation's _id and its box's columns */
+	private static final Set<String> EXPORT_ONLY_COLUMNS = new HashSet<String>(Arrays.asList(
+			"_id", "box_type", "loc_desc", "gps_coord"));
+
+	private static final Set<String> INTEGER_COLUMNS = new HashSet<String>(Arrays.asList(
+			"eggs_laid", "eggs_missing", "eggs_destroyed", "eggs_non_viable", "orig_nestlings", "nstlng_miss",
+			"nstlng_dead", "nstlng_killed", "nstlng_age", "temp", "fledged", "box_id"));
+
+	private static final Set<String> DATE_COLUMNS = new HashSet<String>(Arrays.asList(EpochDays.OBSERVATION_DATE_COLUMNS));
+
+	private static final Pattern INTEGER = Pattern.compile("-?\\d{1,18}");
+	private static final Pattern DATE = Pattern.compile("\\d{4}-(0[1-9]|1[0-2])-(0[1-9]|[12]\\d|3[01])");
+
+	/*
+	 * What an import file holds
+	 */
+	public enum Kind{
+		BOXES,
+		OBSERVATIONS
+	}
+
+	/*
+	 * Told about the progress of an import after each batch commits
+	 */
+	public interface ProgressListener{
+		/*
+		 * @param result	Totals so far, recordsConsumed is where to resume from if the import stops after this
+		 */
+		void onProgress(Result result);
+	}
+
+	/*
+	 * Totals of an import
+	 */
+	public static final class Result{
+		/* Data records (not counting the header) consumed by committed batches, including skipped ones */
+		public int recordsConsumed;
+		public int rowsImported;
+		public int rowsRejected;
+		/* Whether the whole file was imported, false if a batch failed and the import stopped */
+		public boolean complete;
+	}
+
+	private final ContentResolver resolver;
+	private final Kind kind;
+	private final ProgressListener listener;
+
+	/* box_number to _id, only loaded for observation files with a box_number column */
+	private Map<String, Long> boxIds;
+
+	/*
+	 * @param resolver	ContentResolver used to insert the rows
+	 * @param kind		What the file holds
+	 * @param listener	Told about progress after each batch, may be null
+	 */
+	public CsvImporter(ContentResolver resolver, Kind kind, ProgressListener listener){
+		this.resolver = resolver;
+		this.kind = kind;
+		this.listener = listener;
+	}
+
+	/*
+	 * Imports a CSV file
+	 *
+	 * @param input			The file, closed once the import is done
+	 * @param skipRecords	Data records to skip before importing, the recordsConsumed of an earlier import of the
+	 * 						same file that stopped part way, or 0 to import the whole file
+	 *
+	 * @return				Totals of the import, counting the skipped records as consumed
+	 *
+	 * @throws IOException	If the file can't be read or its header names a column we don't know, in which case
+	 * 						nothing is imported past the last committed batch
+	 */
+	public Result importFrom(Reader input, int skipRecords) throws IOException{
+		CsvReader csv = new CsvReader(new BufferedReader(input, 64 * 1024));
+		Result result = new Result();
+		try{
+			List<String> header = csv.readRecord();
+			if(header == null)
+				throw new IOException("Empty import file");
+			String[] columns = readHeader(header);
+			Uri uri = (kind == Kind.BOXES) ? DataURI.getAllBoxesURI() : DataURI.getAllObservationsURI();
+
+			ContentValues[] batch = new ContentValues[BATCH_SIZE];
+			int batchSize = 0;
+			int batchRecords = 0;
+			int batchRejected = 0;
+			List<String> record;
+			while((record = csv.readRecord()) != null){
+				if(result.recordsConsumed < skipRecords){
+					result.recordsConsumed++;
+					continue;
+				}
+
+				batchRecords++;
+				ContentValues row = new ContentValues(columns.length);
+				String error = readRow(columns, record, row);
+				if(error != null){
+					if(result.rowsRejected + batchRejected < MAX_LOGGED_REJECTS)
+						Log.w(Constants.LogTags.DATABASE, "Import skipped line " + csv.getRecordLine() + ": " + error);
+					batchRejected++;
+				} else
+					batch[batchSize++] = row;
+
+				if(batchRecords == BATCH_SIZE){
+					if(!commit(uri, batch, batchSize, batchRecords, batchRejected, result))
+						return result;
+					batchSize = batchRecords = batchRejected = 0;
+				}
+			}
+			if(batchRecords > 0 && !commit(uri, batch, batchSize, batchRecords, batchRejected, result))
+				return result;
+
+			result.complete = true;
+			return result;
+		} finally{
+			csv.close();
+		}
+	}
+
+	/*
+	 * Inserts a batch in one transaction and counts it into the result
+	 *
+	 * @return	false if the batch failed and the import should stop
+	 */
+	private boolean commit(Uri uri, ContentValues[] batch, int batchSize, int batchRecords, int batchRejected, Result result){
+		try{
+			int inserted = resolver.bulkInsert(uri, (batchSize == batch.length) ? batch : Arrays.copyOf(batch, batchSize));
+			result.rowsImported += inserted;
+			result.rowsRejected += batchRejected + (batchSize - inserted);
+			result.recordsConsumed += batchRecords;
+		} catch(RuntimeException e){
+			Log.e(Constants.LogTags.DATABASE, "Import stopped after " + result.recordsConsumed + " records: " + e.toString());
+			return false;
+		}
+		Arrays.fill(batch, null);
+		if(listener != null)
+			listener.onProgress(result);
+		return true;
+	}
+
+	/*
+	 * Checks the header names columns of the table being imported
+	 *
+	 * @return	The column of each field, null for the EXPORT_ONLY_COLUMNS of an observation file
+	 */
+	private String[] readHeader(List<String> header) throws IOException{
+		Set<String> allowed = (kind == Kind.BOXES) ? BOX_COLUMNS : OBSERVATION_COLUMNS;
+		String[] columns = new String[header.size()];
+		for(int i = 0; i < columns.length; i++){
+			String column = header.get(i).trim().toLowerCase();
+			if(kind == Kind.OBSERVATIONS && EXPORT_ONLY_COLUMNS.contains(column))
+				continue;
+			if(!allowed.contains(column))
+				throw new IOException("Unknown column in import header: " + header.get(i));
+			columns[i] = column;
+		}
+
+		if(kind == Kind.OBSERVATIONS && Arrays.asList(columns).contains("box_number"))
+			boxIds = loadBoxIds();
+		return columns;
+	}
+
+	/*
+	 * Validates a record and copies it into a row to insert. Every column of the header is put in the row, empty
+	 * fields as null, so every row has the same columns and bulkInsert() can reuse its compiled statement
+	 *
+	 * @return	null if the row is valid, otherwise why it isn't
+	 */
+	private String readRow(String[] columns, List<String> record, ContentValues row){
+		if(record.size() != columns.length)
+			return "expected " + columns.length + " fields, found " + record.size();
+
+		for(int i = 0; i < columns.length; i++){
+			String column = columns[i];
+			if(column == null)
+				continue;
+			String value = record.get(i).trim();
+			if(value.length() == 0){
+				//box_number isn't a column of Observation, and an empty box_id mustn't undo a box_number
+				if(kind == Kind.BOXES || !(column.equals("box_number") || row.containsKey(column)))
+					row.putNull(column);
+				continue;
+			}
+
+			if(INTEGER_COLUMNS.contains(column)){
+				if(!INTEGER.matcher(value).matches())
+					return column + " isn't a whole number: " + value;
+				row.put(column, Long.parseLong(value));
+			} else if(DATE_COLUMNS.contains(column)){
+				//stored as epoch days, parse() also catches days the month doesn't have
+				try{
+					if(!DATE.matcher(value).matches())
+						throw new IllegalArgumentException();
+					row.put(column, EpochDays.parse(value));
+				} catch(IllegalArgumentException e){
+					return column + " isn't a YYYY-MM-DD date: " + value;
+				}
+			} else if(column.equals("box_number") && kind == Kind.OBSERVATIONS){
+				Long boxId = boxIds.get(value);
+				if(boxId == null)
+					return "no box numbered " + value;
+				row.put("box_id", boxId);
+			} else
+				row.put(column, value);
+		}
+
+		if(kind == Kind.OBSERVATIONS && row.get("box_id") == null)
+			return "no box_id or box_number";
+		return null;
+	}
+
+	private Map<String, Long> loadBoxIds(){
+		Map<String, Long> ids = new HashMap<String, Long>();
+		Cursor c = resolver.query(DataURI.getAllBoxesURI(), new String[] {"_id", "box_number"}, null, null, null);
+		if(c == null)
+			return ids;
+		try{
+			while(c.moveToNext()){
+				if(!c.isNull(1))
+					ids.put(c.getString(1).trim(), c.getLong(0));
+			}
+		} finally{
+			c.close();
+		}
+		return ids;
+	}
+}
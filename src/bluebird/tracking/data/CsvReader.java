@@ -0,0 +1,118 @@
+package bluebird.tracking.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Reads CSV records (RFC 4180) one at a time from a stream. Fields may be quoted, and quoted fields may hold
+ * commas, doubled quotes and line breaks. Lines may end in \r\n or \n.
+ *
+ * 		CsvReader csv = new CsvReader(reader);
+ * 		List<String> record;
+ * 		while((record = csv.readRecord()) != null)
+ * 			...
+ */
+final class CsvReader implements Closeable {
+	private static final int EOF = -1;
+
+	private final Reader reader;
+	private final StringBuilder field = new StringBuilder();
+	private final List<String> record = new ArrayList<String>();
+
+	/* A character read ahead of time that hasn't been processed yet, or EOF if there isn't one */
+	private int pushedBack = EOF;
+
+	/* Line the last record read started on, counting from 1 */
+	private int recordLine;
+	private int line = 1;
+
+	/*
+	 * @param reader	Reader for the CSV, should be buffered
+	 */
+	CsvReader(Reader reader){
+		this.reader = reader;
+	}
+
+	/*
+	 * Reads the next record. The list returned is reused by the next call
+	 *
+	 * @return	The record's fields, or null at the end of the stream. A blank line is a record with one empty field
+	 */
+	List<String> readRecord() throws IOException{
+		record.clear();
+		field.setLength(0);
+		recordLine = line;
+
+		int c = read();
+		if(c == EOF)
+			return null;
+
+		boolean quoted = false;
+		while(true){
+			if(quoted){
+				if(c == EOF)
+					throw new IOException("Unterminated quoted field starting on line " + recordLine);
+				if(c == '"'){
+					if(peek() == '"'){
+						read();
+						field.append('"');
+					} else
+						quoted = false;
+				} else
+					field.append((char)c);
+			} else if(c == '"' && field.length() == 0){
+				quoted = true;
+			} else if(c == ','){
+				endField();
+			} else if(c == '\r' || c == '\n' || c == EOF){
+				if(c == '\r' && peek() == '\n')
+					read();
+				endField();
+				return record;
+			} else
+				field.append((char)c);
+			c = read();
+		}
+	}
+
+	/*
+	 * @return	Line the last record read started on, counting from 1
+	 */
+	int getRecordLine(){
+		return recordLine;
+	}
+
+	/*
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException{
+		reader.close();
+	}
+
+	private void endField(){
+		record.add(field.toString());
+		field.setLength(0);
+	}
+
+	private int read() throws IOException{
+		int c;
+		if(pushedBack != EOF){
+			c = pushedBack;
+			pushedBack = EOF;
+		} else
+			c = reader.read();
+		if(c == '\n')
+			line++;
+		return c;
+	}
+
+	private int peek() throws IOException{
+		if(pushedBack == EOF)
+			pushedBack = reader.read();
+		return pushedBack;
+	}
+}
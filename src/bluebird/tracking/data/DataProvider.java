@@ -1,14 +1,47 @@
 package bluebird.tracking.data;
 
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.content.pm.ApplicationInfo;
+import android.database.AbstractWindowedCursor;
 import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
+import android.util.SparseArray;
 import bluebird.tracking.constants.Constants;
 
 /*
@@ -25,22 +58,352 @@ public class DataProvider extends ContentProvider {
 	/* Used to match URI requests we get to request we know we can handle */
 	private static final UriMatcher uriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 	
-	/* DatabaseHelper for accessing our database */
+	/* The path each route was added with, used to name the route in the metrics */
+	private static final SparseArray<String> routeNames = new SparseArray<String>();
+	
+	/* DatabaseHelper for accessing our database. All reads and writes share the one SQLiteDatabase it opens, which
+	 * runs in write-ahead logging mode so reads on loader threads aren't blocked by a write in progress */
 	private DatabaseHelper db;
 	
+	/* URIs waiting to be notified once the batch running on the current thread ends, null outside of a batch */
+	private final ThreadLocal<Set<Uri>> pendingNotifications = new ThreadLocal<Set<Uri>>();
+	
+	/* Box rows read by the BOX_ID route, see queryCachedBox() */
+	private final BoxRowCache boxCache = new BoxRowCache(BOX_CACHE_SIZE);
+	
+	/* _ids of the boxes changed by the batch running on the current thread, invalidated again once it ends */
+	private final ThreadLocal<Set<Long>> pendingBoxInvalidations = new ThreadLocal<Set<Long>>();
+	
+	/* Per route counters, see query() and the write methods */
+	private final ProviderMetrics metrics = new ProviderMetrics();
+	
+	/* Queries over the slow query threshold, see METHOD_SET_SLOW_QUERY_THRESHOLD */
+	private final SlowQueryLog slowQueries = new SlowQueryLog();
+	
+	/* Compiled statements for the scalar lookups, keyed by their SQL, see getStatement() */
+	private final Map<String, SQLiteStatement> statements = new HashMap<String, SQLiteStatement>();
+	
 	private static final int BOXES = 100;
 	private static final int BOX_ID = 101;
 	private static final int OBSERVATIONS = 102;
 	private static final int OBSERVATIONS_ID = 103;
 	private static final int OBSERVATIONS_BOX_ID = 104;
+	private static final int BOXES_WITHIN = 105;
+	private static final int BOXES_NEAREST = 106;
+	private static final int OBSERVATIONS_PAGE = 107;
+	private static final int OBSERVATIONS_BOX_ID_PAGE = 108;
+	private static final int SEASON_SUMMARIES = 109;
+	private static final int SEASON_SUMMARIES_BOX_ID = 110;
+	private static final int SEARCH = 111;
+	private static final int CHANGES = 112;
+	private static final int EXPORT_OBSERVATIONS = 113;
+	private static final int OBSERVATIONS_RANGE = 114;
+	private static final int OBSERVATIONS_BOX_ID_RANGE = 115;
+	
+	/* Half the width, in degrees of latitude, of the first area searched for the nearest boxes, about 5.5km */
+	private static final double NEAREST_INITIAL_RADIUS = 0.05;
+	private static final int NEAREST_DEFAULT_LIMIT = 10;
+	private static final int DEFAULT_PAGE_SIZE = 50;
+	private static final int SEARCH_DEFAULT_LIMIT = 50;
+	private static final int BOX_CACHE_SIZE = 256;
+	
+	/* Projection of the BOXES route for the box list: each box with the obs_date (an epoch day), nest stage (one of
+	 * the NEST_STAGE_* values) and problem of its latest observation, which triggers keep on the Box row (see
+	 * assets/migrations/10.sql), so the list reads nothing but Box. The last_* columns are null for a box that
+	 * has never been checked */
+	public static final String[] BOX_LIST_PROJECTION = new String[] {"_id", "box_number", "condition", "last_obs_date",
+		"last_nest_stage", "last_problem"};
+	public static final int NEST_STAGE_EMPTY = 0;
+	public static final int NEST_STAGE_BUILDING = 1;
+	public static final int NEST_STAGE_EGGS = 2;
+	public static final int NEST_STAGE_NESTLINGS = 3;
+	public static final int NEST_STAGE_FLEDGED = 4;
+	
+	/* Observation columns the observation_latest_update trigger of assets/migrations/10.sql watches, keep the two
+	 * in step. An update writing any of them can change the last_* columns of a box, so the box list is notified */
+	private static final String[] LATEST_OBSERVATION_COLUMNS = new String[] {"box_id", "obs_date", "problem",
+		"nest_perc", "eggs_laid", "orig_nestlings", "fledged"};
+	
+	/* Named projections ("profiles") of each kind of route, used when a query passes no projection, see
+	 * DataURI.PARAM_PROFILE. The list profile is the few columns a row of a list shows, the detail profile what a
+	 * screen showing one row needs and the export profile every column the user entered, for the export and sync.
+	 * Routes returning many rows default to the list profile and the BOX_ID and OBSERVATIONS_ID routes to detail */
+	public static final String[] BOX_DETAIL_PROJECTION = new String[] {"_id", "box_number", "box_type", "gps_coord",
+		"condition", "loc_desc", "latitude", "longitude", "last_obs_date", "last_nest_stage", "last_problem"};
+	public static final String[] BOX_EXPORT_PROJECTION = new String[] {"_id", "box_number", "box_type", "gps_coord",
+		"condition", "loc_desc"};
+	public static final String[] OBSERVATION_LIST_PROJECTION = new String[] {"_id", "box_id", "obs_date", "species",
+		"problem"};
+	public static final String[] OBSERVATION_EXPORT_PROJECTION = new String[] {"_id", "obs_date", "problem", "prob_act",
+		"species", "nest_perc", "eggs_laid", "eggs_missing", "eggs_destroyed", "eggs_non_viable", "orig_nestlings",
+		"nstlng_miss", "nstlng_dead", "nstlng_killed", "nstlng_age", "comments", "temp", "first_egg_dt", "last_egg_dt",
+		"do_not_mon_dt", "est_hatch_dt", "est_fledge_dt", "act_hatch_date", "act_fledge_date", "fledged",
+		"session_desc", "box_id"};
+	public static final String[] BOX_OBSERVATION_LIST_PROJECTION = new String[] {"_id", "obs_date", "species", "problem"};
+	public static final String[] SUMMARY_LIST_PROJECTION = new String[] {"box_id", "season", "observation_count",
+		"eggs_laid", "fledged"};
+	public static final String[] SUMMARY_EXPORT_PROJECTION = new String[] {"box_id", "season", "observation_count",
+		"eggs_laid", "eggs_missing", "eggs_destroyed", "eggs_non_viable", "orig_nestlings", "nestlings_lost", "fledged"};
+	
+	/* Columns of the cursor returned for a search, see querySearch() */
+	public static final String[] SEARCH_COLUMNS = new String[] {"_id", "kind", "ref_id", "box_id", "snippet", "rank"};
+	public static final String SEARCH_KIND_BOX = "box";
+	public static final String SEARCH_KIND_OBSERVATION = "observation";
+	
+	/* call() method returning the Box row cache's counters in a Bundle, under the BOX_CACHE_* keys */
+	public static final String METHOD_BOX_CACHE_STATS = "box_cache_stats";
+	public static final String BOX_CACHE_HITS = "hits";
+	public static final String BOX_CACHE_MISSES = "misses";
+	public static final String BOX_CACHE_SIZE_KEY = "size";
+	
+	/* call() methods answering a single value about the box whose _id is given as the arg, returned in a Bundle
+	 * under SCALAR_VALUE: the number of observations of the box (a long), the obs_date of its latest observation
+	 * (a YYYY-MM-DD String, null if it has none) and whether the box exists (a boolean) */
+	public static final String METHOD_BOX_OBSERVATION_COUNT = "box_observation_count";
+	public static final String METHOD_BOX_LATEST_OBS_DATE = "box_latest_obs_date";
+	public static final String METHOD_BOX_EXISTS = "box_exists";
+	public static final String SCALAR_VALUE = "value";
+	
+	/* call() method returning the counters DataProvider keeps for each operation on each route, a Bundle of
+	 * Bundles keyed by operation and route ("query boxes", "update observation/#"...), each with the METRIC_*
+	 * keys. With METRICS_FORMAT_TEXT as the arg it returns a printed report instead, under METRICS_TEXT: a table
+	 * of the same counters, the box cache's counters and the slow query log */
+	public static final String METHOD_METRICS = "metrics";
+	public static final String METRICS_FORMAT_TEXT = "text";
+	public static final String METRICS_TEXT = "text";
+	public static final String METHOD_RESET_METRICS = "reset_metrics";
+	public static final String METRIC_CALLS = "calls";
+	public static final String METRIC_ERRORS = "errors";
+	public static final String METRIC_ROWS = "rows";
+	public static final String METRIC_WINDOW_FILLS = "window_fills";
+	public static final String METRIC_TOTAL_MS = "total_ms";
+	public static final String METRIC_MAX_MS = "max_ms";
+	public static final String METRIC_LATENCY_HISTOGRAM = "latency_histogram";
+	public static final String METRIC_LATENCY_BUCKET_MS = "latency_bucket_ms";
+	
+	/* call() methods of the slow query log. METHOD_SET_SLOW_QUERY_THRESHOLD takes the threshold in milliseconds as
+	 * its arg, or a negative number (or no arg) to turn the log off; it's on at SLOW_QUERY_DEFAULT_THRESHOLD_MS in
+	 * debuggable builds and off otherwise. METHOD_SLOW_QUERIES returns the last SlowQueryLog.CAPACITY queries that
+	 * took longer, oldest first, as Bundles with the SLOW_QUERY_* keys in an ArrayList under SLOW_QUERIES. Also
+	 * printed in the METHOD_METRICS text report */
+	public static final String METHOD_SET_SLOW_QUERY_THRESHOLD = "set_slow_query_threshold";
+	public static final String METHOD_SLOW_QUERIES = "slow_queries";
+	public static final String METHOD_CLEAR_SLOW_QUERIES = "clear_slow_queries";
+	public static final long SLOW_QUERY_DEFAULT_THRESHOLD_MS = 50;
+	public static final String SLOW_QUERIES = "slow_queries";
+	public static final String SLOW_QUERY_TIME = "time";
+	public static final String SLOW_QUERY_OPERATION = "operation";
+	public static final String SLOW_QUERY_MS = "ms";
+	public static final String SLOW_QUERY_SQL = "sql";
+	public static final String SLOW_QUERY_ARGS = "args";
+	public static final String SLOW_QUERY_PLAN = "plan";
+	
+	/* call() method moving the observations of closed monitoring sessions (a session_desc other than
+	 * SESSION_IN_PROGRESS, observations without one stay where they are) made before a date into the archive, in
+	 * one transaction. The arg is the epoch day (see
+	 * EpochDays) of the date, or null for the start of the current year. Returns the number of observations moved
+	 * in a Bundle, under SCALAR_VALUE.
+	 * 
+	 * Archived observations are left out of the OBSERVATIONS and OBSERVATIONS_BOX_ID routes, which the current
+	 * season's screens read, and are read only: updating or deleting one by OBSERVATIONS_ID throws
+	 * IllegalArgumentException. The page, date range and OBSERVATIONS_ID routes, the search, the
+	 * season summaries, the scalar lookups and the export read both, see assets/migrations/9.sql */
+	public static final String METHOD_ARCHIVE_OBSERVATIONS = "archive_observations";
+	public static final String SESSION_IN_PROGRESS = "In Progress";
+	
+	/* Copies the observations being archived (see assets/migrations/9.sql) into ObservationArchive. The columns are
+	 * listed, like the ObservationAll view's, so the copy doesn't depend on the two tables declaring them in the same
+	 * order, and fails rather than losing a column added to Observation but not to the archive */
+	private static final String ARCHIVE_MOVE_SQL = "INSERT INTO ObservationArchive(_id, obs_date, problem, prob_act, " +
+			"species, nest_perc, eggs_laid, eggs_missing, eggs_destroyed, eggs_non_viable, orig_nestlings, nstlng_miss, " +
+			"nstlng_dead, nstlng_killed, nstlng_age, comments, temp, first_egg_dt, last_egg_dt, do_not_mon_dt, " +
+			"est_hatch_dt, est_fledge_dt, act_hatch_date, act_fledge_date, fledged, session_desc, box_id) " +
+			"SELECT _id, obs_date, problem, prob_act, species, nest_perc, eggs_laid, eggs_missing, eggs_destroyed, " +
+			"eggs_non_viable, orig_nestlings, nstlng_miss, nstlng_dead, nstlng_killed, nstlng_age, comments, temp, " +
+			"first_egg_dt, last_egg_dt, do_not_mon_dt, est_hatch_dt, est_fledge_dt, act_hatch_date, act_fledge_date, " +
+			"fledged, session_desc, box_id FROM Observation WHERE _id IN (SELECT observation_id FROM ArchiveMove)";
+	
+	private static final String OBSERVATION_COUNT_SQL = "SELECT (SELECT COUNT(*) FROM Observation WHERE box_id = ?1) + " +
+			"(SELECT COUNT(*) FROM ObservationArchive WHERE box_id = ?1)";
+	private static final String LATEST_OBS_DATE_SQL = "SELECT MAX(latest) FROM (SELECT MAX(obs_date) AS latest FROM Observation WHERE box_id = ?1 " +
+			"UNION ALL SELECT MAX(obs_date) FROM ObservationArchive WHERE box_id = ?1)";
+	private static final String BOX_EXISTS_SQL = "SELECT EXISTS (SELECT 1 FROM Box WHERE _id = ?)";
+	
+	/* Change notifications
+	 * 
+	 * Cursors aren't registered for notifications on the URI they were queried with but on a "watch" URI for the
+	 * data they hold (see query()), arranged so that notifying one of them reaches exactly the cursors affected:
+	 * 
+	 * 		/boxes						every query over the Box table (list, within, nearest)
+	 * 		/box/N						box N
+	 * 		/box/N/observations			the observations of box N, with or without the box's columns
+	 * 		/box/N/summaries			the season summaries of box N
+	 * 		/observations				every query over all observations
+	 * 		/observation/N				observation N
+	 * 		/summaries					every query over all season summaries
+	 * 		/search						every search
+	 * 
+	 * A notification also reaches every cursor registered on a URI below it, so a change to box N reaches the
+	 * cursors on its observations (which include the box's columns) without going to the observations of every
+	 * other box, and notifying /box or /observation reaches every single box or observation.
+	 * 
+	 * Every write runs as a batch (see beginBatch()), so a write touching many rows, or many writes inside
+	 * applyBatch(), send one notification per URI once their transaction commits.
+	 */
+	private static final Uri BOX_WATCH_URI = Uri.parse("content://" + AUTHORITY + "/box");
+	private static final Uri OBSERVATION_WATCH_URI = Uri.parse("content://" + AUTHORITY + "/observation");
+	private static final Uri SUMMARIES_WATCH_URI = Uri.parse("content://" + AUTHORITY + "/summaries");
+	private static final Uri SEARCH_WATCH_URI = Uri.parse("content://" + AUTHORITY + "/search");
+	
+	/* Above this many rows, a write notifies every single row cursor instead of each of the rows it changed */
+	private static final int NOTIFY_ROW_LIMIT = 100;
+	
+	/* The projections of each query route over a table, see getProjection() */
+	private static final SparseArray<Projections> routeProjections = new SparseArray<Projections>();
+	
+	/* The columns each query route can be filtered on, keyed by the query parameter of the filter, and the filter
+	 * parameters of every route, see getFilterWhere() */
+	private static final SparseArray<Map<String, String>> routeFilters = new SparseArray<Map<String, String>>();
+	private static final String[] FILTER_PARAMS = new String[] {DataURI.PARAM_TRAIL, DataURI.PARAM_BOX_TYPE,
+		DataURI.PARAM_CONDITION, DataURI.PARAM_SPECIES};
+	
+	/* The columns each query route can be sorted on, keyed by the name used in a sort, see getSortOrder() */
+	private static final SparseArray<Map<String, String>> routeSorts = new SparseArray<Map<String, String>>();
+	
+	/*
+	 * The columns callers may ask a route for, each mapped to the SQL reading it (with an alias where the route
+	 * joins tables), and the route's profiles
+	 */
+	private static final class Projections{
+		final HashMap<String, String> columns = new HashMap<String, String>();
+		final String[] list;
+		final String[] detail;
+		final String[] export;
+		final String defaultProfile;
+		
+		Projections(String[] list, String[] detail, String[] export, String defaultProfile){
+			this.list = list;
+			this.detail = detail;
+			this.export = export;
+			this.defaultProfile = defaultProfile;
+		}
+		
+		/*
+		 * Allows the given columns of a table
+		 * 
+		 * @param alias		The table's alias in the route's FROM clause, or null if the route reads just the table
+		 */
+		Projections allow(String alias, String[] names){
+			for(String name : names)
+				columns.put(name, (alias == null) ? name : alias + "." + name + " AS " + name);
+			return this;
+		}
+	}
+	
 	
 	
 	static{
-		uriMatcher.addURI(AUTHORITY, "boxes", BOXES);
-		uriMatcher.addURI(AUTHORITY, "box/#", BOX_ID);
-		uriMatcher.addURI(AUTHORITY, "observations", OBSERVATIONS);
-		uriMatcher.addURI(AUTHORITY, "observation/#", OBSERVATIONS_ID);
-		uriMatcher.addURI(AUTHORITY, "observations/box/#", OBSERVATIONS_BOX_ID);
+		addRoute("boxes", BOXES);
+		addRoute("box/#", BOX_ID);
+		addRoute("observations", OBSERVATIONS);
+		addRoute("observation/#", OBSERVATIONS_ID);
+		addRoute("observations/box/#", OBSERVATIONS_BOX_ID);
+		addRoute("boxes/within", BOXES_WITHIN);
+		addRoute("boxes/nearest", BOXES_NEAREST);
+		addRoute("observations/page", OBSERVATIONS_PAGE);
+		addRoute("observations/box/#/page", OBSERVATIONS_BOX_ID_PAGE);
+		addRoute("summaries", SEASON_SUMMARIES);
+		addRoute("summaries/box/#", SEASON_SUMMARIES_BOX_ID);
+		addRoute("search", SEARCH);
+		addRoute("changes", CHANGES);
+		addRoute("export/observations", EXPORT_OBSERVATIONS);
+		addRoute("observations/range", OBSERVATIONS_RANGE);
+		addRoute("observations/box/#/range", OBSERVATIONS_BOX_ID_RANGE);
+		
+		Projections boxes = new Projections(BOX_LIST_PROJECTION, BOX_DETAIL_PROJECTION, BOX_EXPORT_PROJECTION,
+				DataURI.PROFILE_LIST).allow(null, BOX_DETAIL_PROJECTION);
+		routeProjections.put(BOXES, boxes);
+		routeProjections.put(BOXES_WITHIN, boxes);
+		routeProjections.put(BOXES_NEAREST, boxes);
+		routeProjections.put(BOX_ID, new Projections(BOX_LIST_PROJECTION, BOX_DETAIL_PROJECTION, BOX_EXPORT_PROJECTION,
+				DataURI.PROFILE_DETAIL).allow(null, BOX_DETAIL_PROJECTION));
+		
+		Projections observations = new Projections(OBSERVATION_LIST_PROJECTION, OBSERVATION_EXPORT_PROJECTION,
+				OBSERVATION_EXPORT_PROJECTION, DataURI.PROFILE_LIST).allow(null, OBSERVATION_EXPORT_PROJECTION);
+		routeProjections.put(OBSERVATIONS, observations);
+		routeProjections.put(OBSERVATIONS_PAGE, observations);
+		routeProjections.put(OBSERVATIONS_BOX_ID_PAGE, observations);
+		routeProjections.put(OBSERVATIONS_RANGE, observations);
+		routeProjections.put(OBSERVATIONS_BOX_ID_RANGE, observations);
+		routeProjections.put(OBSERVATIONS_ID, new Projections(OBSERVATION_LIST_PROJECTION, OBSERVATION_EXPORT_PROJECTION,
+				OBSERVATION_EXPORT_PROJECTION, DataURI.PROFILE_DETAIL).allow(null, OBSERVATION_EXPORT_PROJECTION));
+		
+		//the observations of a box joined with the box: _id is the observation's, and the box's own columns but
+		//_id can be asked for by name
+		String[] boxOnly = Arrays.copyOfRange(BOX_EXPORT_PROJECTION, 1, BOX_EXPORT_PROJECTION.length);
+		String[] boxObservationExport = new String[OBSERVATION_EXPORT_PROJECTION.length + boxOnly.length];
+		System.arraycopy(OBSERVATION_EXPORT_PROJECTION, 0, boxObservationExport, 0, OBSERVATION_EXPORT_PROJECTION.length);
+		System.arraycopy(boxOnly, 0, boxObservationExport, OBSERVATION_EXPORT_PROJECTION.length, boxOnly.length);
+		routeProjections.put(OBSERVATIONS_BOX_ID, new Projections(BOX_OBSERVATION_LIST_PROJECTION, OBSERVATION_EXPORT_PROJECTION,
+				boxObservationExport, DataURI.PROFILE_LIST).allow("o", OBSERVATION_EXPORT_PROJECTION).allow("b", boxOnly));
+		
+		Projections summaries = new Projections(SUMMARY_LIST_PROJECTION, SUMMARY_EXPORT_PROJECTION,
+				SUMMARY_EXPORT_PROJECTION, DataURI.PROFILE_LIST).allow(null, SUMMARY_EXPORT_PROJECTION);
+		routeProjections.put(SEASON_SUMMARIES, summaries);
+		routeProjections.put(SEASON_SUMMARIES_BOX_ID, summaries);
+		
+		//each filter below is backed by an index, see assets/migrations/11.sql
+		Map<String, String> boxFilters = columnMap(DataURI.PARAM_TRAIL, "loc_desc", DataURI.PARAM_BOX_TYPE, "box_type",
+				DataURI.PARAM_CONDITION, "condition");
+		routeFilters.put(BOXES, boxFilters);
+		routeFilters.put(BOXES_WITHIN, boxFilters);
+		routeFilters.put(BOXES_NEAREST, boxFilters);
+		Map<String, String> observationFilters = columnMap(DataURI.PARAM_SPECIES, "species");
+		routeFilters.put(OBSERVATIONS, observationFilters);
+		routeFilters.put(OBSERVATIONS_PAGE, observationFilters);
+		routeFilters.put(OBSERVATIONS_BOX_ID_PAGE, observationFilters);
+		routeFilters.put(OBSERVATIONS_RANGE, observationFilters);
+		routeFilters.put(OBSERVATIONS_BOX_ID_RANGE, observationFilters);
+		routeFilters.put(OBSERVATIONS_BOX_ID, columnMap(DataURI.PARAM_SPECIES, "o.species"));
+		
+		//the page routes keep their fixed order, which their continuation token depends on
+		Map<String, String> boxSorts = columnMap("_id", "_id", "box_number", "box_number", "loc_desc", "loc_desc",
+				"box_type", "box_type", "condition", "condition", "last_obs_date", "last_obs_date");
+		routeSorts.put(BOXES, boxSorts);
+		routeSorts.put(BOXES_WITHIN, boxSorts);
+		Map<String, String> observationSorts = columnMap("_id", "_id", "obs_date", "obs_date", "species", "species",
+				"box_id", "box_id");
+		routeSorts.put(OBSERVATIONS, observationSorts);
+		routeSorts.put(OBSERVATIONS_RANGE, observationSorts);
+		routeSorts.put(OBSERVATIONS_BOX_ID_RANGE, observationSorts);
+		routeSorts.put(OBSERVATIONS_BOX_ID, columnMap("_id", "o._id", "obs_date", "o.obs_date", "species", "o.species"));
+		Map<String, String> summarySorts = columnMap("box_id", "box_id", "season", "season", "observation_count",
+				"observation_count", "eggs_laid", "eggs_laid", "fledged", "fledged");
+		routeSorts.put(SEASON_SUMMARIES, summarySorts);
+		routeSorts.put(SEASON_SUMMARIES_BOX_ID, summarySorts);
+	}
+	
+	/*
+	 * @param namesAndColumns	Pairs of the name callers use and the column it stands for
+	 * 
+	 * @return					The names mapped to their columns, in order
+	 */
+	private static Map<String, String> columnMap(String... namesAndColumns){
+		Map<String, String> map = new LinkedHashMap<String, String>();
+		for(int i = 0; i < namesAndColumns.length; i += 2)
+			map.put(namesAndColumns[i], namesAndColumns[i + 1]);
+		return map;
+	}
+	
+	/*
+	 * Adds a route to the UriMatcher
+	 * 
+	 * @param path	Path of the route's URIs, as given to UriMatcher.addURI()
+	 * @param code	Code the UriMatcher returns for the route
+	 */
+	private static void addRoute(String path, int code){
+		uriMatcher.addURI(AUTHORITY, path, code);
+		routeNames.put(code, path);
 	}
 	
 	public DataProvider() {}
@@ -56,6 +419,8 @@ public class DataProvider extends ContentProvider {
 	public boolean onCreate() {
 		Log.d(Constants.LogTags.CONTENT_PROVIDER, "Creating DataProvider");
 		db = new DatabaseHelper(getContext());		
+		if((getContext().getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0)
+			slowQueries.setThreshold(SLOW_QUERY_DEFAULT_THRESHOLD_MS);
 		return true;
 	}
 
@@ -71,14 +436,33 @@ public class DataProvider extends ContentProvider {
 		String type = "";
 		switch(uriMatcher.match(uri)){
 		case BOXES:
+		case BOXES_WITHIN:
+		case BOXES_NEAREST:
 			type = "vnd.android.cursor.dir/com.bluebird.tracking.data.Box";
 			break;
 		case OBSERVATIONS:
+		case OBSERVATIONS_PAGE:
+		case OBSERVATIONS_BOX_ID_PAGE:
+		case OBSERVATIONS_RANGE:
+		case OBSERVATIONS_BOX_ID_RANGE:
 			type = "vnd.android.cursor.dir/com.bluebird.tracking.data.Observation";
 			break;
 		case OBSERVATIONS_BOX_ID:
 			type = "vnd.android.cursor.dir/com.bluebird.tracking.data.BoxObservation";
 			break;
+		case SEASON_SUMMARIES:
+		case SEASON_SUMMARIES_BOX_ID:
+			type = "vnd.android.cursor.dir/com.bluebird.tracking.data.BoxSeasonSummary";
+			break;
+		case SEARCH:
+			type = "vnd.android.cursor.dir/com.bluebird.tracking.data.SearchHit";
+			break;
+		case CHANGES:
+			type = "vnd.android.cursor.dir/com.bluebird.tracking.data.ChangeLog";
+			break;
+		case EXPORT_OBSERVATIONS:
+			type = DataURI.EXPORT_FORMAT_NDJSON.equals(getExportFormat(uri)) ? "application/x-ndjson" : "text/csv";
+			break;
 		case BOX_ID:
 			type = "vnd.android.cursor.item/com.bluebird.tracking.data.Box";
 			break;
@@ -98,7 +482,7 @@ public class DataProvider extends ContentProvider {
 	 * Query the database based on a given URI and selection parameters
 	 * 
 	 * @param uri			URI requested
-	 * @param projection	The columns of data the user wants
+	 * @param projection	The columns of data the user wants, see getProjection()
 	 * @param selection		The where clause requested ("_ID = ? and name = ? ...")
 	 * @param selectionArgs	Strings to replace ? with in selection (["1", "Bob" ...])
 	 * @param sortOrder		Order in which to return the data ("_ID DESC")
@@ -107,89 +491,310 @@ public class DataProvider extends ContentProvider {
 	 */
 	@Override
 	public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+		String operation = getOperationName("query", uri);
+		long start = System.nanoTime();
+		try{
+			Cursor c = queryRoute(uri, projection, selection, selectionArgs, sortOrder);
+			//getCount() runs the query and fills the first window, which every caller (CursorLoader, or the
+			//cursor adaptor when the caller is in another process) does straight away anyway
+			int rows = (c == null) ? 0 : c.getCount();
+			metrics.record(operation, start, rows, countWindowFills(c, rows));
+			slowQueries.check(operation, start, db.getReadableDatabase());
+			return c;
+		} catch(RuntimeException e){
+			metrics.recordError(operation, start);
+			slowQueries.discard();
+			throw e;
+		}
+	}
+	
+	/*
+	 * Runs a query for query(), see there
+	 */
+	private Cursor queryRoute(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
 		SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
 		String table = "";
 		String where = null;
+		String[] whereArgs = null;
 		String sort = null;
+		String limit = null;
+		Uri watchUri = null;
+		int route = uriMatcher.match(uri);
+		Projections projections = routeProjections.get(route);
+		if(projections != null)
+			projection = getProjection(uri, projections, projection);
 		
-		switch(uriMatcher.match(uri)){
+		//filters go in front of the caller's selection, so every route (the nearest boxes too) applies them
+		Map<String, String> filters = routeFilters.get(route);
+		String filter = getFilterWhere(uri, filters);
+		if(filter != null){
+			selection = (selection == null) ? filter : filter + " AND (" + selection + ")";
+			selectionArgs = concatArgs(getFilterWhereArgs(uri, filters), selectionArgs);
+		}
+		
+		//a bare direction is the sortOrder of old, which only set the direction of the route's default order
+		String direction = null;
+		if(sortOrder != null && (sortOrder.equalsIgnoreCase("ASC") || sortOrder.equalsIgnoreCase("DESC"))){
+			direction = sortOrder;
+			sortOrder = null;
+		}
+		String order = getSortOrder(uri, routeSorts.get(route), sortOrder);
+		
+		switch(route){
 		case BOXES:
 			table = "Box";
-			sort = "_id " + ((sortOrder == null) ? "ASC" : sortOrder);
+			sort = "_id " + ((direction == null) ? "ASC" : direction);
+			watchUri = DataURI.getAllBoxesURI();
 			break;
+		case BOXES_WITHIN:
+			table = "Box";
+			watchUri = DataURI.getAllBoxesURI();
+			where = "latitude BETWEEN ? AND ? AND longitude BETWEEN ? AND ?";
+			whereArgs = new String[] {
+				Double.toString(getDoubleParameter(uri, DataURI.PARAM_MIN_LATITUDE)),
+				Double.toString(getDoubleParameter(uri, DataURI.PARAM_MAX_LATITUDE)),
+				Double.toString(getDoubleParameter(uri, DataURI.PARAM_MIN_LONGITUDE)),
+				Double.toString(getDoubleParameter(uri, DataURI.PARAM_MAX_LONGITUDE))
+			};
+			sort = "_id " + ((direction == null) ? "ASC" : direction);
+			break;
+		case BOXES_NEAREST:
+			return queryNearestBoxes(uri, projection, selection, selectionArgs);
+		case SEARCH:
+			return querySearch(uri);
+		case CHANGES:
+			return queryChanges(uri);
 		case OBSERVATIONS:
 			table = "Observation";
-			sort = "obs_date " + ((sortOrder == null) ? "DESC" : sortOrder);
+			sort = "obs_date " + ((direction == null) ? "DESC" : direction);
 			sort += ", _id " +  "ASC";
+			watchUri = DataURI.getAllObservationsURI();
+			break;
+		case OBSERVATIONS_PAGE:
+			table = "ObservationAll";
+			watchUri = DataURI.getAllObservationsURI();
+			where = getPageWhere(uri);
+			whereArgs = getPageWhereArgs(uri);
+			sort = "obs_date DESC, _id DESC";
+			limit = Integer.toString(getPageSize(uri));
+			break;
+		case OBSERVATIONS_BOX_ID_PAGE:
+			table = "ObservationAll";
+			watchUri = getBoxObservationsWatchURI(Long.parseLong(uri.getPathSegments().get(2)));
+			String keyset = getPageWhere(uri);
+			where = "box_id = ?" + ((keyset == null) ? "" : " AND " + keyset);
+			whereArgs = concatArgs(new String[] {uri.getPathSegments().get(2)}, getPageWhereArgs(uri));
+			sort = "obs_date DESC, _id DESC";
+			limit = Integer.toString(getPageSize(uri));
+			break;
+		case OBSERVATIONS_RANGE:
+			table = "ObservationAll";
+			watchUri = DataURI.getAllObservationsURI();
+			where = getDateRangeWhere(uri);
+			whereArgs = getDateRangeWhereArgs(uri);
+			sort = "obs_date DESC, _id DESC";
+			break;
+		case OBSERVATIONS_BOX_ID_RANGE:
+			table = "ObservationAll";
+			watchUri = getBoxObservationsWatchURI(Long.parseLong(uri.getPathSegments().get(2)));
+			String range = getDateRangeWhere(uri);
+			where = "box_id = ?" + ((range == null) ? "" : " AND " + range);
+			whereArgs = concatArgs(new String[] {uri.getPathSegments().get(2)}, getDateRangeWhereArgs(uri));
+			sort = "obs_date DESC, _id DESC";
+			break;
+		case SEASON_SUMMARIES:
+			table = "BoxSeasonSummary";
+			watchUri = SUMMARIES_WATCH_URI;
+			if(uri.getQueryParameter(DataURI.PARAM_SEASON) != null){
+				where = "season = ?";
+				whereArgs = new String[] {uri.getQueryParameter(DataURI.PARAM_SEASON)};
+			}
+			sort = "box_id ASC, season " + ((direction == null) ? "DESC" : direction);
+			break;
+		case SEASON_SUMMARIES_BOX_ID:
+			table = "BoxSeasonSummary";
+			watchUri = getBoxSummariesWatchURI(Long.parseLong(uri.getLastPathSegment()));
+			where = "box_id = ?";
+			whereArgs = new String[] {getIdSegment(uri)};
+			sort = "season " + ((direction == null) ? "DESC" : direction);
 			break;
 		case OBSERVATIONS_BOX_ID:
 			table = "Box b JOIN Observation o ON b._id = o.box_id";
-			where = "box_key = " + uri.getLastPathSegment().toString();
-			sort = "obs_date " + ((sortOrder == null) ? "DESC" : sortOrder);
+			watchUri = getBoxObservationsWatchURI(Long.parseLong(uri.getLastPathSegment()));
+			where = "o.box_id = ?";
+			whereArgs = new String[] {getIdSegment(uri)};
+			sort = "obs_date " + ((direction == null) ? "DESC" : direction);
 			break;
 		case BOX_ID:
+			if(selection == null){
+				Cursor cached = queryCachedBox(Long.parseLong(uri.getLastPathSegment()), projection);
+				if(cached != null)
+					return cached;
+			}
 			table = "Box";
-			where = "_id = " + uri.getLastPathSegment().toString();
+			where = "_id = ?";
+			whereArgs = new String[] {getIdSegment(uri)};
+			watchUri = getBoxWatchURI(Long.parseLong(uri.getLastPathSegment()));
 			break;
 		case OBSERVATIONS_ID:
-			table = "Observation";
-			where = "_id = " + uri.getLastPathSegment().toString();
+			table = "ObservationAll";
+			where = "_id = ?";
+			whereArgs = new String[] {getIdSegment(uri)};
+			watchUri = ContentUris.withAppendedId(OBSERVATION_WATCH_URI, Long.parseLong(uri.getLastPathSegment()));
 			break;
 		default:
 			Log.e(Constants.LogTags.CONTENT_PROVIDER, "Bad query request for " + uri.toString());
 			throw new IllegalArgumentException("Unknown URI " + uri.toString());
 		}
 		
+		if(order != null)
+			sort = order;
 		queryBuilder.setTables(table);
+		queryBuilder.setProjectionMap(projections.columns);
 		if(where != null)
 			queryBuilder.appendWhere(where);
 		
 		try{
-			Cursor c = queryBuilder.query(db.getReadableDatabase(), projection, selection, selectionArgs, null, null, sort);
-			c.setNotificationUri(getContext().getContentResolver(), uri);
+			String sql = queryBuilder.buildQuery(projection, selection, null, null, sort, limit);
+			Cursor c = rawQuery(db.getReadableDatabase(), sql, concatArgs(whereArgs, selectionArgs));
+			c.setNotificationUri(getContext().getContentResolver(), watchUri);
 			return c;
 		} catch(SQLiteException e){
 			Log.e(Constants.LogTags.CONTENT_PROVIDER, "Error opening database connection " + e.toString());
 			throw new RuntimeException("Error opening database connection", e);
 		}
 	}
-
+	
 	/*
-	 * @see android.content.ContentProvider#insert(android.net.Uri, android.content.ContentValues)
+	 * Picks the columns a query reads. A projection given by the caller may only name columns the route allows,
+	 * so callers can't make the provider copy arbitrary expressions into the CursorWindow; without one, the
+	 * profile named by the profile query parameter is used, or the route's default profile
 	 * 
-	 * Inserting the given data into our database based on a URI.
-	 * 
-	 * @param uri		URI requested, the table to insert into
-	 * @param values	Data values to insert into the database
+	 * @param uri			URI requested, with the (optional) profile query parameter
+	 * @param projections	The projections of the URI's route
+	 * @param projection	The columns of data the user wants, or null
 	 * 
-	 * @return 			URI of newly created entry
+	 * @return				The columns to read, by the names callers know them by
 	 */
-	@Override
-	public Uri insert(Uri uri, ContentValues values) {
-		String table = "";
+	private static String[] getProjection(Uri uri, Projections projections, String[] projection){
+		if(projection != null){
+			for(String column : projection){
+				if(!projections.columns.containsKey(column))
+					throw new IllegalArgumentException("Bad column " + column + " in projection for " + uri.toString());
+			}
+			return projection;
+		}
 		
-		switch(uriMatcher.match(uri)){
-		case BOXES:
-			table = "Box";
-			break;
-		case OBSERVATIONS:
-			table = "Observation";
-			break;
-		default:
-			Log.e(Constants.LogTags.CONTENT_PROVIDER, "Bad insert request for " + uri.toString());
-			throw new IllegalArgumentException("Unknown URI " + uri.toString());
+		String profile = uri.getQueryParameter(DataURI.PARAM_PROFILE);
+		if(profile == null)
+			profile = projections.defaultProfile;
+		if(profile.equals(DataURI.PROFILE_LIST))
+			return projections.list;
+		else if(profile.equals(DataURI.PROFILE_DETAIL))
+			return projections.detail;
+		else if(profile.equals(DataURI.PROFILE_EXPORT))
+			return projections.export;
+		throw new IllegalArgumentException("Bad profile in " + uri.toString());
+	}
+	
+	/*
+	 * Looks up a single box through the Box row cache. On a miss the whole row is read and cached, so any later
+	 * lookup of the box with a projection of plain Box columns is answered from memory
+	 * 
+	 * @param boxId			_id of the box
+	 * @param projection	The columns of data the user wants, see getProjection()
+	 * 
+	 * @return				Cursor over the box, or null if the box doesn't exist
+	 */
+	private Cursor queryCachedBox(long boxId, String[] projection){
+		BoxRowCache.Row row = boxCache.get(boxId);
+		boolean hit = (row != null);
+		if(row == null){
+			long generation = boxCache.generation();
+			try{
+				Cursor c = rawQuery(db.getReadableDatabase(), "SELECT * FROM Box WHERE _id = ?", new String[] {Long.toString(boxId)});
+				try{
+					if(!c.moveToFirst()){
+						boxCache.countHit(false);
+						return null;
+					}
+					row = BoxRowCache.readRow(c);
+				} finally{
+					c.close();
+				}
+			} catch(SQLiteException e){
+				Log.e(Constants.LogTags.CONTENT_PROVIDER, "Error opening database connection " + e.toString());
+				throw new RuntimeException("Error opening database connection", e);
+			}
+			boxCache.put(boxId, row, generation);
 		}
 		
+		//a projection the cache can't answer is a miss, the caller goes on to query the database
+		Cursor c = row.toCursor(projection);
+		boxCache.countHit(hit && c != null);
+		if(c != null)
+			c.setNotificationUri(getContext().getContentResolver(), getBoxWatchURI(boxId));
+		return c;
+	}
+	
+	/*
+	 * Finds the boxes closest to a point, closest first. Searches a square around the point using the index on
+	 * (latitude, longitude), growing the square until it holds at least as many boxes as were asked for. The k-th
+	 * closest box in that square may still be further away than a box just outside it, so the final query uses a
+	 * square big enough to hold the circle through the square's corners. Distances are compared on a flat
+	 * projection with longitude scaled by the cosine of the latitude, which is plenty accurate over a trail.
+	 * 
+	 * @param uri			URI requested, with the lat, lon and (optional) limit query parameters
+	 * @param projection	The columns of data the user wants, see getProjection()
+	 * @param selection		The where clause requested, applied on top of the distance search
+	 * @param selectionArgs	Strings to replace ? with in selection
+	 * 
+	 * @return				Cursor over the nearest boxes, in distance order
+	 */
+	private Cursor queryNearestBoxes(Uri uri, String[] projection, String selection, String[] selectionArgs){
+		double latitude = getDoubleParameter(uri, DataURI.PARAM_LATITUDE);
+		double longitude = getDoubleParameter(uri, DataURI.PARAM_LONGITUDE);
+		String limitParam = uri.getQueryParameter(DataURI.PARAM_LIMIT);
+		int limit = NEAREST_DEFAULT_LIMIT;
 		try{
-			SQLiteDatabase writableDB = db.getWritableDatabase();
-			long newRowID = (int)writableDB.insert(table, null, values);
-		
-			if(newRowID < -1)
-				throw new RuntimeException("An error occured inserting into the database");
+			if(limitParam != null)
+				limit = Integer.parseInt(limitParam);
+		} catch(NumberFormatException e){
+			throw new IllegalArgumentException("Bad limit in " + uri.toString());
+		}
+		//degrees of longitude shrink towards the poles, don't let the scale hit 0
+		double lonScale = Math.max(Math.cos(Math.toRadians(latitude)), 0.01);
+		String where = "latitude BETWEEN ? AND ? AND longitude BETWEEN ? AND ?";
 		
-			Uri newUri = Uri.parse("content://" + AUTHORITY + table.toLowerCase() + "/" + Long.toString(newRowID)); //create URI of new entry
-			getContext().getContentResolver().notifyChange(newUri, null); //notify any listeners of change to database
-			return newUri;
+		try{
+			SQLiteDatabase readableDB = db.getReadableDatabase();
+			String countSql = "SELECT COUNT(*) FROM Box WHERE " + where + ((selection == null) ? "" : " AND (" + selection + ")");
+			
+			double radius = NEAREST_INITIAL_RADIUS;
+			while(radius < 180){
+				long found = DatabaseUtils.longForQuery(readableDB, countSql,
+						concatArgs(boundingBoxArgs(latitude, longitude, radius, lonScale), selectionArgs));
+				if(found >= limit)
+					break;
+				radius *= 4;
+			}
+			radius *= Math.sqrt(2);
+			
+			String lat = Double.toString(latitude);
+			String lon = Double.toString(longitude);
+			String scale = Double.toString(lonScale);
+			String sort = "(latitude - ?) * (latitude - ?) + (longitude - ?) * ? * (longitude - ?) * ?";
+			String[] sortArgs = new String[] {lat, lat, lon, scale, lon, scale};
+			
+			SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
+			queryBuilder.setTables("Box");
+			queryBuilder.setProjectionMap(routeProjections.get(BOXES_NEAREST).columns);
+			queryBuilder.appendWhere(where);
+			String sql = queryBuilder.buildQuery(projection, selection, null, null, sort, Integer.toString(limit));
+			Cursor c = rawQuery(readableDB, sql,
+					concatArgs(concatArgs(boundingBoxArgs(latitude, longitude, radius, lonScale), selectionArgs), sortArgs));
+			c.setNotificationUri(getContext().getContentResolver(), DataURI.getAllBoxesURI());
+			return c;
 		} catch(SQLiteException e){
 			Log.e(Constants.LogTags.CONTENT_PROVIDER, "Error opening database connection " + e.toString());
 			throw new RuntimeException("Error opening database connection", e);
@@ -197,50 +802,68 @@ public class DataProvider extends ContentProvider {
 	}
 	
 	/*
-	 * @see android.content.ContentProvider#update(android.net.Uri, android.content.ContentValues, java.lang.String, java.lang.String[])
+	 * Full-text search over observations (species, problem, prob_act, comments and their box's box_number and
+	 * loc_desc) and boxes (box_number and loc_desc) using the SearchIndex FTS table. Each word of the q query
+	 * parameter must match, and the last word also matches as a prefix so results can be shown as the user types.
 	 * 
-	 * Update the database given a URI, selection parameters and new data values
+	 * Hits are ranked by how many times each word appears in the hit compared to how many times it appears in the
+	 * whole index, so rare words count for more than common ones. FTS3 can't sort on that itself, so the docid and
+	 * matchinfo() of every hit are read and ranked here, keeping only the best ones, and the snippets and box ids
+	 * are then read for just those. snippet() costs far more than matchinfo(), so it isn't computed for hits that
+	 * won't be returned.
 	 * 
-	 * @param uri				URI requested, the table or entity to update
-	 * @param values			New data values to set
-	 * @param selection			The where clause requested ("_ID = ? and name = ? ...")
-	 * @param selectionArgs		Strings to replace ? with in selection (["1", "Bob" ...])
+	 * @param uri	URI requested, with the q and (optional) limit query parameters
 	 * 
-	 * @return 					Number of rows affected
+	 * @return		Cursor with the SEARCH_COLUMNS columns: a row number, the kind of hit (SEARCH_KIND_BOX or
+	 * 				SEARCH_KIND_OBSERVATION), the _id of the box or observation, the _id of the box it belongs to,
+	 * 				a snippet of the matching text with matches in [brackets], and the hit's rank, best first
 	 */
-	@Override
-	public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-		String table = "";
-		
-		switch(uriMatcher.match(uri)){
-		case BOXES:
-			table = "Box";
-			break;
-		case OBSERVATIONS:
-			table = "Observation";
-			break;
-		case BOX_ID:
-			table = "Box";
-			//ignore the user's selection clause and values, the URI specifies the where clause we want
-			selection = "_id = ?"; 
-			selectionArgs = new String[] {uri.getLastPathSegment().toString()};
-			break;
-		case OBSERVATIONS_ID:
-			table = "Observation";
-			//ignore the user's selection clause and values, the URI specifies the where clause we want
-			selection = "_id = ?";
-			selectionArgs = new String[] {uri.getLastPathSegment().toString()};
-			break;
-		default:
-			Log.e(Constants.LogTags.CONTENT_PROVIDER, "Bad update request for " + uri.toString());
-			throw new IllegalArgumentException("Unknown URI " + uri.toString());
+	private Cursor querySearch(Uri uri){
+		String match = buildMatchExpression(uri.getQueryParameter(DataURI.PARAM_QUERY));
+		if(match == null)
+			throw new IllegalArgumentException("Missing " + DataURI.PARAM_QUERY + " in " + uri.toString());
+		String limitParam = uri.getQueryParameter(DataURI.PARAM_LIMIT);
+		int limit = SEARCH_DEFAULT_LIMIT;
+		try{
+			if(limitParam != null)
+				limit = Integer.parseInt(limitParam);
+		} catch(NumberFormatException e){
+			throw new IllegalArgumentException("Bad limit in " + uri.toString());
 		}
 		
+		if(limit < 1)
+			throw new IllegalArgumentException("Bad limit in " + uri.toString());
+		
 		try{
-			SQLiteDatabase writableDB = db.getWritableDatabase();
-			int changed = writableDB.update(table, values, selection, selectionArgs);
-			getContext().getContentResolver().notifyChange(uri, null); //notify any listeners of change to database
-			return changed;
+			SQLiteDatabase readableDB = db.getReadableDatabase();
+			
+			//worst hit at the head, so it's the one dropped once there are more than limit
+			PriorityQueue<SearchHit> best = new PriorityQueue<SearchHit>(limit + 1, Collections.reverseOrder());
+			Cursor c = rawQuery(readableDB, "SELECT docid, matchinfo(SearchIndex) FROM SearchIndex WHERE SearchIndex MATCH ?",
+					new String[] {match});
+			try{
+				while(c.moveToNext()){
+					best.add(new SearchHit(c.getLong(0), rank(c.getBlob(1))));
+					if(best.size() > limit)
+						best.poll();
+				}
+			} finally{
+				c.close();
+			}
+			ArrayList<SearchHit> hits = new ArrayList<SearchHit>(best);
+			Collections.sort(hits);
+			
+			if(!hits.isEmpty())
+				readSearchSnippets(readableDB, match, hits);
+			
+			MatrixCursor result = new MatrixCursor(SEARCH_COLUMNS, hits.size());
+			for(int i = 0; i < hits.size(); i++){
+				SearchHit hit = hits.get(i);
+				boolean isBox = (hit.docId % 2 == 1);
+				result.addRow(new Object[] {i, isBox ? SEARCH_KIND_BOX : SEARCH_KIND_OBSERVATION, hit.docId / 2, hit.boxId, hit.snippet, hit.rank});
+			}
+			result.setNotificationUri(getContext().getContentResolver(), SEARCH_WATCH_URI);
+			return result;
 		} catch(SQLiteException e){
 			Log.e(Constants.LogTags.CONTENT_PROVIDER, "Error opening database connection " + e.toString());
 			throw new RuntimeException("Error opening database connection", e);
@@ -248,47 +871,65 @@ public class DataProvider extends ContentProvider {
 	}
 	
 	/*
-	 * @see android.content.ContentProvider#delete(android.net.Uri, java.lang.String, java.lang.String[])
-	 * 
-	 * Delete rows from the database based on a URI and/or selection arguments
+	 * Fills in the snippet and box id of the search hits being returned. snippet() needs the MATCH, so it's run
+	 * again restricted to the hits' docids
 	 * 
-	 * @param uri				URI requested, the table or entity to update
-	 * @param selection			The where clause requested ("_ID = ? and name = ? ...")
-	 * @param selectionArgs		Strings to replace ? with in selection (["1", "Bob" ...])
+	 * @param readableDB	Database to read from
+	 * @param match			The MATCH expression the hits were found with
+	 * @param hits			The hits to fill in
 	 */
-	@Override
-	public int delete(Uri uri, String selection, String[] selectionArgs) {
-		String table = "";
+	private void readSearchSnippets(SQLiteDatabase readableDB, String match, ArrayList<SearchHit> hits){
+		HashMap<Long, SearchHit> byDocId = new HashMap<Long, SearchHit>();
+		StringBuilder docIds = new StringBuilder("?");
+		String[] args = new String[hits.size() + 1];
+		args[0] = match;
+		for(int i = 0; i < hits.size(); i++){
+			byDocId.put(hits.get(i).docId, hits.get(i));
+			args[i + 1] = Long.toString(hits.get(i).docId);
+			if(i > 0)
+				docIds.append(", ?");
+		}
 		
-		switch(uriMatcher.match(uri)){
-		case BOXES:
-			table = "Box";
-			break;
-		case OBSERVATIONS:
-			table = "Observation";
-			break;
-		case BOX_ID:
-			table = "Box";
-			//ignore the user's selection clause and values, the URI specifies the where clause we want
-			selection = "_id = ?";
-			selectionArgs = new String[] {uri.getLastPathSegment().toString()};
-			break;
-		case OBSERVATIONS_ID:
-			table = "Observation";
-			//ignore the user's selection clause and values, the URI specifies the where clause we want
-			selection = "_id = ?";
-			selectionArgs = new String[] {uri.getLastPathSegment().toString()};
-			break;
-		default:
-			Log.e(Constants.LogTags.CONTENT_PROVIDER, "Bad delete request for " + uri.toString());
-			throw new IllegalArgumentException("Unknown URI " + uri.toString());
+		//observation N is document 2N in the index, box N is document 2N + 1
+		String sql = "SELECT SearchIndex.docid, " +
+				"CASE WHEN SearchIndex.docid % 2 = 1 THEN SearchIndex.docid / 2 ELSE ifnull(o.box_id, a.box_id) END, " +
+				"snippet(SearchIndex, '[', ']', '...', -1, 12) " +
+				"FROM SearchIndex LEFT JOIN Observation o ON SearchIndex.docid % 2 = 0 AND o._id = SearchIndex.docid / 2 " +
+				"LEFT JOIN ObservationArchive a ON SearchIndex.docid % 2 = 0 AND a._id = SearchIndex.docid / 2 " +
+				"WHERE SearchIndex MATCH ? AND SearchIndex.docid IN (" + docIds + ")";
+		Cursor c = rawQuery(readableDB, sql, args);
+		try{
+			while(c.moveToNext()){
+				SearchHit hit = byDocId.get(c.getLong(0));
+				hit.boxId = c.isNull(1) ? null : c.getLong(1);
+				hit.snippet = c.getString(2);
+			}
+		} finally{
+			c.close();
+		}
+	}
+	
+	/*
+	 * Reads the oldest entries of the change log, see assets/migrations/7.sql. Nothing watches the change log, so
+	 * the cursor isn't registered for notifications
+	 * 
+	 * @param uri	URI requested, with the optional limit query parameter
+	 * 
+	 * @return		Cursor with the seq, table_name and row_id of each change, oldest first
+	 */
+	private Cursor queryChanges(Uri uri){
+		String limit = uri.getQueryParameter(DataURI.PARAM_LIMIT);
+		try{
+			if(limit != null)
+				limit = Integer.toString(Integer.parseInt(limit));
+		} catch(NumberFormatException e){
+			throw new IllegalArgumentException("Bad limit in " + uri.toString());
 		}
 		
 		try{
-			SQLiteDatabase writableDB = db.getWritableDatabase();
-			int deleted = writableDB.delete(table, selection, selectionArgs);
-			getContext().getContentResolver().notifyChange(uri, null); //notify any listeners of change to database
-			return deleted;
+			String sql = SQLiteQueryBuilder.buildQueryString(false, "ChangeLog", new String[] {"seq", "table_name", "row_id"},
+					null, null, null, "seq ASC", limit);
+			return rawQuery(db.getReadableDatabase(), sql, null);
 		} catch(SQLiteException e){
 			Log.e(Constants.LogTags.CONTENT_PROVIDER, "Error opening database connection " + e.toString());
 			throw new RuntimeException("Error opening database connection", e);
@@ -296,13 +937,1364 @@ public class DataProvider extends ContentProvider {
 	}
 	
 	/*
-	 * @see android.content.ContentProvider#shutdown()
+	 * Turns what the user typed into an FTS MATCH expression. Only letters and digits are kept, so user input
+	 * can't produce an invalid expression, and the last word is made a prefix search
 	 * 
-	 * Called when shutting down the content provider, used to free up any resources or persist any data before the OS
-	 * shuts us down. Just a stub for now
+	 * @param query	What the user typed
+	 * 
+	 * @return		The MATCH expression, or null if the query has no words in it
 	 */
-	@Override
-	public void shutdown(){
+	private static String buildMatchExpression(String query){
+		if(query == null)
+			return null;
+		StringBuilder match = new StringBuilder();
+		for(String word : query.split("[^\\p{L}\\p{N}]+")){
+			if(word.length() == 0)
+				continue;
+			if(match.length() > 0)
+				match.append(' ');
+			match.append(word);
+		}
+		if(match.length() == 0)
+			return null;
+		return match.append('*').toString();
+	}
+	
+	/*
+	 * Ranks a search hit from its matchinfo() blob, which in FTS3 holds the number of phrases p and columns c,
+	 * followed by 3 numbers for each phrase/column pair: the hits in this row, the hits in all rows and the
+	 * number of rows with a hit
+	 * 
+	 * @param matchinfo	The matchinfo() blob of the hit
+	 * 
+	 * @return			The hit's rank, higher is better
+	 */
+	private static double rank(byte[] matchinfo){
+		IntBuffer info = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+		int phrases = info.get(0);
+		int columns = info.get(1);
+		double rank = 0;
+		for(int p = 0; p < phrases; p++){
+			for(int col = 0; col < columns; col++){
+				int offset = 2 + 3 * (p * columns + col);
+				int hitsInRow = info.get(offset);
+				int hitsInAllRows = info.get(offset + 1);
+				if(hitsInRow > 0)
+					rank += (double)hitsInRow / hitsInAllRows;
+			}
+		}
+		return rank;
+	}
+	
+	/*
+	 * A row returned by the search index, ordered best rank first and then by docid. The box id and snippet are
+	 * only read for the hits returned, see readSearchSnippets()
+	 */
+	private static final class SearchHit implements Comparable<SearchHit>{
+		final long docId;
+		final double rank;
+		Long boxId;
+		String snippet;
+		
+		SearchHit(long docId, double rank){
+			this.docId = docId;
+			this.rank = rank;
+		}
+		
+		@Override
+		public int compareTo(SearchHit other){
+			int byRank = Double.compare(other.rank, rank);
+			if(byRank != 0)
+				return byRank;
+			return (docId < other.docId) ? -1 : ((docId == other.docId) ? 0 : 1);
+		}
+	}
+	
+	/*
+	 * Builds the arguments for a "latitude BETWEEN ? AND ? AND longitude BETWEEN ? AND ?" clause covering a square
+	 * around a point
+	 * 
+	 * @param latitude	Latitude of the center of the square
+	 * @param longitude	Longitude of the center of the square
+	 * @param radius	Half the width of the square, in degrees of latitude
+	 * @param lonScale	Length of a degree of longitude relative to a degree of latitude at this latitude
+	 * 
+	 * @return			The 4 bind arguments for the clause
+	 */
+	private static String[] boundingBoxArgs(double latitude, double longitude, double radius, double lonScale){
+		double lonRadius = Math.min(radius / lonScale, 360);
+		return new String[] {
+			Double.toString(latitude - radius),
+			Double.toString(latitude + radius),
+			Double.toString(longitude - lonRadius),
+			Double.toString(longitude + lonRadius)
+		};
+	}
+	
+	/*
+	 * Builds the keyset condition for a page of observations. Pages are ordered by obs_date DESC, _id DESC and the
+	 * continuation token is the (obs_date, _id) of the last row of the previous page, so the next page is everything
+	 * that sorts after that row. Written as "obs_date <= ? AND (...)" so SQLite can seek the obs_date index rather
+	 * than evaluating an OR over the whole table, which leaves the rows without an obs_date out. Those sort last and
+	 * are paged on their own, by _id alone, with a token that has an after_id but no after_date.
+	 * 
+	 * @param uri	URI requested, with the optional after_date and after_id query parameters
+	 * 
+	 * @return		The condition, or null for the first page
+	 */
+	private static String getPageWhere(Uri uri){
+		if(uri.getQueryParameter(DataURI.PARAM_AFTER_DATE) != null)
+			return "obs_date <= ? AND (obs_date < ? OR _id < ?)";
+		if(uri.getQueryParameter(DataURI.PARAM_AFTER_ID) != null)
+			return "obs_date IS NULL AND _id < ?";
+		return null;
+	}
+	
+	/*
+	 * Builds the bind arguments for the condition returned by getPageWhere()
+	 * 
+	 * @param uri	URI requested, with the optional after_date and after_id query parameters
+	 * 
+	 * @return		The arguments, or null for the first page
+	 */
+	private static String[] getPageWhereArgs(Uri uri){
+		String afterDate = uri.getQueryParameter(DataURI.PARAM_AFTER_DATE);
+		String afterId = uri.getQueryParameter(DataURI.PARAM_AFTER_ID);
+		if(afterId == null){
+			if(afterDate != null)
+				throw new IllegalArgumentException("Missing " + DataURI.PARAM_AFTER_ID + " in " + uri.toString());
+			return null;
+		}
+		try{
+			afterId = Long.toString(Long.parseLong(afterId));
+		} catch(NumberFormatException e){
+			throw new IllegalArgumentException("Bad " + DataURI.PARAM_AFTER_ID + " in " + uri.toString());
+		}
+		if(afterDate == null)
+			return new String[] {afterId};
+		afterDate = getEpochDayParameter(uri, DataURI.PARAM_AFTER_DATE);
+		return new String[] {afterDate, afterDate, afterId};
+	}
+	
+	/*
+	 * Builds the condition for the filter query parameters of a URI (DataURI.PARAM_TRAIL...). Each filter matches
+	 * its column against the parameter's value, or any of its values if the parameter is repeated; a URI with
+	 * several filters matches the rows that pass all of them
+	 * 
+	 * @param uri		URI requested, with the optional filter query parameters
+	 * @param filters	The filters the URI's route takes, null if it takes none
+	 * 
+	 * @return			The condition, or null if the URI has no filters
+	 * 
+	 * @throws IllegalArgumentException		If the URI has a filter its route doesn't take
+	 */
+	private static String getFilterWhere(Uri uri, Map<String, String> filters){
+		for(String param : FILTER_PARAMS){
+			if(uri.getQueryParameter(param) != null && (filters == null || !filters.containsKey(param)))
+				throw new IllegalArgumentException("Bad filter " + param + " in " + uri.toString());
+		}
+		if(filters == null)
+			return null;
+		
+		StringBuilder where = new StringBuilder();
+		for(Map.Entry<String, String> filter : filters.entrySet()){
+			int values = uri.getQueryParameters(filter.getKey()).size();
+			if(values == 0)
+				continue;
+			if(where.length() > 0)
+				where.append(" AND ");
+			where.append(filter.getValue());
+			if(values == 1){
+				where.append(" = ?");
+			} else{
+				where.append(" IN (?");
+				for(int i = 1; i < values; i++)
+					where.append(", ?");
+				where.append(')');
+			}
+		}
+		return (where.length() == 0) ? null : where.toString();
+	}
+	
+	/*
+	 * Builds the bind arguments for the condition returned by getFilterWhere()
+	 * 
+	 * @param uri		URI requested, with the optional filter query parameters
+	 * @param filters	The filters the URI's route takes
+	 * 
+	 * @return			The arguments
+	 */
+	private static String[] getFilterWhereArgs(Uri uri, Map<String, String> filters){
+		ArrayList<String> args = new ArrayList<String>();
+		for(String param : filters.keySet())
+			args.addAll(uri.getQueryParameters(param));
+		return args.toArray(new String[args.size()]);
+	}
+	
+	/*
+	 * Builds the ORDER BY clause for a sort given as a query's sortOrder or the URI's sort query parameter: sort
+	 * keys separated by commas, each the name of a column the route can be sorted on and optionally ASC or DESC.
+	 * Rows that tie are ordered by _id, so they don't move around between reloads
+	 * 
+	 * @param uri		URI requested, with the optional sort query parameter
+	 * @param sorts		The columns the URI's route can be sorted on, null if it can't be sorted
+	 * @param sortOrder	The sortOrder of the query, which wins over the URI's sort
+	 * 
+	 * @return			The ORDER BY clause, or null to keep the route's default order
+	 * 
+	 * @throws IllegalArgumentException		If the sort names a column the route can't be sorted on
+	 */
+	private static String getSortOrder(Uri uri, Map<String, String> sorts, String sortOrder){
+		String keys = (sortOrder != null) ? sortOrder : uri.getQueryParameter(DataURI.PARAM_SORT);
+		if(keys == null)
+			return null;
+		if(sorts == null)
+			throw new IllegalArgumentException("Bad sort in " + uri.toString());
+		
+		StringBuilder order = new StringBuilder();
+		boolean byId = false;
+		for(String key : keys.split(",")){
+			String[] parts = key.trim().split("\\s+");
+			String column = sorts.get(parts[0]);
+			String direction = (parts.length > 1) ? parts[1].toUpperCase(Locale.US) : "ASC";
+			if(column == null || parts.length > 2 || !(direction.equals("ASC") || direction.equals("DESC")))
+				throw new IllegalArgumentException("Bad sort " + key.trim() + " in " + uri.toString());
+			byId |= parts[0].equals("_id");
+			if(order.length() > 0)
+				order.append(", ");
+			order.append(column).append(' ').append(direction);
+		}
+		if(!byId && sorts.containsKey("_id"))
+			order.append(", ").append(sorts.get("_id")).append(" ASC");
+		return order.toString();
+	}
+	
+	/*
+	 * Builds the condition for a date range of observations. Both ends are optional and inclusive, and obs_date
+	 * holds epoch days, so the range is a seek on the (obs_date) or (box_id, obs_date) index
+	 * 
+	 * @param uri	URI requested, with the optional from_day and to_day query parameters
+	 * 
+	 * @return		The condition, or null if the URI gives neither end
+	 */
+	private static String getDateRangeWhere(Uri uri){
+		boolean from = (uri.getQueryParameter(DataURI.PARAM_FROM_DAY) != null);
+		boolean to = (uri.getQueryParameter(DataURI.PARAM_TO_DAY) != null);
+		if(from && to)
+			return "obs_date BETWEEN ? AND ?";
+		if(from)
+			return "obs_date >= ?";
+		return to ? "obs_date <= ?" : null;
+	}
+	
+	/*
+	 * Builds the bind arguments for the condition returned by getDateRangeWhere()
+	 * 
+	 * @param uri	URI requested, with the optional from_day and to_day query parameters
+	 * 
+	 * @return		The arguments, or null if the URI gives neither end
+	 */
+	private static String[] getDateRangeWhereArgs(Uri uri){
+		String from = getEpochDayParameter(uri, DataURI.PARAM_FROM_DAY);
+		String to = getEpochDayParameter(uri, DataURI.PARAM_TO_DAY);
+		if(from != null && to != null)
+			return new String[] {from, to};
+		if(from != null)
+			return new String[] {from};
+		return (to == null) ? null : new String[] {to};
+	}
+	
+	/*
+	 * Converts the dates in the values of an Observation write that are given as YYYY-MM-DD text to the epoch days
+	 * the date columns hold, see EpochDays. Values given as numbers, or as the text of a number, are taken to be
+	 * epoch days already
+	 * 
+	 * @param values	Values of the write, left as they are
+	 * 
+	 * @return			The values with the dates converted, values itself if there were none to convert
+	 */
+	private static ContentValues toEpochDays(ContentValues values){
+		if(values == null)
+			return null;
+		ContentValues converted = values;
+		for(String column : EpochDays.OBSERVATION_DATE_COLUMNS){
+			Object value = values.get(column);
+			if(!(value instanceof String))
+				continue;
+			if(converted == values)
+				converted = new ContentValues(values);
+			try{
+				converted.put(column, EpochDays.parse((String)value));
+			} catch(IllegalArgumentException e){
+				//an epoch day read out of a cursor as text
+				try{
+					converted.put(column, Long.parseLong((String)value));
+				} catch(NumberFormatException notNumber){
+					throw new IllegalArgumentException("Bad " + column + " " + value);
+				}
+			}
+		}
+		return converted;
+	}
+	
+	/*
+	 * Reads an optional epoch day query parameter from a URI
+	 * 
+	 * @param uri	URI requested
+	 * @param name	Name of the query parameter
+	 * 
+	 * @return		The epoch day, as a bind argument, or null if the URI doesn't give one
+	 */
+	private static String getEpochDayParameter(Uri uri, String name){
+		String value = uri.getQueryParameter(name);
+		if(value == null)
+			return null;
+		try{
+			return Long.toString(Long.parseLong(value));
+		} catch(NumberFormatException e){
+			throw new IllegalArgumentException("Bad " + name + " in " + uri.toString());
+		}
+	}
+	
+	/*
+	 * Reads the page size of a paginated URI
+	 * 
+	 * @param uri	URI requested, with the optional page_size query parameter
+	 * 
+	 * @return		The page size, DEFAULT_PAGE_SIZE if the URI doesn't give one
+	 */
+	private static int getPageSize(Uri uri){
+		String pageSize = uri.getQueryParameter(DataURI.PARAM_PAGE_SIZE);
+		if(pageSize == null)
+			return DEFAULT_PAGE_SIZE;
+		try{
+			int size = Integer.parseInt(pageSize);
+			if(size <= 0)
+				throw new NumberFormatException();
+			return size;
+		} catch(NumberFormatException e){
+			throw new IllegalArgumentException("Bad " + DataURI.PARAM_PAGE_SIZE + " in " + uri.toString());
+		}
+	}
+	
+	/*
+	 * Reads a required decimal query parameter from a URI
+	 * 
+	 * @param uri	URI requested
+	 * @param name	Name of the query parameter
+	 * 
+	 * @return		Value of the parameter
+	 */
+	private static double getDoubleParameter(Uri uri, String name){
+		String value = uri.getQueryParameter(name);
+		if(value == null)
+			throw new IllegalArgumentException("Missing " + name + " in " + uri.toString());
+		try{
+			return Double.parseDouble(value);
+		} catch(NumberFormatException e){
+			throw new IllegalArgumentException("Bad " + name + " in " + uri.toString());
+		}
+	}
+	
+	/*
+	 * Reads the _id at the end of an ID route. The UriMatcher only lets digits through, but the value is still
+	 * checked so it can only ever reach SQLite as a bound integer
+	 * 
+	 * @param uri	URI requested, ending in a row _id
+	 * 
+	 * @return		The _id, as a bind argument
+	 */
+	private static String getIdSegment(Uri uri){
+		try{
+			return Long.toString(Long.parseLong(uri.getLastPathSegment()));
+		} catch(NumberFormatException e){
+			throw new IllegalArgumentException("Bad id in " + uri.toString());
+		}
+	}
+	
+	/*
+	 * Joins two arrays of bind arguments, either of which may be null
+	 * 
+	 * @param first		Arguments for the first ?'s in the statement
+	 * @param second	Arguments for the ?'s that follow
+	 * 
+	 * @return			The combined arguments, or null if both are null
+	 */
+	private static String[] concatArgs(String[] first, String[] second){
+		if(first == null)
+			return second;
+		if(second == null)
+			return first;
+		String[] args = new String[first.length + second.length];
+		System.arraycopy(first, 0, args, 0, first.length);
+		System.arraycopy(second, 0, args, first.length, second.length);
+		return args;
+	}
+
+	/*
+	 * @see android.content.ContentProvider#openFile(android.net.Uri, java.lang.String)
+	 * 
+	 * Streams an export of the observations (see DataURI.getObservationExportURI()). The export is written to a
+	 * pipe by a background thread and the read end is returned straight away, so the caller can copy it to a
+	 * file or hand it to a share intent while it's being written
+	 * 
+	 * @param uri	URI requested
+	 * @param mode	Access mode, only "r" is supported
+	 * 
+	 * @return		Read end of the pipe the export is written to
+	 */
+	@Override
+	public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+		if(uriMatcher.match(uri) != EXPORT_OBSERVATIONS){
+			Log.e(Constants.LogTags.CONTENT_PROVIDER, "Bad openFile request for " + uri.toString());
+			throw new FileNotFoundException("Unknown URI " + uri.toString());
+		}
+		if(!"r".equals(mode))
+			throw new FileNotFoundException("Exports are read only, can't open " + uri.toString() + " with mode " + mode);
+		String format = getExportFormat(uri);
+		
+		try{
+			ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+			Thread exporter = new Thread(new ObservationExporter(db.getReadableDatabase(), pipe[1], format), "ObservationExport");
+			exporter.start();
+			return pipe[0];
+		} catch(IOException e){
+			Log.e(Constants.LogTags.CONTENT_PROVIDER, "Error creating export pipe " + e.toString());
+			throw new FileNotFoundException("Can't create a pipe for " + uri.toString());
+		} catch(SQLiteException e){
+			Log.e(Constants.LogTags.CONTENT_PROVIDER, "Error opening database connection " + e.toString());
+			throw new RuntimeException("Error opening database connection", e);
+		}
+	}
+	
+	/*
+	 * Reads the format of an export URI
+	 * 
+	 * @param uri	URI requested, with the optional format query parameter
+	 * 
+	 * @return		DataURI.EXPORT_FORMAT_CSV or DataURI.EXPORT_FORMAT_NDJSON, CSV if the URI doesn't give one
+	 */
+	private static String getExportFormat(Uri uri){
+		String format = uri.getQueryParameter(DataURI.PARAM_FORMAT);
+		if(format == null || format.equals(DataURI.EXPORT_FORMAT_CSV))
+			return DataURI.EXPORT_FORMAT_CSV;
+		if(format.equals(DataURI.EXPORT_FORMAT_NDJSON))
+			return DataURI.EXPORT_FORMAT_NDJSON;
+		throw new IllegalArgumentException("Bad " + DataURI.PARAM_FORMAT + " in " + uri.toString());
+	}
+	
+	/*
+	 * @see android.content.ContentProvider#insert(android.net.Uri, android.content.ContentValues)
+	 * 
+	 * Inserting the given data into our database based on a URI.
+	 * 
+	 * @param uri		URI requested, the table to insert into
+	 * @param values	Data values to insert into the database
+	 * 
+	 * @return 			URI of newly created entry
+	 */
+	@Override
+	public Uri insert(Uri uri, ContentValues values) {
+		String operation = getOperationName("insert", uri);
+		long start = System.nanoTime();
+		try{
+			Uri newUri = insertRoute(uri, values);
+			metrics.record(operation, start, 1, 0);
+			return newUri;
+		} catch(RuntimeException e){
+			metrics.recordError(operation, start);
+			throw e;
+		}
+	}
+	
+	/*
+	 * Runs an insert for insert(), see there
+	 */
+	private Uri insertRoute(Uri uri, ContentValues values) {
+		String table = "";
+		int match = uriMatcher.match(uri);
+		
+		switch(match){
+		case BOXES:
+			table = "Box";
+			break;
+		case OBSERVATIONS:
+			table = "Observation";
+			break;
+		default:
+			Log.e(Constants.LogTags.CONTENT_PROVIDER, "Bad insert request for " + uri.toString());
+			throw new IllegalArgumentException("Unknown URI " + uri.toString());
+		}
+		
+		if(match == OBSERVATIONS)
+			values = toEpochDays(values);
+		
+		try{
+			SQLiteDatabase writableDB = db.getWritableDatabase();
+			long newRowID = writableDB.insert(table, null, values);
+		
+			if(newRowID == -1)
+				throw new RuntimeException("An error occured inserting into the database");
+		
+			//create URI of new entry and notify any listeners of change to database
+			Uri newUri;
+			if(match == BOXES){
+				newUri = DataURI.getBoxURIById((int)newRowID);
+				invalidateBox(newRowID);
+				notifyBoxChanged(newRowID);
+			} else{
+				newUri = DataURI.getObservationURIById((int)newRowID);
+				notifyObservationChanged(newRowID, (values == null) ? null : values.getAsLong("box_id"));
+				notifyBoxListChanged();
+			}
+			db.scheduleIdleCheckpoint();
+			return newUri;
+		} catch(SQLiteException e){
+			Log.e(Constants.LogTags.CONTENT_PROVIDER, "Error opening database connection " + e.toString());
+			throw new RuntimeException("Error opening database connection", e);
+		}
+	}
+	
+	/*
+	 * @see android.content.ContentProvider#bulkInsert(android.net.Uri, android.content.ContentValues[])
+	 * 
+	 * Insert many rows into the table given by the URI inside a single transaction. Rows are written through
+	 * a compiled INSERT statement which is only recompiled when the set of columns changes from one row to the
+	 * next, and change notifications are sent once the transaction has committed, one per URI affected.
+	 * 
+	 * @param uri		URI requested, the table to insert into
+	 * @param values	Data values to insert into the database, one ContentValues per row
+	 * 
+	 * @return 			Number of rows inserted
+	 */
+	@Override
+	public int bulkInsert(Uri uri, ContentValues[] values) {
+		String operation = getOperationName("bulkInsert", uri);
+		long start = System.nanoTime();
+		try{
+			int inserted = bulkInsertRoute(uri, values);
+			metrics.record(operation, start, inserted, 0);
+			return inserted;
+		} catch(RuntimeException e){
+			metrics.recordError(operation, start);
+			throw e;
+		}
+	}
+	
+	/*
+	 * Runs a bulk insert for bulkInsert(), see there
+	 */
+	private int bulkInsertRoute(Uri uri, ContentValues[] values) {
+		String table = "";
+		int match = uriMatcher.match(uri);
+		
+		switch(match){
+		case BOXES:
+			table = "Box";
+			break;
+		case OBSERVATIONS:
+			table = "Observation";
+			break;
+		default:
+			Log.e(Constants.LogTags.CONTENT_PROVIDER, "Bad bulk insert request for " + uri.toString());
+			throw new IllegalArgumentException("Unknown URI " + uri.toString());
+		}
+		
+		try{
+			SQLiteDatabase writableDB = db.getWritableDatabase();
+			int inserted = 0;
+			boolean outerBatch = beginBatch();
+			boolean success = false;
+			
+			writableDB.beginTransaction();
+			try{
+				SQLiteStatement insertStmt = null;
+				Set<String> stmtColumns = null;
+				String[] columns = null;
+				
+				try{
+					for(ContentValues row : values){
+						if(match == OBSERVATIONS)
+							row = toEpochDays(row);
+						//only compile a new statement when this row doesn't have the same columns as the last
+						if(insertStmt == null || !stmtColumns.equals(row.keySet())){
+							if(insertStmt != null)
+								insertStmt.close();
+							columns = row.keySet().toArray(new String[row.size()]);
+							stmtColumns = new HashSet<String>(Arrays.asList(columns));
+							insertStmt = compileInsert(writableDB, table, columns);
+						}
+						
+						insertStmt.clearBindings();
+						for(int i = 0; i < columns.length; i++)
+							DatabaseUtils.bindObjectToProgram(insertStmt, i + 1, row.get(columns[i]));
+						
+						long newRowID = insertStmt.executeInsert();
+						if(newRowID != -1){
+							inserted++;
+							//nothing can be watching the new rows themselves yet, so only their collections are notified
+							if(match == BOXES){
+								invalidateBox(newRowID);
+								notifyBoxesChanged();
+							} else{
+								notifyObservationsChanged(row.getAsLong("box_id"));
+								notifyBoxListChanged();
+							}
+						}
+					}
+				} finally{
+					if(insertStmt != null)
+						insertStmt.close();
+				}
+				writableDB.setTransactionSuccessful();
+				success = true;
+			} finally{
+				writableDB.endTransaction();
+				if(outerBatch)
+					endBatch(success);
+			}
+			
+			if(inserted > 0)
+				db.scheduleIdleCheckpoint();
+			return inserted;
+		} catch(SQLiteException e){
+			Log.e(Constants.LogTags.CONTENT_PROVIDER, "Error opening database connection " + e.toString());
+			throw new RuntimeException("Error opening database connection", e);
+		}
+	}
+	
+	/*
+	 * Compiles an INSERT statement for the given table and columns, with one bind parameter per column
+	 * in the same order as the columns array
+	 * 
+	 * @param writableDB	Database to compile the statement against
+	 * @param table			Table to insert into
+	 * @param columns		Columns that will be bound, may be empty
+	 * 
+	 * @return				Compiled statement, the caller is responsible for closing it
+	 */
+	private static SQLiteStatement compileInsert(SQLiteDatabase writableDB, String table, String[] columns){
+		if(columns.length == 0)
+			return writableDB.compileStatement("INSERT INTO " + table + " DEFAULT VALUES");
+		
+		StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+		StringBuilder params = new StringBuilder();
+		for(int i = 0; i < columns.length; i++){
+			if(i > 0){
+				sql.append(", ");
+				params.append(", ");
+			}
+			sql.append(columns[i]);
+			params.append('?');
+		}
+		sql.append(") VALUES (").append(params).append(')');
+		return writableDB.compileStatement(sql.toString());
+	}
+	
+	/*
+	 * @see android.content.ContentProvider#applyBatch(java.util.ArrayList)
+	 * 
+	 * Apply a batch of insert, update and delete operations inside a single transaction. If any operation
+	 * fails the whole batch is rolled back. Change notifications raised by the individual operations are
+	 * held back and sent once per URI after the transaction commits.
+	 * 
+	 * @param operations	Operations to apply, in order
+	 * 
+	 * @return				The result of each operation, in the same order as operations
+	 */
+	@Override
+	public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
+		try{
+			SQLiteDatabase writableDB = db.getWritableDatabase();
+			boolean outerBatch = beginBatch();
+			boolean success = false;
+			
+			writableDB.beginTransaction();
+			try{
+				ContentProviderResult[] results = super.applyBatch(operations);
+				writableDB.setTransactionSuccessful();
+				success = true;
+				return results;
+			} finally{
+				writableDB.endTransaction();
+				if(outerBatch)
+					endBatch(success);
+			}
+		} catch(SQLiteException e){
+			Log.e(Constants.LogTags.CONTENT_PROVIDER, "Error opening database connection " + e.toString());
+			throw new RuntimeException("Error opening database connection", e);
+		}
+	}
+	
+	/*
+	 * @see android.content.ContentProvider#update(android.net.Uri, android.content.ContentValues, java.lang.String, java.lang.String[])
+	 * 
+	 * Update the database given a URI, selection parameters and new data values
+	 * 
+	 * @param uri				URI requested, the table or entity to update
+	 * @param values			New data values to set
+	 * @param selection			The where clause requested ("_ID = ? and name = ? ...")
+	 * @param selectionArgs		Strings to replace ? with in selection (["1", "Bob" ...])
+	 * 
+	 * @return 					Number of rows affected
+	 */
+	@Override
+	public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+		String operation = getOperationName("update", uri);
+		long start = System.nanoTime();
+		try{
+			int changed = updateRoute(uri, values, selection, selectionArgs);
+			metrics.record(operation, start, changed, 0);
+			slowQueries.check(operation, start, db.getReadableDatabase());
+			return changed;
+		} catch(RuntimeException e){
+			metrics.recordError(operation, start);
+			slowQueries.discard();
+			throw e;
+		}
+	}
+	
+	/*
+	 * Runs an update for update(), see there
+	 */
+	private int updateRoute(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+		String table = "";
+		int route = uriMatcher.match(uri);
+		
+		switch(route){
+		case BOXES:
+			table = "Box";
+			break;
+		case OBSERVATIONS:
+			table = "Observation";
+			break;
+		case BOX_ID:
+			table = "Box";
+			//ignore the user's selection clause and values, the URI specifies the where clause we want
+			selection = "_id = ?"; 
+			selectionArgs = new String[] {getIdSegment(uri)};
+			break;
+		case OBSERVATIONS_ID:
+			table = "Observation";
+			//ignore the user's selection clause and values, the URI specifies the where clause we want
+			selection = "_id = ?";
+			selectionArgs = new String[] {getIdSegment(uri)};
+			break;
+		default:
+			Log.e(Constants.LogTags.CONTENT_PROVIDER, "Bad update request for " + uri.toString());
+			throw new IllegalArgumentException("Unknown URI " + uri.toString());
+		}
+		
+		if(table.equals("Observation"))
+			values = toEpochDays(values);
+		
+		try{
+			SQLiteDatabase writableDB = db.getWritableDatabase();
+			boolean outerBatch = beginBatch();
+			boolean success = false;
+			int changed = 0;
+			
+			writableDB.beginTransaction();
+			try{
+				notifyRowsChanged(writableDB, table, selection, selectionArgs);
+				changed = writableDB.update(table, values, selection, selectionArgs);
+				if(changed == 0 && route == OBSERVATIONS_ID)
+					checkNotArchived(writableDB, uri);
+				//rows moved to another box change that box's observations too
+				if(changed > 0 && table.equals("Observation") && values.containsKey("box_id"))
+					notifyObservationsChanged(values.getAsLong("box_id"));
+				if(changed > 0 && table.equals("Observation") && writesLatestObservation(values))
+					notifyBoxListChanged();
+				writableDB.setTransactionSuccessful();
+				success = true;
+			} finally{
+				writableDB.endTransaction();
+				if(outerBatch)
+					endBatch(success);
+			}
+			
+			if(changed > 0)
+				db.scheduleIdleCheckpoint();
+			return changed;
+		} catch(SQLiteException e){
+			Log.e(Constants.LogTags.CONTENT_PROVIDER, "Error opening database connection " + e.toString());
+			throw new RuntimeException("Error opening database connection", e);
+		}
+	}
+	
+	/*
+	 * @see android.content.ContentProvider#delete(android.net.Uri, java.lang.String, java.lang.String[])
+	 * 
+	 * Delete rows from the database based on a URI and/or selection arguments
+	 * 
+	 * @param uri				URI requested, the table or entity to update
+	 * @param selection			The where clause requested ("_ID = ? and name = ? ...")
+	 * @param selectionArgs		Strings to replace ? with in selection (["1", "Bob" ...])
+	 */
+	@Override
+	public int delete(Uri uri, String selection, String[] selectionArgs) {
+		String operation = getOperationName("delete", uri);
+		long start = System.nanoTime();
+		try{
+			int deleted = deleteRoute(uri, selection, selectionArgs);
+			metrics.record(operation, start, deleted, 0);
+			slowQueries.check(operation, start, db.getReadableDatabase());
+			return deleted;
+		} catch(RuntimeException e){
+			metrics.recordError(operation, start);
+			slowQueries.discard();
+			throw e;
+		}
+	}
+	
+	/*
+	 * Runs a delete for delete(), see there
+	 */
+	private int deleteRoute(Uri uri, String selection, String[] selectionArgs) {
+		String table = "";
+		int route = uriMatcher.match(uri);
+		
+		switch(route){
+		case BOXES:
+			table = "Box";
+			break;
+		case OBSERVATIONS:
+			table = "Observation";
+			break;
+		case BOX_ID:
+			table = "Box";
+			//ignore the user's selection clause and values, the URI specifies the where clause we want
+			selection = "_id = ?";
+			selectionArgs = new String[] {getIdSegment(uri)};
+			break;
+		case OBSERVATIONS_ID:
+			table = "Observation";
+			//ignore the user's selection clause and values, the URI specifies the where clause we want
+			selection = "_id = ?";
+			selectionArgs = new String[] {getIdSegment(uri)};
+			break;
+		case CHANGES:
+			return deleteAcknowledgedChanges(uri);
+		default:
+			Log.e(Constants.LogTags.CONTENT_PROVIDER, "Bad delete request for " + uri.toString());
+			throw new IllegalArgumentException("Unknown URI " + uri.toString());
+		}
+		
+		try{
+			SQLiteDatabase writableDB = db.getWritableDatabase();
+			boolean outerBatch = beginBatch();
+			boolean success = false;
+			int deleted = 0;
+			
+			writableDB.beginTransaction();
+			try{
+				notifyRowsChanged(writableDB, table, selection, selectionArgs);
+				deleted = writableDB.delete(table, selection, selectionArgs);
+				if(deleted == 0 && route == OBSERVATIONS_ID)
+					checkNotArchived(writableDB, uri);
+				if(deleted > 0 && table.equals("Observation"))
+					notifyBoxListChanged();
+				writableDB.setTransactionSuccessful();
+				success = true;
+			} finally{
+				writableDB.endTransaction();
+				if(outerBatch)
+					endBatch(success);
+			}
+			
+			if(deleted > 0)
+				db.scheduleIdleCheckpoint();
+			return deleted;
+		} catch(SQLiteException e){
+			Log.e(Constants.LogTags.CONTENT_PROVIDER, "Error opening database connection " + e.toString());
+			throw new RuntimeException("Error opening database connection", e);
+		}
+	}
+	
+	/*
+	 * Deletes the changes a sync server has acknowledged from the change log. A row written again after it was
+	 * sent has a newer seq, so it stays in the log and is sent again by the next sync
+	 * 
+	 * @param uri	URI requested, with the through_seq query parameter
+	 * 
+	 * @return		Number of changes deleted
+	 */
+	private int deleteAcknowledgedChanges(Uri uri){
+		String throughSeq = uri.getQueryParameter(DataURI.PARAM_THROUGH_SEQ);
+		if(throughSeq == null)
+			throw new IllegalArgumentException("Missing " + DataURI.PARAM_THROUGH_SEQ + " in " + uri.toString());
+		try{
+			throughSeq = Long.toString(Long.parseLong(throughSeq));
+		} catch(NumberFormatException e){
+			throw new IllegalArgumentException("Bad " + DataURI.PARAM_THROUGH_SEQ + " in " + uri.toString());
+		}
+		
+		try{
+			slowQueries.capture("DELETE FROM ChangeLog WHERE seq <= ?", new String[] {throughSeq});
+			int deleted = db.getWritableDatabase().delete("ChangeLog", "seq <= ?", new String[] {throughSeq});
+			if(deleted > 0)
+				db.scheduleIdleCheckpoint();
+			return deleted;
+		} catch(SQLiteException e){
+			Log.e(Constants.LogTags.CONTENT_PROVIDER, "Error opening database connection " + e.toString());
+			throw new RuntimeException("Error opening database connection", e);
+		}
+	}
+	
+	/*
+	 * @return	Whether an update of observations writes any of the LATEST_OBSERVATION_COLUMNS
+	 */
+	private static boolean writesLatestObservation(ContentValues values){
+		for(String column : LATEST_OBSERVATION_COLUMNS){
+			if(values.containsKey(column))
+				return true;
+		}
+		return false;
+	}
+	
+	/*
+	 * Refuses a write by _id to an observation that found nothing to change because the observation is archived.
+	 * OBSERVATIONS_ID queries read archived observations, so a write that quietly changed nothing would look
+	 * like it had worked
+	 * 
+	 * @param writableDB	Database the write runs against
+	 * @param uri			OBSERVATIONS_ID URI written
+	 */
+	private static void checkNotArchived(SQLiteDatabase writableDB, Uri uri){
+		if(DatabaseUtils.longForQuery(writableDB, "SELECT count(*) FROM ObservationArchive WHERE _id = ?",
+				new String[] {getIdSegment(uri)}) > 0)
+			throw new IllegalArgumentException("Archived observations are read only, can't change " + uri.toString());
+	}
+	
+	private static Uri getBoxWatchURI(long boxId){
+		return ContentUris.withAppendedId(BOX_WATCH_URI, boxId);
+	}
+	
+	private static Uri getBoxObservationsWatchURI(long boxId){
+		return Uri.withAppendedPath(getBoxWatchURI(boxId), "observations");
+	}
+	
+	private static Uri getBoxSummariesWatchURI(long boxId){
+		return Uri.withAppendedPath(getBoxWatchURI(boxId), "summaries");
+	}
+	
+	/*
+	 * Queues notifications for the rows of a table that an update or delete is about to change. Must be called
+	 * inside the write's transaction so the rows found are the ones the write changes. Finding the rows takes the
+	 * same plan as the write itself, so this query is the one the slow query log keeps for the write
+	 * 
+	 * @param writableDB	Database the write runs against
+	 * @param table			Table being written, Box or Observation
+	 * @param selection		Where clause of the write
+	 * @param selectionArgs	Arguments for the where clause
+	 */
+	private void notifyRowsChanged(SQLiteDatabase writableDB, String table, String selection, String[] selectionArgs){
+		boolean isBox = table.equals("Box");
+		String sql = SQLiteQueryBuilder.buildQueryString(false, table, isBox ? new String[] {"_id"} : new String[] {"_id", "box_id"},
+				selection, null, null, null, null);
+		Cursor c = rawQuery(writableDB, sql, selectionArgs);
+		try{
+			boolean eachRow = c.getCount() <= NOTIFY_ROW_LIMIT;
+			if(!eachRow)
+				notifyChange(isBox ? BOX_WATCH_URI : OBSERVATION_WATCH_URI);
+			
+			while(c.moveToNext()){
+				if(isBox){
+					invalidateBox(c.getLong(0));
+					if(eachRow)
+						notifyBoxChanged(c.getLong(0));
+					else
+						notifyBoxesChanged();
+				} else{
+					Long boxId = c.isNull(1) ? null : c.getLong(1);
+					if(eachRow)
+						notifyObservationChanged(c.getLong(0), boxId);
+					else
+						notifyObservationsChanged(boxId);
+				}
+			}
+		} finally{
+			c.close();
+		}
+	}
+	
+	/*
+	 * Queues notifications for a change to box N. Its observations and summaries are notified along with
+	 * it since they are below it
+	 */
+	private void notifyBoxChanged(long boxId){
+		notifyChange(getBoxWatchURI(boxId));
+		notifyBoxesChanged();
+	}
+	
+	/*
+	 * Queues notifications for a change to the Box table, without notifying any single box
+	 */
+	private void notifyBoxesChanged(){
+		notifyChange(DataURI.getAllBoxesURI());
+		notifyChange(SEARCH_WATCH_URI);
+	}
+	
+	/*
+	 * Queues a notification for the box list alone. The list shows each box's last check date, so observation
+	 * writes that can change a box's latest obs_date need to reach it, other observation writes don't
+	 */
+	private void notifyBoxListChanged(){
+		notifyChange(DataURI.getAllBoxesURI());
+	}
+	
+	/*
+	 * Queues notifications for a change to observation N, which belongs to the given box
+	 */
+	private void notifyObservationChanged(long observationId, Long boxId){
+		notifyChange(ContentUris.withAppendedId(OBSERVATION_WATCH_URI, observationId));
+		notifyObservationsChanged(boxId);
+	}
+	
+	/*
+	 * Queues notifications for a change to the observations of a box, without notifying any single observation.
+	 * The season summaries are maintained from observations by triggers, so they are notified as well. So are the
+	 * box's latest observation columns, so the box is dropped from the Box row cache
+	 * 
+	 * @param boxId	The _id of the box the changed observations belong to, may be null
+	 */
+	private void notifyObservationsChanged(Long boxId){
+		notifyChange(DataURI.getAllObservationsURI());
+		notifyChange(SUMMARIES_WATCH_URI);
+		notifyChange(SEARCH_WATCH_URI);
+		if(boxId != null){
+			invalidateBox(boxId);
+			notifyChange(getBoxObservationsWatchURI(boxId));
+			notifyChange(getBoxSummariesWatchURI(boxId));
+		}
+	}
+	
+	/*
+	 * Starts holding back change notifications on the current thread
+	 * 
+	 * @return	true if this call started the batch, false if a batch was already running on this thread
+	 */
+	private boolean beginBatch(){
+		if(pendingNotifications.get() != null)
+			return false;
+		pendingNotifications.set(new LinkedHashSet<Uri>());
+		pendingBoxInvalidations.set(new HashSet<Long>());
+		return true;
+	}
+	
+	/*
+	 * Stops holding back change notifications on the current thread and, if the batch committed, sends
+	 * one notification for each distinct URI that was changed during the batch
+	 * 
+	 * @param committed	Whether the batch's transaction was committed
+	 */
+	private void endBatch(boolean committed){
+		Set<Uri> pending = pendingNotifications.get();
+		pendingNotifications.remove();
+		
+		//a reader may have cached a box as it was before the batch committed, whether or not it did commit
+		Set<Long> boxIds = pendingBoxInvalidations.get();
+		pendingBoxInvalidations.remove();
+		if(boxIds != null){
+			for(Long boxId : boxIds)
+				boxCache.invalidate(boxId);
+		}
+		
+		if(committed && pending != null){
+			for(Uri uri : pending)
+				getContext().getContentResolver().notifyChange(uri, null, false);
+		}
+	}
+	
+	/*
+	 * Drops a box from the Box row cache. Inside a batch it is dropped again when the batch ends, see endBatch()
+	 * 
+	 * @param boxId	_id of the box being written
+	 */
+	private void invalidateBox(long boxId){
+		boxCache.invalidate(boxId);
+		Set<Long> pending = pendingBoxInvalidations.get();
+		if(pending != null)
+			pending.add(boxId);
+	}
+	
+	/*
+	 * Notifies listeners that the data at the given URI changed. Inside a batch the notification is queued
+	 * until the batch ends instead of being sent right away
+	 * 
+	 * @param uri	URI whose data changed
+	 */
+	private void notifyChange(Uri uri){
+		Set<Uri> pending = pendingNotifications.get();
+		if(pending != null)
+			pending.add(uri);
+		else
+			getContext().getContentResolver().notifyChange(uri, null, false);
+	}
+	
+	/*
+	 * @see android.content.ContentProvider#call(java.lang.String, java.lang.String, android.os.Bundle)
+	 * 
+	 * Provider methods that aren't queries. METHOD_BOX_CACHE_STATS returns the hits, misses and size of the Box
+	 * row cache, to tell whether it pays off
+	 * 
+	 * @param method	Name of the method to call
+	 * @param arg		Unused
+	 * @param extras	Unused
+	 * 
+	 * @return			The method's result
+	 */
+	@Override
+	public Bundle call(String method, String arg, Bundle extras){
+		if(METHOD_BOX_CACHE_STATS.equals(method)){
+			Bundle stats = new Bundle();
+			stats.putLong(BOX_CACHE_HITS, boxCache.hits());
+			stats.putLong(BOX_CACHE_MISSES, boxCache.misses());
+			stats.putInt(BOX_CACHE_SIZE_KEY, boxCache.size());
+			return stats;
+		}
+		
+		if(METHOD_METRICS.equals(method)){
+			if(!METRICS_FORMAT_TEXT.equals(arg))
+				return metrics.toBundle();
+			Bundle result = new Bundle();
+			result.putString(METRICS_TEXT, formatMetrics());
+			return result;
+		}
+		if(METHOD_RESET_METRICS.equals(method)){
+			metrics.reset();
+			return null;
+		}
+		if(METHOD_SET_SLOW_QUERY_THRESHOLD.equals(method)){
+			try{
+				slowQueries.setThreshold((arg == null) ? -1 : Long.parseLong(arg));
+			} catch(NumberFormatException e){
+				throw new IllegalArgumentException("Bad slow query threshold " + arg);
+			}
+			return null;
+		}
+		if(METHOD_SLOW_QUERIES.equals(method)){
+			Bundle result = new Bundle();
+			result.putParcelableArrayList(SLOW_QUERIES, slowQueries.toBundles());
+			return result;
+		}
+		if(METHOD_CLEAR_SLOW_QUERIES.equals(method)){
+			slowQueries.clear();
+			return null;
+		}
+		
+		Bundle result = new Bundle();
+		if(METHOD_BOX_OBSERVATION_COUNT.equals(method))
+			result.putLong(SCALAR_VALUE, queryBoxLong(OBSERVATION_COUNT_SQL, arg));
+		else if(METHOD_BOX_LATEST_OBS_DATE.equals(method)){
+			String latest = queryBoxString(LATEST_OBS_DATE_SQL, arg);
+			result.putString(SCALAR_VALUE, (latest == null) ? null : EpochDays.format(Long.parseLong(latest)));
+		}
+		else if(METHOD_ARCHIVE_OBSERVATIONS.equals(method))
+			result.putInt(SCALAR_VALUE, archiveObservations(arg));
+		else if(METHOD_BOX_EXISTS.equals(method))
+			result.putBoolean(SCALAR_VALUE, boxCache.get(parseBoxId(arg)) != null || queryBoxLong(BOX_EXISTS_SQL, arg) != 0);
+		else
+			return super.call(method, arg, extras);
+		return result;
+	}
+	
+	/*
+	 * Runs a query's SQL, handing the statement to the slow query log first
+	 */
+	private Cursor rawQuery(SQLiteDatabase database, String sql, String[] args){
+		slowQueries.capture(sql, args);
+		return database.rawQuery(sql, args);
+	}
+	
+	/*
+	 * Names an operation on the route a URI matches for the metrics, such as "query observation/#"
+	 */
+	private static String getOperationName(String operation, Uri uri){
+		String route = routeNames.get(uriMatcher.match(uri));
+		return operation + " " + ((route == null) ? "unknown" : route);
+	}
+	
+	/*
+	 * Works out how many times a cursor fills its CursorWindow to be read from start to end, each fill running the
+	 * query again up to the window's first row. Only known once the first window is filled, before then, or for
+	 * cursors that don't use a window, 0
+	 * 
+	 * @param rows	Number of rows of the cursor
+	 */
+	private static int countWindowFills(Cursor c, int rows){
+		if(!(c instanceof AbstractWindowedCursor))
+			return 0;
+		CursorWindow window = ((AbstractWindowedCursor)c).getWindow();
+		if(window == null || window.getNumRows() == 0)
+			return 0;
+		return (rows + window.getNumRows() - 1) / window.getNumRows();
+	}
+	
+	/*
+	 * Moves the observations of closed sessions into ObservationArchive, see METHOD_ARCHIVE_OBSERVATIONS. The rows
+	 * being moved are listed in ArchiveMove for the length of the move, which keeps the delete triggers on
+	 * Observation from counting them as deleted
+	 * 
+	 * @param beforeDay	Epoch day, as passed to call(), observations made on or after it stay where they are
+	 * 
+	 * @return			Number of observations moved
+	 */
+	private int archiveObservations(String beforeDay){
+		long before;
+		if(beforeDay == null){
+			Calendar now = Calendar.getInstance();
+			before = EpochDays.fromDate(now.get(Calendar.YEAR), 1, 1);
+		} else{
+			try{
+				before = Long.parseLong(beforeDay);
+			} catch(NumberFormatException e){
+				throw new IllegalArgumentException("Bad archive date " + beforeDay);
+			}
+		}
+		
+		try{
+			SQLiteDatabase writableDB = db.getWritableDatabase();
+			boolean outerBatch = beginBatch();
+			boolean success = false;
+			int moved = 0;
+			
+			writableDB.beginTransaction();
+			try{
+				writableDB.execSQL("INSERT INTO ArchiveMove(observation_id) SELECT _id FROM Observation " +
+						"WHERE obs_date < ? AND session_desc <> ?", new Object[] {before, SESSION_IN_PROGRESS});
+				
+				Cursor c = writableDB.rawQuery("SELECT DISTINCT box_id FROM Observation " +
+						"WHERE _id IN (SELECT observation_id FROM ArchiveMove)", null);
+				try{
+					while(c.moveToNext())
+						notifyObservationsChanged(c.isNull(0) ? null : c.getLong(0));
+				} finally{
+					c.close();
+				}
+				
+				writableDB.execSQL(ARCHIVE_MOVE_SQL);
+				moved = writableDB.delete("Observation", "_id IN (SELECT observation_id FROM ArchiveMove)", null);
+				writableDB.delete("ArchiveMove", null, null);
+				if(moved > 0)
+					notifyBoxListChanged();
+				writableDB.setTransactionSuccessful();
+				success = true;
+			} finally{
+				writableDB.endTransaction();
+				if(outerBatch)
+					endBatch(success);
+			}
+			
+			Log.d(Constants.LogTags.CONTENT_PROVIDER, "Archived " + moved + " observations");
+			if(moved > 0)
+				db.scheduleIdleCheckpoint();
+			return moved;
+		} catch(SQLiteException e){
+			Log.e(Constants.LogTags.CONTENT_PROVIDER, "Error opening database connection " + e.toString());
+			throw new RuntimeException("Error opening database connection", e);
+		}
+	}
+	
+	/*
+	 * Runs one of the scalar lookups for a box through its compiled statement
+	 * 
+	 * @param sql	SQL of the lookup, with the box _id as its only argument
+	 * @param boxId	_id of the box, as passed to call()
+	 * 
+	 * @return		The value of the lookup's single column
+	 */
+	private long queryBoxLong(String sql, String boxId){
+		long id = parseBoxId(boxId);
+		try{
+			SQLiteStatement stmt = getStatement(sql);
+			synchronized(stmt){
+				stmt.bindLong(1, id);
+				return stmt.simpleQueryForLong();
+			}
+		} catch(SQLiteException e){
+			Log.e(Constants.LogTags.CONTENT_PROVIDER, "Error opening database connection " + e.toString());
+			throw new RuntimeException("Error opening database connection", e);
+		}
+	}
+	
+	/*
+	 * @see #queryBoxLong(String, String)
+	 */
+	private String queryBoxString(String sql, String boxId){
+		long id = parseBoxId(boxId);
+		try{
+			SQLiteStatement stmt = getStatement(sql);
+			synchronized(stmt){
+				stmt.bindLong(1, id);
+				return stmt.simpleQueryForString();
+			}
+		} catch(SQLiteException e){
+			Log.e(Constants.LogTags.CONTENT_PROVIDER, "Error opening database connection " + e.toString());
+			throw new RuntimeException("Error opening database connection", e);
+		}
+	}
+	
+	private static long parseBoxId(String boxId){
+		try{
+			return Long.parseLong(boxId);
+		} catch(NumberFormatException e){
+			throw new IllegalArgumentException("Bad box id " + boxId);
+		}
+	}
+	
+	/*
+	 * Returns the compiled statement for one of the scalar lookups, compiling it the first time it's used. The
+	 * statements live as long as the provider, so a lookup doesn't parse any SQL or allocate a Cursor. A statement
+	 * can only run one lookup at a time, callers synchronize on it while binding and running it
+	 * 
+	 * @param sql	SQL of the lookup
+	 * 
+	 * @return		The compiled statement
+	 */
+	private SQLiteStatement getStatement(String sql){
+		synchronized(statements){
+			SQLiteStatement stmt = statements.get(sql);
+			if(stmt == null){
+				stmt = db.getWritableDatabase().compileStatement(sql);
+				statements.put(sql, stmt);
+			}
+			return stmt;
+		}
+	}
+	
+	/*
+	 * Prints the metrics of each route, the box cache's counters and the slow query log, for the METHOD_METRICS
+	 * text report. Not a dump() override, ContentProvider.dump() needs API 18
+	 * 
+	 * @return	The report
+	 */
+	private String formatMetrics(){
+		StringWriter report = new StringWriter();
+		PrintWriter writer = new PrintWriter(report);
+		metrics.dump(writer);
+		writer.println();
+		writer.println("box cache: " + boxCache.hits() + " hits, " + boxCache.misses() + " misses, " + boxCache.size() + " rows");
+		writer.println();
+		slowQueries.dump(writer);
+		writer.flush();
+		return report.toString();
+	}
+	
+	/*
+	 * @see android.content.ContentProvider#shutdown()
+	 * 
+	 * Called when shutting down the content provider, used to free up any resources or persist any data before the OS
+	 * shuts us down. Closes the compiled statements of the scalar lookups and the database
+	 */
+	@Override
+	public void shutdown(){
+		synchronized(statements){
+			for(SQLiteStatement stmt : statements.values())
+				stmt.close();
+			statements.clear();
+		}
+		db.close();
 		super.shutdown();
 	}
 }
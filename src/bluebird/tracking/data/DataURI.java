@@ -12,6 +12,57 @@ import android.net.Uri;
  */
 public final class DataURI {
 	
+	/* Query parameters understood by the box location URIs */
+	public static final String PARAM_LATITUDE = "lat";
+	public static final String PARAM_LONGITUDE = "lon";
+	public static final String PARAM_LIMIT = "limit";
+	public static final String PARAM_MIN_LATITUDE = "min_lat";
+	public static final String PARAM_MAX_LATITUDE = "max_lat";
+	public static final String PARAM_MIN_LONGITUDE = "min_lon";
+	public static final String PARAM_MAX_LONGITUDE = "max_lon";
+	
+	/* Query parameters understood by the paginated observation URIs */
+	public static final String PARAM_PAGE_SIZE = "page_size";
+	public static final String PARAM_AFTER_DATE = "after_date";
+	public static final String PARAM_AFTER_ID = "after_id";
+	
+	/* Query parameters understood by the observation date range URIs, inclusive epoch days (see EpochDays) */
+	public static final String PARAM_FROM_DAY = "from_day";
+	public static final String PARAM_TO_DAY = "to_day";
+	
+	/* Query parameter understood by the season summary URIs */
+	public static final String PARAM_SEASON = "season";
+	
+	/* Query parameter understood by the search URI, along with PARAM_LIMIT */
+	public static final String PARAM_QUERY = "q";
+	
+	/* Query parameter understood by the change log URI when deleting, along with PARAM_LIMIT when querying */
+	public static final String PARAM_THROUGH_SEQ = "through_seq";
+	
+	/* Query parameter understood by the export URI, and the formats it can take */
+	public static final String PARAM_FORMAT = "format";
+	public static final String EXPORT_FORMAT_CSV = "csv";
+	public static final String EXPORT_FORMAT_NDJSON = "ndjson";
+	
+	/* Query parameter understood by the box, observation and season summary URIs, naming the columns returned
+	 * when the query passes no projection: the few a list row shows, what a screen showing one row needs, or every
+	 * column the user entered. See DataProvider.BOX_LIST_PROJECTION and the *_PROJECTION arrays after it */
+	public static final String PARAM_PROFILE = "profile";
+	public static final String PROFILE_LIST = "list";
+	public static final String PROFILE_DETAIL = "detail";
+	public static final String PROFILE_EXPORT = "export";
+	
+	/* Query parameters filtering the box URIs (all, within and nearest) on the trail (loc_desc), box_type or
+	 * condition of the box, and the observation URIs on the species. Repeat a parameter to match any of several
+	 * values, see withFilter() */
+	public static final String PARAM_TRAIL = "trail";
+	public static final String PARAM_BOX_TYPE = "box_type";
+	public static final String PARAM_CONDITION = "condition";
+	public static final String PARAM_SPECIES = "species";
+	
+	/* Query parameter ordering the box, observation and season summary URIs, see withSort() */
+	public static final String PARAM_SORT = "sort";
+	
 	private static Uri ALL_BOXES;
 	private static Uri ALL_OBSERVATIONS;
 	
@@ -30,7 +81,8 @@ public final class DataURI {
 	
 	/*
 	 * Creates the URI needed to access all observations in the database (regardless
-	 * of the box that owns the observation
+	 * of the box that owns the observation), except the archived ones, see DataProvider.METHOD_ARCHIVE_OBSERVATIONS.
+	 * The observation page and date range URIs include archived observations
 	 * 
 	 * @return	The content URI referring to all observations
 	 */
@@ -54,7 +106,8 @@ public final class DataURI {
 	
 	/*
 	 * Creates the URI needed to access an observation given the observation's id. Does not ensure that an
-	 * observation with that id actually exists
+	 * observation with that id actually exists. Queries find archived observations too, but they are read only:
+	 * updating or deleting one throws IllegalArgumentException
 	 * 
 	 * @param	observationId, the _id of the desired observation
 	 * @return	The content URI referring to the specified observation
@@ -64,8 +117,8 @@ public final class DataURI {
 	}
 	
 	/*
-	 * Creates the URI needed to access all observations for a given box. Does not ensure that any observations
-	 * for the box with that id actually exist
+	 * Creates the URI needed to access all observations for a given box, except the archived ones. Does not ensure
+	 * that any observations for the box with that id actually exist
 	 * 
 	 * @param	boxId, the _id of the box whose observations we want
 	 * @return	The content URI referring to the observations of the specified box
@@ -73,4 +126,249 @@ public final class DataURI {
 	public static Uri getBoxObservationsURIById(int boxId){
 		return Uri.parse("content://" + DataProvider.AUTHORITY + "/observations/box/" + Integer.toString(boxId));
 	}
+	
+	/*
+	 * Creates the URI needed to access all boxes whose coordinates fall inside a bounding box
+	 * 
+	 * @param	minLatitude, the southern edge of the bounding box
+	 * @param	minLongitude, the western edge of the bounding box
+	 * @param	maxLatitude, the northern edge of the bounding box
+	 * @param	maxLongitude, the eastern edge of the bounding box
+	 * @return	The content URI referring to the boxes inside the bounding box
+	 */
+	public static Uri getBoxesWithinURI(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude){
+		return Uri.parse("content://" + DataProvider.AUTHORITY + "/boxes/within").buildUpon()
+				.appendQueryParameter(PARAM_MIN_LATITUDE, Double.toString(minLatitude))
+				.appendQueryParameter(PARAM_MIN_LONGITUDE, Double.toString(minLongitude))
+				.appendQueryParameter(PARAM_MAX_LATITUDE, Double.toString(maxLatitude))
+				.appendQueryParameter(PARAM_MAX_LONGITUDE, Double.toString(maxLongitude))
+				.build();
+	}
+	
+	/*
+	 * Creates the URI needed to access the boxes closest to a point, closest first
+	 * 
+	 * @param	latitude, latitude of the point
+	 * @param	longitude, longitude of the point
+	 * @param	limit, the number of boxes to return
+	 * @return	The content URI referring to the nearest boxes
+	 */
+	public static Uri getNearestBoxesURI(double latitude, double longitude, int limit){
+		return Uri.parse("content://" + DataProvider.AUTHORITY + "/boxes/nearest").buildUpon()
+				.appendQueryParameter(PARAM_LATITUDE, Double.toString(latitude))
+				.appendQueryParameter(PARAM_LONGITUDE, Double.toString(longitude))
+				.appendQueryParameter(PARAM_LIMIT, Integer.toString(limit))
+				.build();
+	}
+	
+	/*
+	 * Creates the URI needed to access the first page of all observations, newest first. Pages are ordered by
+	 * obs_date DESC, _id DESC, with the observations that have no obs_date last
+	 * 
+	 * @param	pageSize, the maximum number of observations in the page
+	 * @return	The content URI referring to the first page of observations
+	 */
+	public static Uri getObservationsPageURI(int pageSize){
+		return buildPageURI(Uri.parse("content://" + DataProvider.AUTHORITY + "/observations/page"), pageSize, null, null);
+	}
+	
+	/*
+	 * Creates the URI needed to access the page of all observations after a given row, see
+	 * getObservationsPageURI(int). Pass the obs_date and _id of the last row of a page to get the page after it.
+	 * Pages continued from a dated row have only dated rows in them, so once one comes back short pass null and
+	 * Long.MAX_VALUE to go on to the observations without an obs_date
+	 * 
+	 * @param	pageSize, the maximum number of observations in the page
+	 * @param	afterDate, obs_date (an epoch day) of the last row of the previous page, or null if it had none
+	 * @param	afterId, _id of the last row of the previous page
+	 * @return	The content URI referring to the page of observations
+	 */
+	public static Uri getObservationsPageURI(int pageSize, Long afterDate, long afterId){
+		return buildPageURI(Uri.parse("content://" + DataProvider.AUTHORITY + "/observations/page"), pageSize, afterDate, afterId);
+	}
+	
+	/*
+	 * Creates the URI needed to access the first page of a box's observations, newest first, ordered as
+	 * getObservationsPageURI(int)
+	 * 
+	 * @param	boxId, the _id of the box whose observations we want
+	 * @param	pageSize, the maximum number of observations in the page
+	 * @return	The content URI referring to the first page of the box's observations
+	 */
+	public static Uri getBoxObservationsPageURI(int boxId, int pageSize){
+		return buildPageURI(Uri.parse("content://" + DataProvider.AUTHORITY + "/observations/box/" + Integer.toString(boxId) + "/page"),
+				pageSize, null, null);
+	}
+	
+	/*
+	 * Creates the URI needed to access the page of a box's observations after a given row, see
+	 * getObservationsPageURI(int, Long, long)
+	 * 
+	 * @param	boxId, the _id of the box whose observations we want
+	 * @param	pageSize, the maximum number of observations in the page
+	 * @param	afterDate, obs_date (an epoch day) of the last row of the previous page, or null if it had none
+	 * @param	afterId, _id of the last row of the previous page
+	 * @return	The content URI referring to the page of the box's observations
+	 */
+	public static Uri getBoxObservationsPageURI(int boxId, int pageSize, Long afterDate, long afterId){
+		return buildPageURI(Uri.parse("content://" + DataProvider.AUTHORITY + "/observations/box/" + Integer.toString(boxId) + "/page"),
+				pageSize, afterDate, afterId);
+	}
+	
+	private static Uri buildPageURI(Uri base, int pageSize, Long afterDate, Long afterId){
+		Uri.Builder builder = base.buildUpon().appendQueryParameter(PARAM_PAGE_SIZE, Integer.toString(pageSize));
+		if(afterDate != null)
+			builder.appendQueryParameter(PARAM_AFTER_DATE, Long.toString(afterDate));
+		if(afterId != null)
+			builder.appendQueryParameter(PARAM_AFTER_ID, Long.toString(afterId));
+		return builder.build();
+	}
+	
+	/*
+	 * Creates the URI needed to access the observations made between two dates, newest first
+	 * 
+	 * @param	fromDay, the epoch day of the first date, see EpochDays
+	 * @param	toDay, the epoch day of the last date, included in the range
+	 * @return	The content URI referring to the observations in the range
+	 */
+	public static Uri getObservationsInRangeURI(long fromDay, long toDay){
+		return buildRangeURI(Uri.parse("content://" + DataProvider.AUTHORITY + "/observations/range"), fromDay, toDay);
+	}
+	
+	/*
+	 * Creates the URI needed to access a box's observations made between two dates, newest first
+	 * 
+	 * @param	boxId, the _id of the box whose observations we want
+	 * @param	fromDay, the epoch day of the first date, see EpochDays
+	 * @param	toDay, the epoch day of the last date, included in the range
+	 * @return	The content URI referring to the box's observations in the range
+	 */
+	public static Uri getBoxObservationsInRangeURI(int boxId, long fromDay, long toDay){
+		return buildRangeURI(Uri.parse("content://" + DataProvider.AUTHORITY + "/observations/box/" + Integer.toString(boxId) + "/range"),
+				fromDay, toDay);
+	}
+	
+	private static Uri buildRangeURI(Uri base, long fromDay, long toDay){
+		return base.buildUpon()
+				.appendQueryParameter(PARAM_FROM_DAY, Long.toString(fromDay))
+				.appendQueryParameter(PARAM_TO_DAY, Long.toString(toDay))
+				.build();
+	}
+	
+	/*
+	 * Adds a projection profile to a box, observation or season summary URI. Without one, the URIs of single
+	 * boxes and observations return the PROFILE_DETAIL columns and every other URI the PROFILE_LIST columns
+	 * 
+	 * @param	uri, the URI to query
+	 * @param	profile, PROFILE_LIST, PROFILE_DETAIL or PROFILE_EXPORT
+	 * @return	The URI, returning the profile's columns when queried without a projection
+	 */
+	public static Uri withProfile(Uri uri, String profile){
+		return uri.buildUpon().appendQueryParameter(PARAM_PROFILE, profile).build();
+	}
+	
+	/*
+	 * Adds a filter to a box or observation URI, such as withFilter(getAllBoxesURI(), PARAM_TRAIL, "Trail A").
+	 * Adding the same filter again matches either value
+	 * 
+	 * @param	uri, the URI to query
+	 * @param	filter, PARAM_TRAIL, PARAM_BOX_TYPE or PARAM_CONDITION for boxes, PARAM_SPECIES for observations
+	 * @param	value, the value the column must have
+	 * @return	The URI, returning only the rows that match
+	 */
+	public static Uri withFilter(Uri uri, String filter, String value){
+		return uri.buildUpon().appendQueryParameter(filter, value).build();
+	}
+	
+	/*
+	 * Adds a sort to a box, observation or season summary URI, the same as passing it as the sortOrder of the
+	 * query. The observation page URIs are always newest first and can't be sorted
+	 * 
+	 * @param	uri, the URI to query
+	 * @param	sort, column names separated by commas, each optionally followed by ASC or DESC, such as
+	 * 			"loc_desc, box_number". Boxes sort on _id, box_number, loc_desc, box_type, condition and
+	 * 			last_obs_date, observations on _id, obs_date, species and box_id, season summaries on box_id,
+	 * 			season, observation_count, eggs_laid and fledged
+	 * @return	The URI, returning the rows in that order
+	 */
+	public static Uri withSort(Uri uri, String sort){
+		return uri.buildUpon().appendQueryParameter(PARAM_SORT, sort).build();
+	}
+	
+	/*
+	 * Creates the URI needed to access the season summaries (observation totals per box per season) of every box
+	 * 
+	 * @param	season, the year to get the summaries of, or 0 for every season
+	 * @return	The content URI referring to the season summaries
+	 */
+	public static Uri getSeasonSummariesURI(int season){
+		Uri uri = Uri.parse("content://" + DataProvider.AUTHORITY + "/summaries");
+		if(season != 0)
+			uri = uri.buildUpon().appendQueryParameter(PARAM_SEASON, Integer.toString(season)).build();
+		return uri;
+	}
+	
+	/*
+	 * Creates the URI needed to access the season summaries of one box, newest season first
+	 * 
+	 * @param	boxId, the _id of the box whose summaries we want
+	 * @return	The content URI referring to the box's season summaries
+	 */
+	public static Uri getBoxSeasonSummariesURIById(int boxId){
+		return Uri.parse("content://" + DataProvider.AUTHORITY + "/summaries/box/" + Integer.toString(boxId));
+	}
+	
+	/*
+	 * Creates the URI needed to search the text of observations and boxes. The cursor returned has the columns
+	 * in DataProvider.SEARCH_COLUMNS, best hit first
+	 * 
+	 * @param	query, the words to search for, as typed by the user
+	 * @param	limit, the maximum number of hits to return
+	 * @return	The content URI referring to the search results
+	 */
+	public static Uri getSearchURI(String query, int limit){
+		return Uri.parse("content://" + DataProvider.AUTHORITY + "/search").buildUpon()
+				.appendQueryParameter(PARAM_QUERY, query)
+				.appendQueryParameter(PARAM_LIMIT, Integer.toString(limit))
+				.build();
+	}
+	
+	/*
+	 * Creates the URI needed to read the change log, the Box and Observation rows written since the last
+	 * acknowledged sync, oldest change first. The cursor returned has the columns seq, table_name and row_id
+	 * 
+	 * @param	limit, the maximum number of changes to return
+	 * @return	The content URI referring to the change log
+	 */
+	public static Uri getChangesURI(int limit){
+		return Uri.parse("content://" + DataProvider.AUTHORITY + "/changes").buildUpon()
+				.appendQueryParameter(PARAM_LIMIT, Integer.toString(limit))
+				.build();
+	}
+	
+	/*
+	 * Creates the URI needed to delete the changes a sync server has acknowledged from the change log
+	 * 
+	 * @param	throughSeq, the seq of the last change acknowledged, every change up to and including it is deleted
+	 * @return	The content URI referring to the acknowledged changes
+	 */
+	public static Uri getAcknowledgedChangesURI(long throughSeq){
+		return Uri.parse("content://" + DataProvider.AUTHORITY + "/changes").buildUpon()
+				.appendQueryParameter(PARAM_THROUGH_SEQ, Long.toString(throughSeq))
+				.build();
+	}
+	
+	/*
+	 * Creates the URI needed to export every observation, joined with the columns of its box, oldest first. Open
+	 * it with ContentResolver.openInputStream(), the rows are streamed as they are read. An export that fails
+	 * partway through ends with a line starting with "#export-error" (the first CSV field, or the JSON object's key)
+	 * 
+	 * @param	format, EXPORT_FORMAT_CSV for CSV with a header row, or EXPORT_FORMAT_NDJSON for one JSON object per line
+	 * @return	The content URI referring to the export
+	 */
+	public static Uri getObservationExportURI(String format){
+		return Uri.parse("content://" + DataProvider.AUTHORITY + "/export/observations").buildUpon()
+				.appendQueryParameter(PARAM_FORMAT, format)
+				.build();
+	}
 }
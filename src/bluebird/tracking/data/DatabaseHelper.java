@@ -2,14 +2,28 @@ package bluebird.tracking.data;
 
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 import android.content.Context;
 import android.content.res.AssetManager;
+import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 import bluebird.tracking.constants.Constants;
 
@@ -21,12 +35,40 @@ import bluebird.tracking.constants.Constants;
  * @version 1.0 May 31, 2013
  */
 public class DatabaseHelper extends SQLiteOpenHelper {
-	private static final int DATABASE_VERSION = 1;
+	private static final int DATABASE_VERSION = 11;
+	private static final int BASE_SCHEMA_VERSION = 1;
 	private static final String DATABASE = "bluebird";
 	private static final String DDL_FILENAME = "bluebird.sql";
 	private static final String STATIC_DATA_FILENAME = "data.sql";
+	private static final String MIGRATION_DIRECTORY = "migrations";
+	private static final String SCHEMA_VERSION_TABLE = "SchemaVersion";
+	private static final String PREBUILT_DATABASE_FILENAME = "bluebird.db";
+	private static final String PREBUILT_CHECKSUM_FILENAME = "bluebird.db.sha1";
+	private static final String CHECKSUM_ALGORITHM = "SHA-1";
+	private static final long COPY_CHUNK_SIZE = 64 * 1024;
+	
+	/* Write-ahead logging settings. In WAL mode synchronous=NORMAL only syncs on checkpoints and is still safe
+	 * against corruption, the WAL is checkpointed automatically every WAL_AUTOCHECKPOINT_PAGES pages and is
+	 * truncated back to JOURNAL_SIZE_LIMIT bytes after a checkpoint */
+	private static final boolean WRITE_AHEAD_LOGGING = true;
+	private static final int WAL_AUTOCHECKPOINT_PAGES = 500;
+	private static final long JOURNAL_SIZE_LIMIT = 1024 * 1024;
+	/* How long the database has to go without writes before we checkpoint it */
+	private static final long IDLE_CHECKPOINT_DELAY_MS = 30 * 1000;
+	
 	private Context context;
 	private AssetManager assetManager;
+	private boolean prebuiltChecked = false;
+	private Handler checkpointHandler;
+	private volatile boolean writeAheadLoggingEnabled = false;
+	
+	/* Checkpoints the WAL back into the database file, posted once the database has been idle for a while */
+	private final Runnable idleCheckpoint = new Runnable(){
+		@Override
+		public void run() {
+			checkpoint();
+		}
+	};
 	
 	/*
 	 * Creates a DatabaseHelper object using the given context
@@ -58,54 +100,361 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 	 * @see android.database.sqlite.SQLiteOpenHelper#onCreate(android.database.sqlite.SQLiteDatabase)
 	 * 
 	 * Called the first time getReadableDatabase() or getWritableDatabase() is called and the database does
-	 * not exist. Creates our database on the device using the schema found in the assets folder
+	 * not exist. Creates our database on the device using the schema found in the assets folder. This is the
+	 * fallback used when there is no usable pre-built database to copy, see installPrebuiltDatabase(). The
+	 * whole script runs in a single transaction, so a failure leaves no half created database behind, and is
+	 * thrown so the open fails; SQLiteOpenHelper runs the script again on the next open.
 	 * 
 	 * @param db	The established database connection to use
 	 */
 	@Override
 	public void onCreate(SQLiteDatabase db) {
 		Log.d(Constants.LogTags.DATABASE, "Creating Database");
+		db.beginTransaction();
 		try {
-			if(assetManager == null)
-				assetManager = context.getAssets();
 			executeFromFile(db, DDL_FILENAME);
 			executeFromFile(db, STATIC_DATA_FILENAME);
-		} catch (Exception e) {
-			e.printStackTrace();
-			Log.e(Constants.LogTags.DATABASE, e.toString());
+			createSchemaVersionTable(db);
+			db.setTransactionSuccessful();
+		} catch (IOException e) {
+			Log.e(Constants.LogTags.DATABASE, "Error reading database schema " + e.toString());
+			throw new SQLiteException("Error reading database schema", e);
+		} catch (SQLException e) {
+			//rethrown so the first open fails, rather than carrying on with an empty database
+			Log.e(Constants.LogTags.DATABASE, "Error creating database " + e.toString());
+			throw e;
+		} finally {
+			db.endTransaction();
+		}
+	}
+	
+	/*
+	 * @see android.database.sqlite.SQLiteOpenHelper#getWritableDatabase()
+	 * 
+	 * Installs the pre-built database before the first connection is opened, if there is one
+	 */
+	@Override
+	public synchronized SQLiteDatabase getWritableDatabase() {
+		installPrebuiltDatabase();
+		return super.getWritableDatabase();
+	}
+	
+	/*
+	 * @see android.database.sqlite.SQLiteOpenHelper#getReadableDatabase()
+	 * 
+	 * Installs the pre-built database before the first connection is opened, if there is one
+	 */
+	@Override
+	public synchronized SQLiteDatabase getReadableDatabase() {
+		installPrebuiltDatabase();
+		return super.getReadableDatabase();
+	}
+	
+	/*
+	 * If the database doesn't exist on the device yet and the assets contain a pre-built, pre-indexed copy of it
+	 * (bluebird.db along with its SHA-1 checksum in bluebird.db.sha1), copies it into place instead of letting
+	 * onCreate() replay the SQL scripts. The copy is streamed through NIO channels in fixed size chunks into a
+	 * temporary file, checked against the checksum, and only then renamed to the real database file, so a
+	 * failed or corrupted copy is thrown away and we fall back to onCreate().
+	 * 
+	 * The pre-built database must have its user_version and SchemaVersion table set to the schema version it
+	 * was built at, any newer migrations are applied to it by onOpen() like any other existing database.
+	 */
+	private void installPrebuiltDatabase(){
+		if(prebuiltChecked)
+			return;
+		prebuiltChecked = true;
+		
+		File dbFile = context.getDatabasePath(DATABASE);
+		if(dbFile.exists())
+			return;
+		
+		String expectedChecksum;
+		try{
+			expectedChecksum = readChecksum();
+		} catch(FileNotFoundException e){
+			return; //no pre-built database shipped, onCreate() will build it
+		} catch(IOException e){
+			Log.e(Constants.LogTags.DATABASE, "Error reading pre-built database checksum " + e.toString());
+			return;
+		}
+		
+		File tmpFile = new File(dbFile.getPath() + ".tmp");
+		try{
+			File dir = dbFile.getParentFile();
+			if(dir != null && !dir.exists() && !dir.mkdirs())
+				throw new IOException("Could not create " + dir.getPath());
+			
+			String checksum = copyAsset(PREBUILT_DATABASE_FILENAME, tmpFile);
+			if(!checksum.equalsIgnoreCase(expectedChecksum))
+				throw new IOException("Checksum mismatch, expected " + expectedChecksum + " but was " + checksum);
+			if(!tmpFile.renameTo(dbFile))
+				throw new IOException("Could not rename " + tmpFile.getPath() + " to " + dbFile.getPath());
+			
+			Log.d(Constants.LogTags.DATABASE, "Installed pre-built database");
+		} catch(IOException e){
+			Log.e(Constants.LogTags.DATABASE, "Error installing pre-built database, falling back to SQL scripts " + e.toString());
+			tmpFile.delete();
+		}
+	}
+	
+	/*
+	 * Reads the expected checksum of the pre-built database from the assets
+	 * 
+	 * @return	The hex encoded checksum
+	 */
+	private String readChecksum() throws IOException{
+		BufferedReader reader = new BufferedReader(new InputStreamReader(getAssetManager().open(PREBUILT_CHECKSUM_FILENAME), "UTF-8"));
+		try{
+			String line = reader.readLine();
+			if(line == null || line.trim().length() == 0)
+				throw new IOException(PREBUILT_CHECKSUM_FILENAME + " is empty");
+			return line.trim().split("\\s+")[0]; //same format as sha1sum output
+		} finally{
+			reader.close();
+		}
+	}
+	
+	/*
+	 * Copies an asset to a file through NIO channels, computing its checksum as it is copied
+	 * 
+	 * @param fileName	Name of the asset to copy
+	 * @param dest		File to copy the asset to, overwritten if it exists
+	 * @return			The hex encoded checksum of the copied data
+	 */
+	private String copyAsset(String fileName, File dest) throws IOException{
+		MessageDigest digest;
+		try{
+			digest = MessageDigest.getInstance(CHECKSUM_ALGORITHM);
+		} catch(NoSuchAlgorithmException e){
+			throw new IOException(CHECKSUM_ALGORITHM + " not available");
+		}
+		
+		InputStream in = new DigestInputStream(getAssetManager().open(fileName), digest);
+		ReadableByteChannel src = Channels.newChannel(in);
+		FileOutputStream out = new FileOutputStream(dest);
+		FileChannel dst = out.getChannel();
+		try{
+			long position = 0;
+			long transferred;
+			while((transferred = dst.transferFrom(src, position, COPY_CHUNK_SIZE)) > 0)
+				position += transferred;
+			dst.force(true);
+		} finally{
+			src.close();
+			out.close();
+		}
+		
+		StringBuilder hex = new StringBuilder();
+		for(byte b : digest.digest())
+			hex.append(String.format("%02x", b & 0xff));
+		return hex.toString();
+	}
+	
+	/*
+	 * Gets the AssetManager to read our scripts from, the one given to the constructor if there was one
+	 * 
+	 * @return	AssetManager for the application's assets
+	 */
+	private AssetManager getAssetManager(){
+		if(assetManager == null)
+			assetManager = context.getAssets();
+		return assetManager;
+	}
+	
+	/*
+	 * @see android.database.sqlite.SQLiteOpenHelper#onOpen(android.database.sqlite.SQLiteDatabase)
+	 * 
+	 * Called every time the database is opened, after onCreate() or onUpgrade() have finished. Brings the
+	 * schema up to DATABASE_VERSION by running any migrations that haven't been applied yet. This is done here
+	 * rather than in onUpgrade() because SQLiteOpenHelper runs onUpgrade() inside one transaction, and we want
+	 * each migration step to commit on its own.
+	 * 
+	 * Also switches the database to write-ahead logging. getReadableDatabase() and getWritableDatabase() return
+	 * the same shared SQLiteDatabase, and in WAL mode it keeps a pool of connections so queries on other threads
+	 * (the box list's CursorLoader for instance) read the last committed data while a write is in progress instead
+	 * of waiting for it to finish.
+	 * 
+	 * @param db	The established database connection to use
+	 */
+	@Override
+	public void onOpen(SQLiteDatabase db) {
+		super.onOpen(db);
+		if(db.isReadOnly())
+			return;
+		
+		writeAheadLoggingEnabled = WRITE_AHEAD_LOGGING && db.enableWriteAheadLogging();
+		if(writeAheadLoggingEnabled){
+			pragma(db, "PRAGMA synchronous = NORMAL");
+			pragma(db, "PRAGMA wal_autocheckpoint = " + WAL_AUTOCHECKPOINT_PAGES);
+			pragma(db, "PRAGMA journal_size_limit = " + JOURNAL_SIZE_LIMIT);
+		}
+		migrate(db);
+	}
+	
+	/*
+	 * Schedules a checkpoint of the WAL once the database has gone IDLE_CHECKPOINT_DELAY_MS without another call
+	 * to this method. Called by the DataProvider after every write that changed rows so that during long field
+	 * sessions the WAL is folded back into the database while the volunteer isn't entering data, rather than
+	 * growing until the next automatic checkpoint lands in the middle of a write.
+	 */
+	public synchronized void scheduleIdleCheckpoint(){
+		if(!writeAheadLoggingEnabled)
+			return;
+		
+		if(checkpointHandler == null){
+			HandlerThread thread = new HandlerThread("DatabaseCheckpoint", android.os.Process.THREAD_PRIORITY_BACKGROUND);
+			thread.start();
+			checkpointHandler = new Handler(thread.getLooper());
+		}
+		checkpointHandler.removeCallbacks(idleCheckpoint);
+		checkpointHandler.postDelayed(idleCheckpoint, IDLE_CHECKPOINT_DELAY_MS);
+	}
+	
+	/*
+	 * @see android.database.sqlite.SQLiteOpenHelper#close()
+	 * 
+	 * Stops the checkpoint thread, dropping a checkpoint still waiting, and closes the database
+	 */
+	@Override
+	public synchronized void close(){
+		if(checkpointHandler != null){
+			checkpointHandler.removeCallbacks(idleCheckpoint);
+			checkpointHandler.getLooper().quit();
+			checkpointHandler = null;
+		}
+		super.close();
+	}
+	
+	/*
+	 * Copies the pages in the WAL back into the database file. Uses a passive checkpoint, which never waits on
+	 * readers or writers, so it is safe to run at any time
+	 */
+	public void checkpoint(){
+		try{
+			SQLiteDatabase db = getWritableDatabase();
+			if(writeAheadLoggingEnabled)
+				Log.d(Constants.LogTags.DATABASE, "Checkpoint (busy, log, checkpointed): " + pragma(db, "PRAGMA wal_checkpoint(PASSIVE)"));
+		} catch(SQLException e){
+			Log.e(Constants.LogTags.DATABASE, "Error checkpointing database " + e.toString());
 		}
 	}
 	
 	/*
-	 * Uses the AssetManager to open the specified file and execute the SQLite statements it contains
+	 * Runs a PRAGMA statement. Some PRAGMAs return a row even when setting a value, which execSQL() refuses, so
+	 * they are run as queries
+	 * 
+	 * @param db		The established database connection to use
+	 * @param pragma	The PRAGMA statement to run
+	 * @return			The columns of the first row returned joined by ',', or null if no row was returned
+	 */
+	private static String pragma(SQLiteDatabase db, String pragma){
+		Cursor c = db.rawQuery(pragma, null);
+		try{
+			if(!c.moveToFirst())
+				return null;
+			StringBuilder result = new StringBuilder();
+			for(int i = 0; i < c.getColumnCount(); i++){
+				if(i > 0)
+					result.append(',');
+				result.append(c.getString(i));
+			}
+			return result.toString();
+		} finally{
+			c.close();
+		}
+	}
+	
+	/*
+	 * Applies the numbered migration scripts found in assets/migrations, from the version after the last one
+	 * recorded in the SchemaVersion table up to DATABASE_VERSION. Migration N lives in "migrations/N.sql" and
+	 * is expected to move existing data forward in place (ALTER TABLE, INSERT ... SELECT, etc.) rather than
+	 * rebuilding tables from scratch. Each migration runs in its own transaction together with the insert that
+	 * records it, so a failure leaves the database at the last migration that succeeded and the remaining ones
+	 * are retried the next time the database is opened.
+	 * 
+	 * @param db	The established database connection to use
+	 */
+	private void migrate(SQLiteDatabase db){
+		createSchemaVersionTable(db);
+		int currentVersion = getSchemaVersion(db);
+		
+		for(int version = currentVersion + 1; version <= DATABASE_VERSION; version++){
+			String fileName = MIGRATION_DIRECTORY + "/" + Integer.toString(version) + ".sql";
+			Log.d(Constants.LogTags.DATABASE, String.format("Migrating database from version %d to %d", version - 1, version));
+			
+			db.beginTransaction();
+			try{
+				executeFromFile(db, fileName);
+				db.execSQL("INSERT INTO " + SCHEMA_VERSION_TABLE + "(version) VALUES(?)", new Object[] {version});
+				db.setTransactionSuccessful();
+			} catch(IOException e){
+				Log.e(Constants.LogTags.DATABASE, "Error reading migration " + fileName + " " + e.toString());
+				throw new RuntimeException("Error reading migration " + fileName, e);
+			} catch(SQLException e){
+				Log.e(Constants.LogTags.DATABASE, "Error applying migration " + fileName + " " + e.toString());
+				throw new RuntimeException("Error applying migration " + fileName, e);
+			} finally{
+				db.endTransaction();
+			}
+		}
+	}
+	
+	/*
+	 * Creates the table used to record which migrations have been applied, if it doesn't already exist. A database
+	 * created before migrations existed is recorded as being at BASE_SCHEMA_VERSION, the schema in bluebird.sql
+	 * 
+	 * @param db	The established database connection to use
+	 */
+	private void createSchemaVersionTable(SQLiteDatabase db){
+		db.execSQL("CREATE TABLE IF NOT EXISTS " + SCHEMA_VERSION_TABLE + "(" +
+				"version integer primary key, " +
+				"applied_at datetime default current_timestamp)");
+		db.execSQL("INSERT OR IGNORE INTO " + SCHEMA_VERSION_TABLE + "(version) VALUES(?)", new Object[] {BASE_SCHEMA_VERSION});
+	}
+	
+	/*
+	 * Gets the latest migration version that has been applied to the database
+	 * 
+	 * @param db	The established database connection to use
+	 * @return		The highest version in the SchemaVersion table
+	 */
+	private int getSchemaVersion(SQLiteDatabase db){
+		Cursor c = db.rawQuery("SELECT MAX(version) FROM " + SCHEMA_VERSION_TABLE, null);
+		try{
+			return c.moveToFirst() ? c.getInt(0) : BASE_SCHEMA_VERSION;
+		} finally{
+			c.close();
+		}
+	}
+	
+	/*
+	 * Uses the AssetManager to open the specified file and execute the SQLite statements it contains. The file
+	 * is parsed as a stream, one statement at a time, so it is never held in memory as a whole
 	 * 
 	 * @param db		SQLiteDatabase to execute statements in
 	 * @param fileName	Name of file containing SQL commands (each statement ended with a ';')
 	 */
 	private void executeFromFile(SQLiteDatabase db, String fileName) throws IOException, SQLException{
-		BufferedReader reader = new BufferedReader(new InputStreamReader(assetManager.open(fileName)));
-		String line;
-		String stmtBuffer = "";
-		
-		//read the file line by line
-		while((line = reader.readLine()) != null){
-			stmtBuffer += line;
-			
-			//end of the sql statement, execute it and clear the buffer
-			if(stmtBuffer.endsWith(";")){
-				Log.d(Constants.LogTags.DATABASE, stmtBuffer);
-				db.execSQL(stmtBuffer);
-				stmtBuffer = "";
+		SqlScriptReader script = new SqlScriptReader(new BufferedReader(new InputStreamReader(getAssetManager().open(fileName), "UTF-8")));
+		int count = 0;
+		try{
+			String stmt;
+			while((stmt = script.nextStatement()) != null){
+				db.execSQL(stmt);
+				count++;
 			}
+		} finally{
+			script.close();
 		}
-		reader.close();
+		Log.d(Constants.LogTags.DATABASE, String.format("Executed %d statements from %s", count, fileName));
 	}
 
 	/*
 	 * @see android.database.sqlite.SQLiteOpenHelper#onUpgrade(android.database.sqlite.SQLiteDatabase, int, int)
 	 * 
-	 * Called the first time getReadableDatabase() or getWritableDatabase() is called and the database does
-	 * exist. Creates our database on the device using the schema found in the assets folder
+	 * Called the first time getReadableDatabase() or getWritableDatabase() is called and the database exists
+	 * at an older version. The migrations themselves are applied step by step in onOpen(), see migrate()
 	 * 
 	 * @param db			The established database connection to use
 	 * @param oldVersion	The previous database version
@@ -113,9 +462,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 	 */
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-		// TODO actually implement this method
 		Log.d(Constants.LogTags.DATABASE, String.format("Updating from Database version %d to %d", oldVersion, newVersion));
-		onCreate(db);
 	}
 
 }
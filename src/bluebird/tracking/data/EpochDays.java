@@ -0,0 +1,128 @@
+package bluebird.tracking.data;
+
+import java.util.Calendar;
+
+/*
+ * Converts between the epoch days the Observation date columns hold (see assets/migrations/8.sql) and dates. An
+ * epoch day is the number of days between 1970-01-01 and a calendar date, with no time of day or time zone, so it
+ * sorts and compares as a plain integer: "the last 14 days" is obs_date >= today() - 13.
+ *
+ * Static class, plain Java so the benchmarks can use it on a desktop JVM:
+ * 		EpochDays.format(EpochDays.parse("2013-06-01"))
+ */
+public final class EpochDays {
+	/* The Observation columns holding epoch days */
+	public static final String[] OBSERVATION_DATE_COLUMNS = new String[] {"obs_date", "first_egg_dt", "last_egg_dt",
+		"do_not_mon_dt", "est_hatch_dt", "est_fledge_dt", "act_hatch_date", "act_fledge_date"};
+
+	/* Length of a date written by format() */
+	public static final int FORMATTED_LENGTH = 10;
+
+	private EpochDays() {}
+
+	/*
+	 * Gets the epoch day of a calendar date, proleptic Gregorian
+	 *
+	 * @param year	The year, such as 2013
+	 * @param month	The month, 1 to 12
+	 * @param day	The day of the month, 1 to 31
+	 */
+	public static long fromDate(int year, int month, int day){
+		//count from March 1st so the leap day is the last day of the year, in 400 year eras
+		long y = (month <= 2) ? year - 1 : year;
+		long era = ((y >= 0) ? y : y - 399) / 400;
+		long yearOfEra = y - era * 400;
+		long dayOfYear = (153 * ((month > 2) ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	/*
+	 * Gets the epoch day of today's date where the device is
+	 */
+	public static long today(){
+		Calendar now = Calendar.getInstance();
+		return fromDate(now.get(Calendar.YEAR), now.get(Calendar.MONTH) + 1, now.get(Calendar.DAY_OF_MONTH));
+	}
+
+	/*
+	 * Reads a date written as YYYY-MM-DD. Anything after the date, such as the time of a "YYYY-MM-DD HH:MM:SS"
+	 * timestamp, is ignored
+	 *
+	 * @return	The epoch day of the date
+	 *
+	 * @throws IllegalArgumentException		If the text doesn't start with a valid date
+	 */
+	public static long parse(String date){
+		if(date == null || date.length() < 10 || date.charAt(4) != '-' || date.charAt(7) != '-'
+				|| (date.length() > 10 && date.charAt(10) != ' ' && date.charAt(10) != 'T'))
+			throw new IllegalArgumentException("Not a YYYY-MM-DD date: " + date);
+		int year = digits(date, 0, 4);
+		int month = digits(date, 5, 7);
+		int day = digits(date, 8, 10);
+		if(year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month))
+			throw new IllegalArgumentException("Not a YYYY-MM-DD date: " + date);
+		return fromDate(year, month, day);
+	}
+
+	/*
+	 * Writes an epoch day as YYYY-MM-DD
+	 */
+	public static String format(long epochDay){
+		char[] text = new char[FORMATTED_LENGTH];
+		format(epochDay, text, 0);
+		return new String(text);
+	}
+
+	/*
+	 * Writes an epoch day as YYYY-MM-DD into a buffer, for callers that mustn't allocate
+	 *
+	 * @param text		Buffer with room for FORMATTED_LENGTH chars from offset
+	 * @param offset	Where in the buffer the date starts
+	 */
+	public static void format(long epochDay, char[] text, int offset){
+		//the inverse of fromDate()
+		long z = epochDay + 719468;
+		long era = ((z >= 0) ? z : z - 146096) / 146097;
+		long dayOfEra = z - era * 146097;
+		long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		long shiftedMonth = (5 * dayOfYear + 2) / 153;
+		long day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+		long month = (shiftedMonth < 10) ? shiftedMonth + 3 : shiftedMonth - 9;
+		long year = yearOfEra + era * 400 + ((month <= 2) ? 1 : 0);
+
+		put(text, offset, offset + 4, year);
+		text[offset + 4] = '-';
+		put(text, offset + 5, offset + 7, month);
+		text[offset + 7] = '-';
+		put(text, offset + 8, offset + 10, day);
+	}
+
+	private static int daysInMonth(int year, int month){
+		if(month == 2)
+			return ((year % 4 == 0 && year % 100 != 0) || year % 400 == 0) ? 29 : 28;
+		return (month == 4 || month == 6 || month == 9 || month == 11) ? 30 : 31;
+	}
+
+	/*
+	 * @return	The number written in text[start, end), or -1 if it isn't all digits
+	 */
+	private static int digits(String text, int start, int end){
+		int value = 0;
+		for(int i = start; i < end; i++){
+			char ch = text.charAt(i);
+			if(ch < '0' || ch > '9')
+				return -1;
+			value = value * 10 + (ch - '0');
+		}
+		return value;
+	}
+
+	private static void put(char[] text, int start, int end, long value){
+		for(int i = end - 1; i >= start; i--){
+			text[i] = (char)('0' + value % 10);
+			value /= 10;
+		}
+	}
+}
@@ -0,0 +1,463 @@
+package bluebird.tracking.data;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.RemoteException;
+import android.util.Log;
+import bluebird.tracking.constants.Constants;
+
+/*
+ * Write-behind queue for edits of observations. A volunteer filling in an observation changes it one field at a
+ * time (the egg count, then the nestling count, then the comments), and sending each change to
+ * DataProvider.update() would cost a write transaction, the Observation triggers and a change notification every
+ * time. Edits given to update() are instead merged per observation _id, later values winning, and a single writer
+ * thread writes them FLUSH_DELAY_MS after the first one as one applyBatch() (one transaction, one notification per
+ * URI), each observation's update setting only the columns that were edited.
+ *
+ * Every edit is appended to a journal file before update() returns. Once write() has returned the edit is in the
+ * kernel's hands, so it survives the process being killed: the journal is replayed the next time the queue is
+ * created, and shrunk to the edits still waiting after every flush. Replaying an edit that was already written
+ * sets the same values again, so being killed between a flush and the journal shrinking does no harm. The replay
+ * runs on the writer thread, since get() is first called from the UI thread; edits queued before it has run are
+ * kept in memory and go in the journal when it does, after the replayed ones.
+ *
+ * An edit whose observation no longer exists changes nothing, and one the provider refuses with an
+ * IllegalArgumentException (a bad value, or an archived observation) would fail its whole batch every time. Both
+ * are dropped from the queue and logged with their values rather than retried. Any other failure, such as a full
+ * disk or a locked database, may pass, so the edits stay in the queue and the journal and are tried again.
+ *
+ * Rows read from the provider don't have the edits still in the queue, merge getPending() over them or flush()
+ * first. Activities flush() the queue when they stop, so nothing waits while the app is in the background:
+ * 		ObservationEditQueue.get(context).update(observationId, values)
+ */
+public final class ObservationEditQueue {
+	/* How long after the first edit of a batch the batch is written */
+	static final long FLUSH_DELAY_MS = 2000;
+
+	/* How long to wait before trying a batch that failed to write again */
+	static final long RETRY_DELAY_MS = 30000;
+
+	/* Name of the journal in the app's files directory */
+	static final String JOURNAL = "observation_edits.journal";
+
+	/* Types of the values in a journal record */
+	private static final byte TYPE_NULL = 0;
+	private static final byte TYPE_LONG = 1;
+	private static final byte TYPE_DOUBLE = 2;
+	private static final byte TYPE_STRING = 3;
+
+	private static ObservationEditQueue instance;
+
+	private final ContentResolver resolver;
+	private final File journal;
+	private final Handler writer;
+
+	/* The columns an edit may set, every Observation column but _id */
+	private final Set<String> columns = new HashSet<String>(Arrays.asList(DataProvider.OBSERVATION_EXPORT_PROJECTION));
+
+	/* Edits waiting to be written, keyed by observation _id. Guarded by this, like the fields below */
+	private LinkedHashMap<Long, ContentValues> pending = new LinkedHashMap<Long, ContentValues>();
+
+	/* Appends to the journal, null if it couldn't be opened */
+	private FileOutputStream journalOut;
+
+	private boolean flushScheduled;
+
+	/* Whether the journal has been replayed, see load() */
+	private boolean loaded;
+
+	private final Runnable flush = new Runnable(){
+		@Override
+		public void run(){
+			writePending();
+		}
+	};
+
+	private final Runnable load = new Runnable(){
+		@Override
+		public void run(){
+			load();
+		}
+	};
+
+	/*
+	 * @param context	Any Context of the app
+	 *
+	 * @return			The app's queue, created on first use. Cheap, the journal is replayed on the writer thread
+	 */
+	public static synchronized ObservationEditQueue get(Context context){
+		if(instance == null)
+			instance = new ObservationEditQueue(context.getApplicationContext());
+		return instance;
+	}
+
+	private ObservationEditQueue(Context context){
+		resolver = context.getContentResolver();
+		journal = new File(context.getFilesDir(), JOURNAL);
+		columns.remove("_id");
+
+		HandlerThread thread = new HandlerThread("ObservationEditQueue", android.os.Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		writer = new Handler(thread.getLooper());
+		//posted first, so every flush runs after it
+		writer.post(load);
+	}
+
+	/*
+	 * Replays the journal into the queue, on the queue's thread. Edits queued before this ran are newer, so they
+	 * are merged over the replayed ones
+	 */
+	private synchronized void load(){
+		LinkedHashMap<Long, ContentValues> queued = pending;
+		pending = new LinkedHashMap<Long, ContentValues>();
+		replay();
+		for(Map.Entry<Long, ContentValues> edit : queued.entrySet())
+			merge(pending, edit.getKey(), edit.getValue());
+		//rewritten rather than appended to, in case the process died half way through a record
+		compactJournal();
+		loaded = true;
+		if(!pending.isEmpty() && !flushScheduled)
+			schedule(0);
+	}
+
+	/*
+	 * Queues an edit of an observation
+	 *
+	 * @param observationId	_id of the observation
+	 * @param values		The columns edited and their new values: Strings, numbers or nulls, with dates as
+	 * 						DataProvider.update() takes them
+	 *
+	 * @throws IllegalArgumentException		If a column isn't an Observation column, or a value can't be written
+	 */
+	public void update(long observationId, ContentValues values){
+		byte[] record = encode(observationId, values);
+		synchronized(this){
+			//until load() has run the edit is only in memory, load() writes it to the journal
+			if(loaded)
+				append(record);
+			merge(pending, observationId, values);
+			if(!flushScheduled)
+				schedule(FLUSH_DELAY_MS);
+		}
+	}
+
+	/*
+	 * @param observationId	_id of the observation
+	 *
+	 * @return	The edits of the observation waiting in the queue, or null if there are none. Until the journal has
+	 * 			been replayed, edits queued before the process was last killed aren't included
+	 */
+	public synchronized ContentValues getPending(long observationId){
+		ContentValues values = pending.get(observationId);
+		return (values == null) ? null : new ContentValues(values);
+	}
+
+	/*
+	 * Writes the edits waiting in the queue now rather than when their delay runs out. Returns straight away, the
+	 * edits are written on the queue's thread
+	 */
+	public synchronized void flush(){
+		if(!pending.isEmpty())
+			schedule(0);
+	}
+
+	private void schedule(long delayMs){
+		writer.removeCallbacks(flush);
+		writer.postDelayed(flush, delayMs);
+		flushScheduled = true;
+	}
+
+	/*
+	 * Writes the waiting edits in one batch, on the queue's thread. Edits queued while the batch is written wait
+	 * for the next one. If the batch is refused it's written again one edit at a time, see writeEach()
+	 */
+	private void writePending(){
+		LinkedHashMap<Long, ContentValues> batch;
+		synchronized(this){
+			flushScheduled = false;
+			if(pending.isEmpty())
+				return;
+			batch = pending;
+			pending = new LinkedHashMap<Long, ContentValues>();
+		}
+
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(batch.size());
+		for(Map.Entry<Long, ContentValues> edit : batch.entrySet()){
+			operations.add(ContentProviderOperation.newUpdate(DataURI.getObservationURIById(edit.getKey().intValue()))
+					.withValues(edit.getValue()).build());
+		}
+		try{
+			ContentProviderResult[] results = resolver.applyBatch(DataProvider.AUTHORITY, operations);
+			int i = 0;
+			for(Map.Entry<Long, ContentValues> edit : batch.entrySet()){
+				if(results[i++].count.intValue() == 0)
+					drop(edit.getKey(), edit.getValue(), "the observation doesn't exist");
+			}
+			Log.d(Constants.LogTags.EDIT_QUEUE, "Wrote queued edits of " + batch.size() + " observations");
+		} catch(RemoteException e){
+			retry(batch, e.toString());
+			return;
+		} catch(OperationApplicationException e){
+			retry(batch, e.toString());
+			return;
+		} catch(IllegalArgumentException e){
+			Log.w(Constants.LogTags.EDIT_QUEUE, "Batch of queued edits refused, writing them one at a time " + e.toString());
+			if(!writeEach(batch))
+				return;
+		} catch(RuntimeException e){
+			retry(batch, e.toString());
+			return;
+		}
+
+		synchronized(this){
+			compactJournal();
+		}
+	}
+
+	/*
+	 * Writes the edits of a batch the provider refused one at a time, so one edit it refuses doesn't hold up the
+	 * rest of the queue forever. The edits it refuses are dropped
+	 *
+	 * @return	false if an edit failed for any other reason, or the provider went away, in which case the edits not
+	 * 			yet written are put back in the queue
+	 */
+	private boolean writeEach(LinkedHashMap<Long, ContentValues> batch){
+		Iterator<Map.Entry<Long, ContentValues>> edits = batch.entrySet().iterator();
+		while(edits.hasNext()){
+			Map.Entry<Long, ContentValues> edit = edits.next();
+			try{
+				int changed = resolver.update(DataURI.getObservationURIById(edit.getKey().intValue()), edit.getValue(), null, null);
+				//ContentResolver returns -1 when the provider's process died
+				if(changed < 0){
+					retry(batch, "provider went away");
+					return false;
+				}
+				if(changed == 0)
+					drop(edit.getKey(), edit.getValue(), "the observation doesn't exist");
+			} catch(IllegalArgumentException e){
+				drop(edit.getKey(), edit.getValue(), e.toString());
+			} catch(RuntimeException e){
+				retry(batch, e.toString());
+				return false;
+			}
+			edits.remove();
+		}
+		return true;
+	}
+
+	/*
+	 * Logs an edit that is dropped from the queue, with its values so it can still be recovered by hand
+	 */
+	private static void drop(long observationId, ContentValues values, String reason){
+		Log.e(Constants.LogTags.EDIT_QUEUE, "Dropping queued edit of observation " + observationId + ", " + reason
+				+ ": " + values.toString());
+	}
+
+	/*
+	 * Puts a batch that failed to write back in the queue. The journal still has every edit in it
+	 */
+	private synchronized void retry(LinkedHashMap<Long, ContentValues> batch, String error){
+		Log.e(Constants.LogTags.EDIT_QUEUE, "Error writing queued observation edits, will retry " + error);
+		//edits queued since the batch was taken are newer, so they win
+		for(Map.Entry<Long, ContentValues> edit : pending.entrySet())
+			merge(batch, edit.getKey(), edit.getValue());
+		pending = batch;
+		if(!flushScheduled)
+			schedule(RETRY_DELAY_MS);
+	}
+
+	private static void merge(Map<Long, ContentValues> edits, long observationId, ContentValues values){
+		ContentValues merged = edits.get(observationId);
+		if(merged == null){
+			merged = new ContentValues();
+			edits.put(observationId, merged);
+		}
+		merged.putAll(values);
+	}
+
+	/*
+	 * Appends a record to the journal. If the journal can't be written the edit is still queued, but is only as
+	 * safe as the process until it is flushed, which happens straight away
+	 */
+	private void append(byte[] record){
+		try{
+			if(journalOut == null)
+				throw new IOException("Journal isn't open");
+			journalOut.write(record);
+		} catch(IOException e){
+			Log.e(Constants.LogTags.EDIT_QUEUE, "Error writing edit journal " + e.toString());
+			schedule(0);
+		}
+	}
+
+	/*
+	 * Reads the edits in the journal into the queue, oldest first
+	 */
+	private void replay(){
+		if(!journal.exists())
+			return;
+		try{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)));
+			try{
+				while(true){
+					long observationId;
+					try{
+						observationId = in.readLong();
+					} catch(EOFException end){
+						break;
+					}
+					merge(pending, observationId, decode(in));
+				}
+			} catch(EOFException e){
+				Log.w(Constants.LogTags.EDIT_QUEUE, "Dropping the last edit in the journal, it was never finished");
+			} finally{
+				in.close();
+			}
+			Log.d(Constants.LogTags.EDIT_QUEUE, "Replayed queued edits of " + pending.size() + " observations");
+		} catch(IOException e){
+			Log.e(Constants.LogTags.EDIT_QUEUE, "Error reading edit journal " + e.toString());
+		}
+	}
+
+	/*
+	 * Rewrites the journal with just the edits waiting in the queue, and opens it for appending. The new journal
+	 * is written beside the old one and renamed over it, so one of the two is whole whenever the process dies. If
+	 * it can't be written the old journal is kept, which still has every waiting edit
+	 */
+	private void compactJournal(){
+		try{
+			if(journalOut != null)
+				journalOut.close();
+		} catch(IOException e){
+			Log.e(Constants.LogTags.EDIT_QUEUE, "Error closing edit journal " + e.toString());
+		}
+		journalOut = null;
+
+		try{
+			File compacted = new File(journal.getPath() + ".tmp");
+			FileOutputStream out = new FileOutputStream(compacted);
+			try{
+				for(Map.Entry<Long, ContentValues> edit : pending.entrySet())
+					out.write(encode(edit.getKey(), edit.getValue()));
+				out.getFD().sync();
+			} finally{
+				out.close();
+			}
+			if(!compacted.renameTo(journal))
+				throw new IOException("Can't rename " + compacted.getPath());
+		} catch(IOException e){
+			Log.e(Constants.LogTags.EDIT_QUEUE, "Error compacting edit journal " + e.toString());
+		}
+
+		try{
+			journalOut = new FileOutputStream(journal, true);
+		} catch(IOException e){
+			Log.e(Constants.LogTags.EDIT_QUEUE, "Error opening edit journal " + e.toString());
+		}
+	}
+
+	/*
+	 * Writes an edit as a journal record: the observation _id, the number of columns, and each column's name, type
+	 * and value
+	 *
+	 * @throws IllegalArgumentException		If a column isn't an Observation column, or a value can't be written
+	 */
+	private byte[] encode(long observationId, ContentValues values){
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try{
+			out.writeLong(observationId);
+			out.writeInt(values.size());
+			for(Map.Entry<String, Object> value : values.valueSet()){
+				String column = value.getKey();
+				Object v = value.getValue();
+				if(!columns.contains(column))
+					throw new IllegalArgumentException("Bad column " + column + " in observation edit");
+				checkDate(column, v);
+				out.writeUTF(column);
+				if(v == null){
+					out.writeByte(TYPE_NULL);
+				} else if(v instanceof Long || v instanceof Integer || v instanceof Short || v instanceof Byte){
+					out.writeByte(TYPE_LONG);
+					out.writeLong(((Number)v).longValue());
+				} else if(v instanceof Double || v instanceof Float){
+					out.writeByte(TYPE_DOUBLE);
+					out.writeDouble(((Number)v).doubleValue());
+				} else if(v instanceof String){
+					out.writeByte(TYPE_STRING);
+					out.writeUTF((String)v);
+				} else{
+					throw new IllegalArgumentException("Bad " + column + " " + v + " in observation edit");
+				}
+			}
+		} catch(IOException e){
+			//a ByteArrayOutputStream only throws for a String too long for writeUTF()
+			throw new IllegalArgumentException("Bad value in observation edit " + e.toString());
+		}
+		return bytes.toByteArray();
+	}
+
+	/*
+	 * Reads the columns of a record written by encode(), after its observation _id
+	 */
+	private static ContentValues decode(DataInputStream in) throws IOException{
+		int count = in.readInt();
+		ContentValues values = new ContentValues(count);
+		for(int i = 0; i < count; i++){
+			String column = in.readUTF();
+			byte type = in.readByte();
+			if(type == TYPE_NULL)
+				values.putNull(column);
+			else if(type == TYPE_LONG)
+				values.put(column, in.readLong());
+			else if(type == TYPE_DOUBLE)
+				values.put(column, in.readDouble());
+			else if(type == TYPE_STRING)
+				values.put(column, in.readUTF());
+			else
+				throw new IOException("Bad value type " + type + " in edit journal");
+		}
+		return values;
+	}
+
+	/*
+	 * Refuses a date DataProvider.update() would refuse, at the time it's edited rather than when the batch it's in
+	 * is written, where it would fail every other edit in the batch with it
+	 */
+	private static void checkDate(String column, Object value){
+		if(!(value instanceof String) || !Arrays.asList(EpochDays.OBSERVATION_DATE_COLUMNS).contains(column))
+			return;
+		try{
+			EpochDays.parse((String)value);
+		} catch(IllegalArgumentException e){
+			try{
+				Long.parseLong((String)value);
+			} catch(NumberFormatException notNumber){
+				throw new IllegalArgumentException("Bad " + column + " " + value + " in observation edit");
+			}
+		}
+	}
+}
@@ -0,0 +1,256 @@
+package bluebird.tracking.data;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.JSONObject;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import bluebird.tracking.constants.Constants;
+
+/*
+ * Writes every observation, archived or not, joined with the columns of its box, to the write end of a pipe as CSV or newline
+ * delimited JSON. Run on its own thread by DataProvider.openFile(), so the reader gets the first rows while the
+ * rest are still being written. Rows are read ROWS_PER_QUERY at a time, each query seeking past the (obs_date, _id)
+ * of the last row written, rather than through one cursor over the whole export: a SQLiteCursor runs its query
+ * again from the start each time it refills its window. Rows are written through a fixed size buffer, so memory
+ * use doesn't grow with the number of observations.
+ *
+ * The queries don't share a transaction: Android runs transactions on the database's primary connection, so one
+ * held while writing to the pipe at the reader's pace would stall every write in the app. The keyset seek already
+ * keeps a row from being skipped or written twice while it stays where it is, and every query is bounded by the
+ * largest _id when the export started, so observations added during the export are left out rather than only
+ * some of them being included. An observation whose obs_date is edited during the export may be missed or
+ * written twice. If reading fails partway through, ERROR_MARKER is written as the last line (a CSV row or a JSON object key,
+ * followed by the error) so the reader can tell the export is incomplete.
+ *
+ * Dates are written as YYYY-MM-DD rather than the epoch days they're stored as, so a CSV export reads back in through
+ * CsvImporter, which skips the _id and box columns it doesn't import. If the reader closes its end early, the next
+ * write fails and the export stops.
+ */
+final class ObservationExporter implements Runnable {
+	/* Size of the chunks written to the pipe */
+	private static final int CHUNK_SIZE = 16 * 1024;
+
+	/* Rows read by each query */
+	private static final int ROWS_PER_QUERY = 500;
+	
+	/* Written as the last line of an export that failed partway through */
+	static final String ERROR_MARKER = "#export-error";
+	
+	private static final String SELECT = "SELECT o.*, b.box_number, b.box_type, b.loc_desc, b.gps_coord " +
+			"FROM ObservationAll o LEFT JOIN Box b ON b._id = o.box_id ";
+	
+	/* Observations without an obs_date sort first, these are read by _id alone */
+	private static final String UNDATED_SQL = SELECT + "WHERE o.obs_date IS NULL AND o._id > ? AND o._id <= ? " +
+			"ORDER BY o._id ASC LIMIT " + ROWS_PER_QUERY;
+	
+	/* Written like DataProvider's page queries so each arm of ObservationAll seeks its obs_date index */
+	private static final String DATED_SQL = SELECT + "WHERE o.obs_date >= ? AND (o.obs_date > ? OR o._id > ?) AND o._id <= ? " +
+			"ORDER BY o.obs_date ASC, o._id ASC LIMIT " + ROWS_PER_QUERY;
+	
+	/* The largest _id of an observation, archived or not, read once when the export starts */
+	private static final String MAX_ID_SQL = "SELECT max(ifnull((SELECT max(_id) FROM Observation), 0), " +
+			"ifnull((SELECT max(_id) FROM ObservationArchive), 0))";
+
+	private final SQLiteDatabase readableDB;
+	private final ParcelFileDescriptor output;
+	private final boolean json;
+	
+	/* Column names and which of them are dates, from the first query */
+	private String[] columns;
+	private boolean[] dates;
+	
+	/* The obs_date and _id of the last row written */
+	private long lastDate = Long.MIN_VALUE;
+	private long lastId = Long.MIN_VALUE;
+
+	/*
+	 * @param readableDB	Database to export from
+	 * @param output		Write end of the pipe, closed once the export is done
+	 * @param format		DataURI.EXPORT_FORMAT_CSV or DataURI.EXPORT_FORMAT_NDJSON
+	 */
+	ObservationExporter(SQLiteDatabase readableDB, ParcelFileDescriptor output, String format){
+		this.readableDB = readableDB;
+		this.output = output;
+		this.json = DataURI.EXPORT_FORMAT_NDJSON.equals(format);
+	}
+
+	@Override
+	public void run(){
+		Writer out = null;
+		try{
+			out = new BufferedWriter(new OutputStreamWriter(new ParcelFileDescriptor.AutoCloseOutputStream(output), "UTF-8"), CHUNK_SIZE);
+			String maxId = Long.toString(DatabaseUtils.longForQuery(readableDB, MAX_ID_SQL, null));
+			
+			while(writeRows(out, UNDATED_SQL, Long.toString(lastId), maxId) == ROWS_PER_QUERY)
+				;
+			lastId = Long.MIN_VALUE;
+			while(writeRows(out, DATED_SQL, Long.toString(lastDate), Long.toString(lastDate), Long.toString(lastId), maxId) == ROWS_PER_QUERY)
+				;
+			out.flush();
+		} catch(IOException e){
+			//the reader went away
+			Log.w(Constants.LogTags.CONTENT_PROVIDER, "Observation export stopped: " + e.toString());
+		} catch(SQLiteException e){
+			Log.e(Constants.LogTags.CONTENT_PROVIDER, "Error exporting observations " + e.toString());
+			writeError(out, e);
+		} finally{
+			close(out);
+		}
+	}
+	
+	/*
+	 * Reads one query's worth of rows and writes them, writing the CSV header first if this is the first query
+	 * 
+	 * @param out	Where to write the rows
+	 * @param sql	UNDATED_SQL or DATED_SQL
+	 * @param args	The query's arguments, from the last row written and the largest _id to export
+	 * 
+	 * @return		The number of rows written, fewer than ROWS_PER_QUERY once there are no more
+	 */
+	private int writeRows(Writer out, String sql, String... args) throws IOException{
+		Cursor c = readableDB.rawQuery(sql, args);
+		try{
+			if(columns == null){
+				columns = c.getColumnNames();
+				dates = new boolean[columns.length];
+				List<String> dateColumns = Arrays.asList(EpochDays.OBSERVATION_DATE_COLUMNS);
+				for(int i = 0; i < columns.length; i++)
+					dates[i] = dateColumns.contains(columns[i]);
+				if(!json)
+					writeCsvHeader(out, columns);
+			}
+			
+			int id = c.getColumnIndexOrThrow("_id");
+			int date = c.getColumnIndexOrThrow("obs_date");
+			while(c.moveToNext()){
+				if(json)
+					writeJsonRow(out, c, columns, dates);
+				else
+					writeCsvRow(out, c, dates);
+				lastId = c.getLong(id);
+				if(!c.isNull(date))
+					lastDate = c.getLong(date);
+			}
+			return c.getCount();
+		} finally{
+			c.close();
+		}
+	}
+	
+	/*
+	 * Ends an export that failed partway through with an ERROR_MARKER line
+	 */
+	private void writeError(Writer out, SQLiteException e){
+		if(out == null)
+			return;
+		try{
+			String message = String.valueOf(e.getMessage());
+			if(json){
+				out.write("{" + JSONObject.quote(ERROR_MARKER) + ":" + JSONObject.quote(message) + "}\n");
+			} else{
+				writeCsvValue(out, ERROR_MARKER);
+				out.write(',');
+				writeCsvValue(out, message);
+				out.write("\r\n");
+			}
+			out.flush();
+		} catch(IOException e2){
+			//the reader went away, it has nothing to be told
+		}
+	}
+	
+	private void close(Writer out){
+		try{
+			if(out != null)
+				out.close();
+			else
+				output.close();
+		} catch(IOException e){
+			Log.w(Constants.LogTags.CONTENT_PROVIDER, "Error closing observation export " + e.toString());
+		}
+	}
+
+	private static void writeCsvHeader(Writer out, String[] columns) throws IOException{
+		for(int i = 0; i < columns.length; i++){
+			if(i > 0)
+				out.write(',');
+			writeCsvValue(out, columns[i]);
+		}
+		out.write("\r\n");
+	}
+
+	private static void writeCsvRow(Writer out, Cursor c, boolean[] dates) throws IOException{
+		for(int i = 0; i < dates.length; i++){
+			if(i > 0)
+				out.write(',');
+			if(c.isNull(i))
+				continue;
+			if(dates[i])
+				out.write(EpochDays.format(c.getLong(i)));
+			else
+				writeCsvValue(out, c.getString(i));
+		}
+		out.write("\r\n");
+	}
+
+	/*
+	 * Writes a CSV field, quoted (RFC 4180) only if it has to be
+	 */
+	private static void writeCsvValue(Writer out, String value) throws IOException{
+		boolean quote = false;
+		for(int i = 0; i < value.length() && !quote; i++){
+			char ch = value.charAt(i);
+			quote = (ch == ',' || ch == '"' || ch == '\n' || ch == '\r');
+		}
+		if(!quote){
+			out.write(value);
+			return;
+		}
+		out.write('"');
+		for(int i = 0; i < value.length(); i++){
+			char ch = value.charAt(i);
+			if(ch == '"')
+				out.write('"');
+			out.write(ch);
+		}
+		out.write('"');
+	}
+
+	/*
+	 * Writes a row as a JSON object on its own line, leaving out null columns
+	 */
+	private static void writeJsonRow(Writer out, Cursor c, String[] columns, boolean[] dates) throws IOException{
+		out.write('{');
+		boolean first = true;
+		for(int i = 0; i < columns.length; i++){
+			int type = c.getType(i);
+			if(type == Cursor.FIELD_TYPE_NULL)
+				continue;
+			if(!first)
+				out.write(',');
+			first = false;
+			out.write(JSONObject.quote(columns[i]));
+			out.write(':');
+			if(dates[i])
+				out.write(JSONObject.quote(EpochDays.format(c.getLong(i))));
+			else if(type == Cursor.FIELD_TYPE_INTEGER)
+				out.write(Long.toString(c.getLong(i)));
+			else if(type == Cursor.FIELD_TYPE_FLOAT)
+				out.write(Double.toString(c.getDouble(i)));
+			else
+				out.write(JSONObject.quote(c.getString(i)));
+		}
+		out.write("}\n");
+	}
+}
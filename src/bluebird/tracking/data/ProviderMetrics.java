@@ -0,0 +1,130 @@
+package bluebird.tracking.data;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.os.Bundle;
+
+/*
+ * Counters kept by DataProvider for each of its routes and operations ("query boxes", "update observation/#"...):
+ * the number of calls and failures, a histogram of their latency, the rows they returned or changed and, for
+ * queries, how many times their cursors need to fill a CursorWindow. Cheap enough to leave on in the field, so
+ * a slow screen can be traced to a route with call(DataProvider.METHOD_METRICS), which also gives a printed
+ * report with DataProvider.METRICS_FORMAT_TEXT as its arg.
+ */
+final class ProviderMetrics {
+	/* Upper bounds, in milliseconds, of each latency bucket but the last, which holds everything slower */
+	static final long[] LATENCY_BUCKETS_MS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000};
+
+	private final Map<String, Operation> operations = new TreeMap<String, Operation>();
+
+	/*
+	 * Counters of one operation on one route
+	 */
+	private static final class Operation{
+		long calls;
+		long errors;
+		long rows;
+		long windowFills;
+		long totalNanos;
+		long maxNanos;
+		final long[] histogram = new long[LATENCY_BUCKETS_MS.length + 1];
+	}
+
+	/*
+	 * Records a call that succeeded
+	 *
+	 * @param operation		Operation and route, such as "query boxes"
+	 * @param startNanos	System.nanoTime() when the call started
+	 * @param rows			Rows returned or changed
+	 * @param windowFills	CursorWindow fills the call's cursor needs, 0 for writes
+	 */
+	synchronized void record(String operation, long startNanos, long rows, long windowFills){
+		Operation op = get(operation);
+		count(op, startNanos);
+		op.rows += rows;
+		op.windowFills += windowFills;
+	}
+
+	/*
+	 * Records a call that threw
+	 *
+	 * @param operation		Operation and route, such as "query boxes"
+	 * @param startNanos	System.nanoTime() when the call started
+	 */
+	synchronized void recordError(String operation, long startNanos){
+		Operation op = get(operation);
+		count(op, startNanos);
+		op.errors++;
+	}
+
+	synchronized void reset(){
+		operations.clear();
+	}
+
+	/*
+	 * @return	A Bundle holding a Bundle of counters for each operation, keyed by operation
+	 */
+	synchronized Bundle toBundle(){
+		Bundle all = new Bundle();
+		for(Map.Entry<String, Operation> entry : operations.entrySet()){
+			Operation op = entry.getValue();
+			Bundle counters = new Bundle();
+			counters.putLong(DataProvider.METRIC_CALLS, op.calls);
+			counters.putLong(DataProvider.METRIC_ERRORS, op.errors);
+			counters.putLong(DataProvider.METRIC_ROWS, op.rows);
+			counters.putLong(DataProvider.METRIC_WINDOW_FILLS, op.windowFills);
+			counters.putLong(DataProvider.METRIC_TOTAL_MS, op.totalNanos / 1000000);
+			counters.putLong(DataProvider.METRIC_MAX_MS, op.maxNanos / 1000000);
+			counters.putLongArray(DataProvider.METRIC_LATENCY_HISTOGRAM, op.histogram.clone());
+			counters.putLongArray(DataProvider.METRIC_LATENCY_BUCKET_MS, LATENCY_BUCKETS_MS.clone());
+			all.putBundle(entry.getKey(), counters);
+		}
+		return all;
+	}
+
+	/*
+	 * Prints a table of the counters, one line per operation
+	 */
+	synchronized void dump(PrintWriter out){
+		out.print("operation\tcalls\terrors\trows\twindow_fills\tavg_ms\tmax_ms");
+		for(long bound : LATENCY_BUCKETS_MS)
+			out.print("\t<" + bound + "ms");
+		out.println("\t>=" + LATENCY_BUCKETS_MS[LATENCY_BUCKETS_MS.length - 1] + "ms");
+
+		for(Map.Entry<String, Operation> entry : operations.entrySet()){
+			Operation op = entry.getValue();
+			out.print(entry.getKey());
+			out.print("\t" + op.calls + "\t" + op.errors + "\t" + op.rows + "\t" + op.windowFills);
+			out.print("\t" + String.format(Locale.US, "%.2f", op.totalNanos / 1e6 / op.calls));
+			out.print("\t" + String.format(Locale.US, "%.2f", op.maxNanos / 1e6));
+			for(long count : op.histogram)
+				out.print("\t" + count);
+			out.println();
+		}
+	}
+
+	private Operation get(String operation){
+		Operation op = operations.get(operation);
+		if(op == null){
+			op = new Operation();
+			operations.put(operation, op);
+		}
+		return op;
+	}
+
+	private static void count(Operation op, long startNanos){
+		long nanos = System.nanoTime() - startNanos;
+		op.calls++;
+		op.totalNanos += nanos;
+		op.maxNanos = Math.max(op.maxNanos, nanos);
+
+		long ms = nanos / 1000000;
+		int bucket = 0;
+		while(bucket < LATENCY_BUCKETS_MS.length && ms >= LATENCY_BUCKETS_MS[bucket])
+			bucket++;
+		op.histogram[bucket]++;
+	}
+}
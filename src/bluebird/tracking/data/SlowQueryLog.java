@@ -0,0 +1,194 @@
+package bluebird.tracking.data;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Bundle;
+import android.util.Log;
+import bluebird.tracking.constants.Constants;
+
+/*
+ * The last CAPACITY queries DataProvider ran that took longer than a threshold, each with its route, SQL, bound
+ * arguments and the plan SQLite chose for it (EXPLAIN QUERY PLAN), so the indexes we add can be picked from what
+ * callers really ask for. Off until a threshold is set, see DataProvider.METHOD_SET_SLOW_QUERY_THRESHOLD.
+ *
+ * The query code hands each statement it runs to capture(), which keeps it for the calling thread until
+ * DataProvider.query(), update() or delete() checks how long the call took. Only the last statement of a call is
+ * kept: for a query, the one whose rows are returned; for an update or delete, the query finding the rows it
+ * changes, which shares its where clause and plan. Inserts aren't logged, they have no where clause to index.
+ */
+final class SlowQueryLog {
+	/* Number of slow queries kept, the oldest is dropped to make room */
+	static final int CAPACITY = 50;
+
+	/* Threshold in nanoseconds, negative while the log is off */
+	private volatile long thresholdNanos = -1;
+
+	/* Statement the current call on each thread last ran, only set while the log is on */
+	private final ThreadLocal<Statement> current = new ThreadLocal<Statement>();
+
+	private final Entry[] entries = new Entry[CAPACITY];
+	private int next;
+	private int count;
+
+	/*
+	 * A statement run by a call
+	 */
+	private static final class Statement{
+		final String sql;
+		final String[] args;
+
+		Statement(String sql, String[] args){
+			this.sql = sql;
+			this.args = args;
+		}
+	}
+
+	/*
+	 * A slow query
+	 */
+	private static final class Entry{
+		long time;
+		String operation;
+		long millis;
+		String sql;
+		String[] args;
+		String[] plan;
+	}
+
+	/*
+	 * @param thresholdMs	Calls taking at least this long are logged, or a negative number to turn the log off
+	 */
+	void setThreshold(long thresholdMs){
+		thresholdNanos = (thresholdMs < 0) ? -1 : thresholdMs * 1000000;
+		if(thresholdMs < 0)
+			current.remove();
+	}
+
+	long getThresholdMs(){
+		return (thresholdNanos < 0) ? -1 : thresholdNanos / 1000000;
+	}
+
+	/*
+	 * Keeps the statement a call is about to run, in case the call turns out slow
+	 */
+	void capture(String sql, String[] args){
+		if(thresholdNanos >= 0)
+			current.set(new Statement(sql, args));
+	}
+
+	/*
+	 * Logs the statement the calling thread captured if the call took longer than the threshold, and forgets it
+	 *
+	 * @param operation		Operation and route, such as "query observations"
+	 * @param startNanos	System.nanoTime() when the call started
+	 * @param database		Database to explain the statement against
+	 */
+	void check(String operation, long startNanos, SQLiteDatabase database){
+		long nanos = System.nanoTime() - startNanos;
+		Statement statement = current.get();
+		current.remove();
+		long threshold = thresholdNanos;
+		if(threshold < 0 || nanos < threshold)
+			return;
+
+		Entry entry = new Entry();
+		entry.time = System.currentTimeMillis();
+		entry.operation = operation;
+		entry.millis = nanos / 1000000;
+		if(statement != null){
+			entry.sql = statement.sql;
+			entry.args = statement.args;
+			entry.plan = explain(database, statement);
+		}
+		Log.w(Constants.LogTags.CONTENT_PROVIDER, "Slow query (" + entry.millis + " ms) " + operation + ": " + entry.sql);
+
+		synchronized(this){
+			entries[next] = entry;
+			next = (next + 1) % CAPACITY;
+			count = Math.min(count + 1, CAPACITY);
+		}
+	}
+
+	/*
+	 * Forgets the statement the calling thread captured, for calls that failed
+	 */
+	void discard(){
+		current.remove();
+	}
+
+	synchronized void clear(){
+		Arrays.fill(entries, null);
+		next = 0;
+		count = 0;
+	}
+
+	/*
+	 * @return	A Bundle for each slow query, oldest first, with the DataProvider.SLOW_QUERY_* keys
+	 */
+	synchronized ArrayList<Bundle> toBundles(){
+		ArrayList<Bundle> all = new ArrayList<Bundle>(count);
+		for(int i = 0; i < count; i++){
+			Entry entry = entries[(next - count + i + CAPACITY) % CAPACITY];
+			Bundle bundle = new Bundle();
+			bundle.putLong(DataProvider.SLOW_QUERY_TIME, entry.time);
+			bundle.putString(DataProvider.SLOW_QUERY_OPERATION, entry.operation);
+			bundle.putLong(DataProvider.SLOW_QUERY_MS, entry.millis);
+			bundle.putString(DataProvider.SLOW_QUERY_SQL, entry.sql);
+			bundle.putStringArray(DataProvider.SLOW_QUERY_ARGS, entry.args);
+			bundle.putStringArray(DataProvider.SLOW_QUERY_PLAN, entry.plan);
+			all.add(bundle);
+		}
+		return all;
+	}
+
+	/*
+	 * Prints the slow queries, oldest first
+	 */
+	synchronized void dump(PrintWriter out){
+		long threshold = getThresholdMs();
+		out.println("slow queries (" + ((threshold < 0) ? "off" : "over " + threshold + " ms") + "): " + count);
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+		for(int i = 0; i < count; i++){
+			Entry entry = entries[(next - count + i + CAPACITY) % CAPACITY];
+			out.println(format.format(new Date(entry.time)) + "\t" + entry.millis + " ms\t" + entry.operation);
+			out.println("\t" + entry.sql);
+			if(entry.args != null)
+				out.println("\targs " + Arrays.toString(entry.args));
+			if(entry.plan != null){
+				for(String step : entry.plan)
+					out.println("\t\t" + step);
+			}
+		}
+	}
+
+	/*
+	 * Asks SQLite how it runs a statement
+	 *
+	 * @return	The detail column of each step of the plan, or null if the plan couldn't be read
+	 */
+	private static String[] explain(SQLiteDatabase database, Statement statement){
+		try{
+			Cursor c = database.rawQuery("EXPLAIN QUERY PLAN " + statement.sql, statement.args);
+			try{
+				String[] plan = new String[c.getCount()];
+				//the detail is the last column in every version of SQLite
+				for(int i = 0; c.moveToNext(); i++)
+					plan[i] = c.getString(c.getColumnCount() - 1);
+				return plan;
+			} finally{
+				c.close();
+			}
+		} catch(SQLiteException e){
+			Log.e(Constants.LogTags.CONTENT_PROVIDER, "Error explaining slow query " + e.toString());
+			return null;
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package bluebird.tracking.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/*
+ * Reads SQL statements one at a time from a script without loading the whole script into memory.
+ * Statements end with a ';' that isn't inside a string, quoted identifier, comment or the BEGIN ... END
+ * body of a CREATE TRIGGER statement. Comments are dropped from the returned statements.
+ *
+ * 		SqlScriptReader script = new SqlScriptReader(reader);
+ * 		String stmt;
+ * 		while((stmt = script.nextStatement()) != null)
+ * 			db.execSQL(stmt);
+ */
+final class SqlScriptReader implements Closeable {
+	private static final int EOF = -1;
+
+	private final Reader reader;
+	private final StringBuilder statement = new StringBuilder();
+	private final StringBuilder word = new StringBuilder();
+
+	/* A character read ahead of time that hasn't been processed yet, or EOF if there isn't one */
+	private int pushedBack = EOF;
+
+	/* State of the statement currently being read */
+	private int wordCount;
+	private boolean isTrigger;
+	private int blockDepth;
+
+	/*
+	 * Creates a SqlScriptReader over the given script. The reader should be buffered.
+	 *
+	 * @param reader	Reader for the script
+	 */
+	SqlScriptReader(Reader reader){
+		this.reader = reader;
+	}
+
+	/*
+	 * Reads the next statement from the script
+	 *
+	 * @return	The next statement without its trailing ';', or null if there are no more statements
+	 */
+	String nextStatement() throws IOException{
+		statement.setLength(0);
+		word.setLength(0);
+		wordCount = 0;
+		isTrigger = false;
+		blockDepth = 0;
+
+		int c;
+		while((c = read()) != EOF){
+			if(isWordChar(c)){
+				word.append((char)c);
+				statement.append((char)c);
+				continue;
+			}
+			endWord();
+
+			if(c == '-' && peek() == '-'){
+				skipLineComment();
+				statement.append('\n');
+			} else if(c == '/' && peek() == '*'){
+				read();
+				skipBlockComment();
+				statement.append(' ');
+			} else if(c == '\'' || c == '"' || c == '`'){
+				readQuoted(c, c);
+			} else if(c == '['){
+				readQuoted('[', ']');
+			} else if(c == ';' && blockDepth == 0){
+				String stmt = statement.toString().trim();
+				if(stmt.length() > 0)
+					return stmt;
+				//empty statement, keep going
+				statement.setLength(0);
+				wordCount = 0;
+				isTrigger = false;
+			} else{
+				statement.append((char)c);
+			}
+		}
+		endWord();
+
+		String stmt = statement.toString().trim();
+		return (stmt.length() > 0) ? stmt : null;
+	}
+
+	/*
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException{
+		reader.close();
+	}
+
+	/*
+	 * Called when a keyword or identifier has been completely read. Keeps track of whether we are in a trigger
+	 * and how deep in BEGIN/CASE ... END blocks we are, so semicolons inside a trigger body don't end the statement.
+	 */
+	private void endWord(){
+		if(word.length() == 0)
+			return;
+
+		String w = word.toString();
+		word.setLength(0);
+		wordCount++;
+
+		if(wordCount <= 4 && w.equalsIgnoreCase("TRIGGER") && statement.toString().trim().regionMatches(true, 0, "CREATE", 0, 6))
+			isTrigger = true;
+		else if(isTrigger && w.equalsIgnoreCase("BEGIN"))
+			blockDepth++;
+		else if(isTrigger && w.equalsIgnoreCase("CASE"))
+			blockDepth++;
+		else if(w.equalsIgnoreCase("END") && blockDepth > 0)
+			blockDepth--;
+	}
+
+	/*
+	 * Copies a quoted string or identifier into the statement, including its quotes. A doubled closing quote
+	 * is an escaped quote and doesn't end the string
+	 */
+	private void readQuoted(int open, int close) throws IOException{
+		statement.append((char)open);
+		int c;
+		while((c = read()) != EOF){
+			statement.append((char)c);
+			if(c == close){
+				if(close != ']' && peek() == close){
+					statement.append((char)read());
+					continue;
+				}
+				return;
+			}
+		}
+	}
+
+	private void skipLineComment() throws IOException{
+		int c;
+		while((c = read()) != EOF && c != '\n');
+	}
+
+	private void skipBlockComment() throws IOException{
+		int c;
+		while((c = read()) != EOF){
+			if(c == '*' && peek() == '/'){
+				read();
+				return;
+			}
+		}
+	}
+
+	private int read() throws IOException{
+		if(pushedBack != EOF){
+			int c = pushedBack;
+			pushedBack = EOF;
+			return c;
+		}
+		return reader.read();
+	}
+
+	private int peek() throws IOException{
+		if(pushedBack == EOF)
+			pushedBack = reader.read();
+		return pushedBack;
+	}
+
+	private static boolean isWordChar(int c){
+		return Character.isLetterOrDigit(c) || c == '_';
+	}
+}
@@ -0,0 +1,251 @@
+package bluebird.tracking.sync;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+import bluebird.tracking.constants.Constants;
+import bluebird.tracking.data.DataURI;
+
+/*
+ * Sends the Box and Observation rows written since the last acknowledged sync to a sync server. The rows come
+ * from the change log (see DataURI.getChangesURI()) and are sent in batches of BATCH_SIZE, oldest change first,
+ * each batch as one gzip compressed JSON POST:
+ *
+ * 		{"device": "...", "through_seq": 42, "changes": [
+ * 			{"seq": 41, "table": "Box", "id": 3, "row": {"_id": 3, "box_number": "A12", ...}},
+ * 			{"seq": 42, "table": "Observation", "id": 7, "deleted": true}
+ * 		]}
+ *
+ * A row is sent as it is now, with null columns left out, or as deleted if it no longer exists. The server
+ * answers {"acked": seq} and the changes up to that seq are deleted from the log; anything it doesn't acknowledge
+ * is sent again by the next sync. Once the first sync has sent the whole database, each sync only sends what
+ * changed, which is a few kilobytes for a week of observations.
+ *
+ * sync() does network and database I/O, so it must not be called on the UI thread, see SyncService.
+ */
+public class SyncEngine {
+	/* Number of changes sent in each request */
+	public static final int BATCH_SIZE = 200;
+
+	private static final int CONNECT_TIMEOUT = 15000;
+	private static final int READ_TIMEOUT = 30000;
+
+	private final ContentResolver resolver;
+	private final URL server;
+	private final String deviceId;
+
+	/*
+	 * @param resolver	ContentResolver used to read the change log and the changed rows
+	 * @param server	URL the batches are POSTed to
+	 * @param deviceId	Identifies this device to the server
+	 */
+	public SyncEngine(ContentResolver resolver, URL server, String deviceId){
+		this.resolver = resolver;
+		this.server = server;
+		this.deviceId = deviceId;
+	}
+
+	/*
+	 * Sends every change in the change log, one batch at a time, until the log is empty or the server stops
+	 * acknowledging batches in full
+	 *
+	 * @return	Number of changes acknowledged by the server
+	 *
+	 * @throws IOException	If a batch couldn't be sent, the changes not yet acknowledged stay in the log
+	 */
+	public int sync() throws IOException{
+		int acknowledged = 0;
+		while(true){
+			JSONArray changes = new JSONArray();
+			long throughSeq = readBatch(changes);
+			if(changes.length() == 0)
+				break;
+
+			long acked = send(changes, throughSeq);
+			if(acked > 0){
+				int deleted = resolver.delete(DataURI.getAcknowledgedChangesURI(acked), null, null);
+				acknowledged += deleted;
+			}
+			if(acked < throughSeq || changes.length() < BATCH_SIZE)
+				break;
+		}
+		return acknowledged;
+	}
+
+	/*
+	 * Reads the next batch of changes from the change log along with the current state of each changed row
+	 *
+	 * @param changes	Array the changes are added to
+	 *
+	 * @return			seq of the last change in the batch, 0 if the log is empty
+	 */
+	private long readBatch(JSONArray changes){
+		long throughSeq = 0;
+		Cursor log = resolver.query(DataURI.getChangesURI(BATCH_SIZE), null, null, null, null);
+		if(log == null)
+			return 0;
+		try{
+			int seqCol = log.getColumnIndexOrThrow("seq");
+			int tableCol = log.getColumnIndexOrThrow("table_name");
+			int rowIdCol = log.getColumnIndexOrThrow("row_id");
+			while(log.moveToNext()){
+				long seq = log.getLong(seqCol);
+				String table = log.getString(tableCol);
+				long rowId = log.getLong(rowIdCol);
+
+				JSONObject change = new JSONObject();
+				change.put("seq", seq);
+				change.put("table", table);
+				change.put("id", rowId);
+				JSONObject row = readRow(table, rowId);
+				if(row == null)
+					change.put("deleted", true);
+				else
+					change.put("row", row);
+				changes.put(change);
+				throughSeq = seq;
+			}
+		} catch(JSONException e){
+			throw new RuntimeException("Error building sync batch", e);
+		} finally{
+			log.close();
+		}
+		return throughSeq;
+	}
+
+	/*
+	 * Reads a Box or Observation row as a JSON object
+	 *
+	 * @param table	Box or Observation
+	 * @param rowId	_id of the row
+	 *
+	 * @return		The row's non-null columns, or null if the row doesn't exist
+	 */
+	private JSONObject readRow(String table, long rowId) throws JSONException{
+		Uri uri;
+		if(table.equals("Box"))
+			uri = DataURI.getBoxURIById((int)rowId);
+		else if(table.equals("Observation"))
+			uri = DataURI.getObservationURIById((int)rowId);
+		else
+			throw new IllegalStateException("Unknown table in change log " + table);
+
+		//only the columns the user entered, not the ones the database derives from them
+		Cursor c = resolver.query(DataURI.withProfile(uri, DataURI.PROFILE_EXPORT), null, null, null, null);
+		if(c == null)
+			return null;
+		try{
+			if(!c.moveToFirst())
+				return null;
+			JSONObject row = new JSONObject();
+			for(int i = 0; i < c.getColumnCount(); i++){
+				switch(c.getType(i)){
+				case Cursor.FIELD_TYPE_NULL:
+					break;
+				case Cursor.FIELD_TYPE_INTEGER:
+					row.put(c.getColumnName(i), c.getLong(i));
+					break;
+				case Cursor.FIELD_TYPE_FLOAT:
+					row.put(c.getColumnName(i), c.getDouble(i));
+					break;
+				default:
+					row.put(c.getColumnName(i), c.getString(i));
+					break;
+				}
+			}
+			return row;
+		} finally{
+			c.close();
+		}
+	}
+
+	/*
+	 * POSTs a batch to the server
+	 *
+	 * @param changes		The changes in the batch
+	 * @param throughSeq	seq of the last change in the batch
+	 *
+	 * @return				seq of the last change the server acknowledged
+	 */
+	private long send(JSONArray changes, long throughSeq) throws IOException{
+		byte[] body;
+		try{
+			JSONObject batch = new JSONObject();
+			batch.put("device", deviceId);
+			batch.put("through_seq", throughSeq);
+			batch.put("changes", changes);
+			body = gzip(batch.toString().getBytes("UTF-8"));
+		} catch(JSONException e){
+			throw new RuntimeException("Error building sync batch", e);
+		}
+
+		HttpURLConnection connection = (HttpURLConnection)server.openConnection();
+		try{
+			connection.setConnectTimeout(CONNECT_TIMEOUT);
+			connection.setReadTimeout(READ_TIMEOUT);
+			connection.setDoOutput(true);
+			connection.setRequestMethod("POST");
+			connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+			connection.setRequestProperty("Content-Encoding", "gzip");
+			connection.setFixedLengthStreamingMode(body.length);
+
+			OutputStream out = connection.getOutputStream();
+			try{
+				out.write(body);
+			} finally{
+				out.close();
+			}
+
+			int status = connection.getResponseCode();
+			if(status != HttpURLConnection.HTTP_OK)
+				throw new IOException("Sync server returned " + status);
+
+			long acked = new JSONObject(readResponse(connection.getInputStream())).getLong("acked");
+			Log.d(Constants.LogTags.SYNC, "Sent " + changes.length() + " changes in " + body.length + " bytes, acked through " + acked);
+			return Math.min(acked, throughSeq);
+		} catch(JSONException e){
+			throw new IOException("Bad response from sync server: " + e.getMessage());
+		} finally{
+			connection.disconnect();
+		}
+	}
+
+	private static byte[] gzip(byte[] data) throws IOException{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4 + 64);
+		GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+		try{
+			gzip.write(data);
+		} finally{
+			gzip.close();
+		}
+		return bytes.toByteArray();
+	}
+
+	private static String readResponse(InputStream in) throws IOException{
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		try{
+			StringBuilder response = new StringBuilder();
+			String line;
+			while((line = reader.readLine()) != null)
+				response.append(line);
+			return response.toString();
+		} finally{
+			reader.close();
+		}
+	}
+}
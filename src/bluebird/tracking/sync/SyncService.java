@@ -0,0 +1,63 @@
+package bluebird.tracking.sync;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import android.app.IntentService;
+import android.content.Context;
+import android.content.Intent;
+import android.provider.Settings;
+import android.util.Log;
+import bluebird.tracking.R;
+import bluebird.tracking.constants.Constants;
+
+/*
+ * Runs a SyncEngine on a background thread. Start it with start(), changes that can't be sent (no connection,
+ * server down) stay in the change log until the next time it's started.
+ *
+ * The server defaults to R.string.sync_server_url, which points at the local stand-in server in
+ * tools/sync-server as seen from the emulator.
+ */
+public class SyncService extends IntentService {
+	/* Optional String extra, the URL to sync with instead of R.string.sync_server_url */
+	public static final String EXTRA_SERVER_URL = "server_url";
+
+	public SyncService(){
+		super("SyncService");
+	}
+
+	/*
+	 * Starts syncing with the default server
+	 *
+	 * @param context	Context used to start the service
+	 */
+	public static void start(Context context){
+		context.startService(new Intent(context, SyncService.class));
+	}
+
+	/*
+	 * @see android.app.IntentService#onHandleIntent(android.content.Intent)
+	 *
+	 * Sends every change waiting in the change log to the server
+	 *
+	 * @param intent	The Intent the service was started with
+	 */
+	@Override
+	protected void onHandleIntent(Intent intent){
+		String url = intent.getStringExtra(EXTRA_SERVER_URL);
+		if(url == null)
+			url = getString(R.string.sync_server_url);
+		String deviceId = Settings.Secure.getString(getContentResolver(), Settings.Secure.ANDROID_ID);
+
+		try{
+			SyncEngine engine = new SyncEngine(getContentResolver(), new URL(url), (deviceId == null) ? "unknown" : deviceId);
+			int sent = engine.sync();
+			Log.i(Constants.LogTags.SYNC, "Synced " + sent + " changes with " + url);
+		} catch(MalformedURLException e){
+			Log.e(Constants.LogTags.SYNC, "Bad sync server URL " + url);
+		} catch(IOException e){
+			Log.w(Constants.LogTags.SYNC, "Sync with " + url + " failed, will retry next time: " + e.toString());
+		}
+	}
+}
@@ -0,0 +1,112 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * A stand-in for the sync server, for testing bluebird.tracking.sync.SyncEngine on one machine. It accepts the
+ * gzip compressed batches POSTed to /sync, appends each one as a line of JSON to <dir>/<device>.ndjson and
+ * acknowledges the whole batch. It needs nothing but a JDK:
+ *
+ * 		javac LocalSyncServer.java
+ * 		java LocalSyncServer [port] [dir]
+ *
+ * port defaults to 8080 and dir to the current directory. The emulator reaches the host machine at 10.0.2.2,
+ * which is what R.string.sync_server_url points at. Each batch is logged with its compressed and uncompressed
+ * size.
+ */
+public class LocalSyncServer {
+	private static final Pattern DEVICE = Pattern.compile("\"device\"\\s*:\\s*\"([^\"]*)\"");
+	private static final Pattern THROUGH_SEQ = Pattern.compile("\"through_seq\"\\s*:\\s*(\\d+)");
+
+	public static void main(String[] args) throws IOException{
+		int port = (args.length > 0) ? Integer.parseInt(args[0]) : 8080;
+		final File dir = new File((args.length > 1) ? args[1] : ".");
+		if(!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Can't create " + dir);
+
+		HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/sync", new HttpHandler(){
+			@Override
+			public void handle(HttpExchange exchange) throws IOException{
+				try{
+					if(!exchange.getRequestMethod().equals("POST")){
+						respond(exchange, 405, "{\"error\": \"POST only\"}");
+						return;
+					}
+					handleBatch(exchange, dir);
+				} catch(RuntimeException e){
+					e.printStackTrace();
+					respond(exchange, 500, "{\"error\": \"" + e.getClass().getSimpleName() + "\"}");
+				}
+			}
+		});
+		server.start();
+		System.out.println("Sync server listening on port " + port + ", writing to " + dir.getAbsolutePath());
+	}
+
+	private static void handleBatch(HttpExchange exchange, File dir) throws IOException{
+		byte[] compressed = readAll(exchange.getRequestBody());
+		byte[] body = "gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))
+				? readAll(new GZIPInputStream(new ByteArrayInputStream(compressed)))
+				: compressed;
+		String json = new String(body, "UTF-8");
+
+		Matcher device = DEVICE.matcher(json);
+		Matcher throughSeq = THROUGH_SEQ.matcher(json);
+		if(!device.find() || !throughSeq.find()){
+			respond(exchange, 400, "{\"error\": \"missing device or through_seq\"}");
+			return;
+		}
+
+		//the device id comes from the client, keep it to characters that are safe in a file name
+		String deviceId = device.group(1).replaceAll("[^A-Za-z0-9_-]", "_");
+		OutputStream out = new FileOutputStream(new File(dir, deviceId + ".ndjson"), true);
+		try{
+			out.write(json.replace('\n', ' ').getBytes("UTF-8"));
+			out.write('\n');
+		} finally{
+			out.close();
+		}
+
+		System.out.println(deviceId + ": batch through seq " + throughSeq.group(1) + ", "
+				+ compressed.length + " bytes sent, " + body.length + " bytes uncompressed");
+		respond(exchange, 200, "{\"acked\": " + throughSeq.group(1) + "}");
+	}
+
+	private static void respond(HttpExchange exchange, int status, String json) throws IOException{
+		byte[] response = json.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, response.length);
+		OutputStream out = exchange.getResponseBody();
+		try{
+			out.write(response);
+		} finally{
+			out.close();
+		}
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException{
+		try{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while((read = in.read(buffer)) != -1)
+				bytes.write(buffer, 0, read);
+			return bytes.toByteArray();
+		} finally{
+			in.close();
+		}
+	}
+}